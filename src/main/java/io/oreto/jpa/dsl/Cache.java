@@ -0,0 +1,65 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Bounded, concurrent cache. When the cache is full the oldest entries are evicted first.
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+class Cache<K, V> {
+    static final int DEFAULT_SIZE = Integer.getInteger("scout.cache.size", 1024);
+
+    private final int size;
+    private final ConcurrentMap<K, V> values = new ConcurrentHashMap<>();
+    private final Queue<K> keys = new ConcurrentLinkedQueue<>();
+
+    Cache(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Get the value, computing and caching it if it is not already cached
+     * @param key The key
+     * @param compute Computes the value of a missing key. If it throws nothing is cached
+     * @return The value
+     */
+    V get(K key, Function<? super K, ? extends V> compute) {
+        V value = values.get(key);
+        if (value == null) {
+            value = compute.apply(key);
+            if (size <= 0)
+                return value;
+            V existing = values.putIfAbsent(key, value);
+            if (existing == null) {
+                keys.add(key);
+                evict();
+            } else {
+                value = existing;
+            }
+        }
+        return value;
+    }
+
+    int size() {
+        return values.size();
+    }
+
+    void clear() {
+        values.clear();
+        keys.clear();
+    }
+
+    private void evict() {
+        while (values.size() > size) {
+            K key = keys.poll();
+            if (key == null)
+                break;
+            values.remove(key);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * How the case insensitive operators icontains, istartswith and iendswith compare an attribute with a value.
+ * The value is always upper cased, the strategy decides what it is compared with. Wrapping the column in upper(...)
+ * works with any column but rules out a plain index on it, the other strategies compare a column as it is, so the
+ * prefix pattern of istartswith can use an index range scan.
+ * <p>
+ * The strategy of an attribute is the one registered for it, otherwise the strategy of the dialect for native SQL,
+ * otherwise the default set by the scout.case.insensitivity system property, upper or plain. Strategies are chosen
+ * when a query is compiled into a statement. Each registration changes the version which the cached statements are
+ * keyed by, so statements compiled before it are not reused.
+ */
+public final class CaseInsensitivity {
+    /**
+     * Upper case the column, upper(name) like 'ROSS%'
+     */
+    public static final CaseInsensitivity UPPER = new CaseInsensitivity(true, null);
+
+    /**
+     * Compare the column as it is, name like 'ROSS%', for columns with a case insensitive collation or columns
+     * which hold upper case values
+     */
+    public static final CaseInsensitivity PLAIN = new CaseInsensitivity(false, null);
+
+    static final CaseInsensitivity DEFAULT =
+            "plain".equalsIgnoreCase(System.getProperty("scout.case.insensitivity", "upper")) ? PLAIN : UPPER;
+
+    // strategies keyed by entity or embeddable class and attribute name
+    private static final Map<List<Object>, CaseInsensitivity> strategies = new ConcurrentHashMap<>();
+    // incremented by each registration
+    private static final AtomicInteger version = new AtomicInteger();
+
+    /**
+     * Compare a mapped shadow attribute which holds the upper cased values of the attribute, name_upper like 'ROSS%'
+     * @param attribute The name of the shadow attribute, which belongs to the same type as the attribute
+     * @return The strategy
+     */
+    public static CaseInsensitivity shadow(String attribute) {
+        if (Str.isEmpty(attribute))
+            throw new IllegalArgumentException("shadow attribute required");
+        return new CaseInsensitivity(false, attribute);
+    }
+
+    /**
+     * Register the strategy of an attribute, replacing any strategy already registered for it
+     * @param type The entity or embeddable class the attribute belongs to
+     * @param attribute The name of the attribute
+     * @param strategy The strategy
+     */
+    public static void register(Class<?> type, String attribute, CaseInsensitivity strategy) {
+        strategies.put(Arrays.asList(type, attribute), strategy);
+        version.incrementAndGet();
+    }
+
+    /**
+     * @return The version of the registered strategies, part of the keys of cached statements
+     */
+    static int version() {
+        return version.get();
+    }
+
+    /**
+     * Get the strategy of the attribute at the end of a route
+     * @param route The route
+     * @param fallback The strategy used if none is registered for the attribute
+     * @return The strategy
+     */
+    static CaseInsensitivity of(Paths.Route route, CaseInsensitivity fallback) {
+        for (Class<?> type = route.owner; type != null; type = type.getSuperclass()) {
+            CaseInsensitivity strategy = strategies.get(Arrays.asList(type, route.name(route.size() - 1)));
+            if (strategy != null)
+                return strategy;
+        }
+        return fallback;
+    }
+
+    // true to upper case the column
+    final boolean upper;
+    // the name of the shadow attribute, null to compare the attribute itself
+    private final String shadow;
+
+    private CaseInsensitivity(boolean upper, String shadow) {
+        this.upper = upper;
+        this.shadow = shadow;
+    }
+
+    /**
+     * @param key The key of a term
+     * @return The key of the attribute compared, the key of the shadow attribute if there is one
+     */
+    String key(String key) {
+        if (shadow == null)
+            return key;
+        int i = key.lastIndexOf('.');
+        return i < 0 ? (key.charAt(0) == Joins.INDEPENDENT ? Joins.INDEPENDENT + shadow : shadow)
+                : key.substring(0, i + 1) + shadow;
+    }
+
+    @Override
+    public String toString() {
+        return shadow == null ? (upper ? "upper" : "plain") : "shadow " + shadow;
+    }
+}
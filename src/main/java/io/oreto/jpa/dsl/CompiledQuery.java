@@ -0,0 +1,484 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Parsed, immutable form of a query. Binding it to a root and criteria builder walks the tree of nodes
+ * without any further string processing, so one instance can be shared between threads. An in list with more
+ * values than one in list of the dialect may have, {@link Dialect#inLimit()}, is split into in lists joined by or.
+ * @param <T> The entity type
+ */
+public final class CompiledQuery<T> {
+    private final Class<T> type;
+    private final String q;
+    private final Node node;
+    // the expressions of the query in query order
+    private final List<Expression<?>> terms;
+    // the query with its literal values left out
+    private final String shape;
+    // the names of the bind variables of the query
+    private final Set<String> variables;
+    // the type of the attribute of each expression, for the expressions whose attribute resolves when compiled
+    private final Map<Expression<?>, Class<?>> attributes;
+    // how aggregate terms of the top level filter the entities
+    private final Grouping grouping;
+    // the most branches of a top level disjunction which are run as one query each, 0 to never expand
+    private final int expansion;
+    // true to join nested blocks in the sub query of their block
+    private final boolean flatten;
+    // the query with its long literal in lists split, by the most values of one in list
+    private final Map<Integer, CompiledQuery<T>> splits = new ConcurrentHashMap<>();
+
+    CompiledQuery(Class<T> type, String q) {
+        this.type = type;
+        this.q = q;
+        this.node = Optimizer.optimize(Parser.parse(q));
+
+        List<Expression<?>> terms = new ArrayList<>();
+        StringBuilder shape = new StringBuilder();
+        if (node != null) {
+            node.terms(terms);
+            node.shape(shape);
+        }
+        this.terms = Collections.unmodifiableList(terms);
+        this.shape = shape.toString();
+
+        Map<Expression<?>, Class<?>> attributes = new IdentityHashMap<>();
+        attributes(type, node, attributes);
+        for (Expression<?> term : terms)
+            term.resolve(attributes.get(term));
+        this.attributes = Collections.unmodifiableMap(attributes);
+
+        Set<String> variables = new LinkedHashSet<>();
+        for (Expression<?> term : terms) {
+            if (term.variable != null)
+                variables.add(term.variable);
+        }
+        this.variables = Collections.unmodifiableSet(variables);
+        this.grouping = Grouping.AUTO;
+        this.expansion = 0;
+        this.flatten = Node.SubQuery.FLATTEN;
+    }
+
+    /**
+     * Find the types of the attributes the expressions of a node compare, the attributes of the entity at the top
+     * level and the attributes of the elements of the collection in a block
+     * @param type The class the keys of the node belong to, null if it is not known
+     * @param node The node
+     * @param attributes Receives the type of the attribute of each expression whose key resolves to a class
+     */
+    private static void attributes(Class<?> type, Node node, Map<Expression<?>, Class<?>> attributes) {
+        if (type == null || node == null)
+            return;
+        if (node instanceof Node.Junction) {
+            for (Node n : ((Node.Junction) node).nodes)
+                attributes(type, n, attributes);
+        } else if (node instanceof Node.SubQuery) {
+            Node.SubQuery block = (Node.SubQuery) node;
+            attributes(Paths.javaType(type, block.attribute), block.node, attributes);
+        } else if (node instanceof Node.Collector) {
+            attributes(type, ((Node.Collector) node).node, attributes);
+        } else if (node instanceof Node.Term) {
+            List<Expression<?>> terms = new ArrayList<>();
+            ((Node.Term) node).expression.terms(terms);
+            for (Expression<?> term : terms) {
+                Class<?> attribute = Paths.javaType(type, term.key);
+                if (attribute != null)
+                    attributes.put(term, attribute);
+            }
+        }
+    }
+
+    /**
+     * Copy a query with another node, such as the node with its long in lists split
+     */
+    private CompiledQuery(CompiledQuery<T> query, Node node) {
+        List<Expression<?>> terms = new ArrayList<>();
+        StringBuilder shape = new StringBuilder();
+        node.terms(terms);
+        node.shape(shape);
+        this.type = query.type;
+        this.q = query.q;
+        this.node = node;
+        this.terms = Collections.unmodifiableList(terms);
+        this.shape = shape.toString();
+        this.variables = query.variables;
+        this.attributes = query.attributes;
+        this.grouping = query.grouping;
+        this.expansion = query.expansion;
+        this.flatten = query.flatten;
+    }
+
+    private CompiledQuery(CompiledQuery<T> query, Grouping grouping, int expansion, boolean flatten) {
+        this.type = query.type;
+        this.q = query.q;
+        this.node = query.node;
+        this.terms = query.terms;
+        this.shape = query.shape;
+        this.variables = query.variables;
+        this.attributes = query.attributes;
+        this.grouping = grouping;
+        this.expansion = expansion;
+        this.flatten = flatten;
+    }
+
+    /**
+     * Choose how the aggregate terms of the top level of the query filter the entities
+     * @param grouping The grouping strategy, {@link Grouping#AUTO} by default
+     * @return The query with the strategy
+     */
+    public CompiledQuery<T> grouping(Grouping grouping) {
+        return grouping == this.grouping ? this : new CompiledQuery<>(this, grouping, expansion, flatten);
+    }
+
+    public Grouping getGrouping() {
+        return grouping;
+    }
+
+    /**
+     * Run a top level disjunction of exists sub queries, such as address{ ... } or orders{ ... }, as one id query
+     * per branch when the query is listed. Databases often scan the whole table for a disjunction of sub queries,
+     * while each branch alone can use an index. The ids are merged in memory and the entities loaded by id.
+     * @param branches The most branches a disjunction may have to be expanded, 0 to never expand
+     * @return The query with the expansion
+     * @see #list(EntityManager, String...)
+     */
+    public CompiledQuery<T> expand(int branches) {
+        return branches == expansion ? this : new CompiledQuery<>(this, grouping, branches, flatten);
+    }
+
+    public int getExpansion() {
+        return expansion;
+    }
+
+    /**
+     * Choose whether a block which is the only condition of its block, orders{ items{ name:x } }, is joined in the
+     * sub query of the outer block or runs a sub query of its own. The default is set by the scout.flatten.blocks
+     * system property, true unless it is false.
+     * @param flatten True to join nested blocks in one sub query, false to nest a sub query for each block
+     * @return The query with the choice
+     */
+    public CompiledQuery<T> flatten(boolean flatten) {
+        return flatten == this.flatten ? this : new CompiledQuery<>(this, grouping, expansion, flatten);
+    }
+
+    public boolean isFlattened() {
+        return flatten;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public String getQuery() {
+        return q;
+    }
+
+    /**
+     * The shape of the query is the query with all literal values left out. Queries of the same shape share
+     * one parameterized criteria query.
+     * @return The shape
+     */
+    public String getShape() {
+        return shape;
+    }
+
+    /**
+     * @return The names of the bind variables of the query, in query order
+     */
+    public Set<String> getVariables() {
+        return variables;
+    }
+
+    /**
+     * Check a value bound to a variable against the attributes the variable is compared with, texts and numbers are
+     * converted to the type of the attribute
+     * @param name The name of the variable
+     * @param value The value
+     * @return The value converted to the type of the attribute
+     * @throws BadQueryException if the query has no variable with the name or the value is not a valid value
+     */
+    Object bind(String name, Object value) {
+        if (!variables.contains(name))
+            throw new BadQueryException(String.format("Unknown variable $%s in query %s", name, this));
+        if (value == null)
+            return null;
+        for (Expression<?> term : terms) {
+            Class<?> attribute = attributes.get(term);
+            if (attribute != null && name.equals(term.variable))
+                value = term.bind(attribute, value);
+        }
+        return value;
+    }
+
+    /**
+     * Determine if the query has no expressions
+     * @return True if the query is null or blank
+     */
+    public boolean isEmpty() {
+        return node == null;
+    }
+
+    /**
+     * Bind the query to a criteria query, the where, group by and having clauses are set on the query
+     * @param root The root of the query
+     * @param query The criteria query
+     * @param criteriaBuilder The criteria builder
+     * @param fetch Attributes to fetch
+     * @return The where restriction of the query or null if it has none
+     */
+    public Predicate predicate(Root<T> root, CriteriaQuery<?> query, CriteriaBuilder criteriaBuilder, String... fetch) {
+        return predicate(root, query, criteriaBuilder, null, fetch);
+    }
+
+    Predicate predicate(Root<T> root
+            , CriteriaQuery<?> query
+            , CriteriaBuilder criteriaBuilder
+            , Map<String, ?> variables
+            , String... fetch) {
+        CompiledQuery<T> split = split(variables, Dialect.JPA.inLimit());
+        if (split != this)
+            return split.predicate(root, query, criteriaBuilder, variables, fetch);
+        DSL.fetch(root, fetch);
+        // the count query of a page selects a Long from the entity
+        boolean count = query.getResultType() == Long.class && type != Long.class;
+        return DSL.restrict(new DSL<>(root, query, criteriaBuilder, null, variables, flatten)
+                , node
+                , isSubQuery(fetch.length > 0 || count));
+    }
+
+    /**
+     * Create a criteria query for the entity
+     * @param entityManager The entity manager used to create the query
+     * @param fetch Attributes to fetch
+     * @return The criteria query
+     */
+    public CriteriaQuery<T> criteriaQuery(EntityManager entityManager, String... fetch) {
+        return criteriaQuery(entityManager, null, fetch);
+    }
+
+    CriteriaQuery<T> criteriaQuery(EntityManager entityManager, Map<String, ?> variables, String... fetch) {
+        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
+        CriteriaQuery<T> query = builder.createQuery(type);
+        Root<T> root = query.from(type);
+        predicate(root, query, builder, variables, fetch);
+        return query;
+    }
+
+    /**
+     * Create a typed query in which every literal is bound to a parameter. The criteria query is built once per
+     * query shape and cached, so queries which only differ by their literals produce the same statement.
+     * @param entityManager The entity manager used to create the query
+     * @param fetch Attributes to fetch
+     * @return The typed query with all parameters bound
+     */
+    public TypedQuery<T> typedQuery(EntityManager entityManager, String... fetch) {
+        return typedQuery(entityManager, null, fetch);
+    }
+
+    @SuppressWarnings("unchecked")
+    TypedQuery<T> typedQuery(EntityManager entityManager, Map<String, ?> variables, String... fetch) {
+        CompiledQuery<T> split = split(variables, Dialect.JPA.inLimit());
+        if (split != this)
+            return split.typedQuery(entityManager, variables, fetch);
+        boolean subQuery = isSubQuery(fetch.length > 0);
+        Template<T> template = (Template<T>) DSL.templates.get(
+                Arrays.asList(entityManager.getEntityManagerFactory(), CaseInsensitivity.version()
+                        , type, shape, subQuery, flatten, Arrays.asList(fetch))
+                , key -> template(entityManager.getCriteriaBuilder(), variables, subQuery, fetch));
+        return template.typedQuery(entityManager, terms, variables);
+    }
+
+    /**
+     * Run the query. A top level disjunction is expanded into one query per branch when the query allows it,
+     * see {@link #expand(int)}, otherwise the query is run as {@link #typedQuery(EntityManager, String...)}.
+     * @param entityManager The entity manager used to run the query
+     * @param fetch Attributes to fetch
+     * @return The matching entities
+     */
+    public List<T> list(EntityManager entityManager, String... fetch) {
+        return list(entityManager, null, fetch);
+    }
+
+    List<T> list(EntityManager entityManager, Map<String, ?> variables, String... fetch) {
+        return list(entityManager, variables, query -> {}, fetch);
+    }
+
+    /**
+     * Run the query
+     * @param entityManager The entity manager used to run the query
+     * @param variables The values bound to variables, may be null
+     * @param settings Applied to each statement run, such as the hints of a {@link QueryRunner}
+     * @param fetch Attributes to fetch
+     * @return The matching entities
+     */
+    List<T> list(EntityManager entityManager, Map<String, ?> variables, Consumer<Query> settings, String... fetch) {
+        return split(variables, Dialect.JPA.inLimit()).expanded(entityManager, variables, settings, fetch);
+    }
+
+    /**
+     * Run the query, expanding its top level disjunction when the query allows it
+     */
+    private List<T> expanded(EntityManager entityManager
+            , Map<String, ?> variables
+            , Consumer<Query> settings
+            , String... fetch) {
+        List<Node> branches = branches(entityManager);
+        if (branches == null)
+            return run(typedQuery(entityManager, variables, fetch), settings);
+
+        Set<Object> ids = new LinkedHashSet<>();
+        for (Node branch : branches) {
+            List<Expression<?>> terms = new ArrayList<>();
+            StringBuilder shape = new StringBuilder();
+            branch.terms(terms);
+            branch.shape(shape);
+            Jpql.Template template = DSL.statements.get(
+                    Arrays.asList(entityManager.getEntityManagerFactory(), CaseInsensitivity.version()
+                            , type, shape.toString(), flatten, Jpql.ID)
+                    , key -> Jpql.ids(entityManager.getMetamodel(), type, branch, terms, flatten));
+            ids.addAll(run(new JpqlQuery<>(Object.class, template.query, template.parameters(terms, variables))
+                    .typedQuery(entityManager), settings));
+        }
+        if (ids.isEmpty())
+            return new ArrayList<>();
+        return run(entityManager.createQuery(Jpql.load(entityManager.getMetamodel(), type, fetch), type)
+                .setParameter(Jpql.ID, ids), settings);
+    }
+
+    private static <R> List<R> run(TypedQuery<R> query, Consumer<Query> settings) {
+        settings.accept(query);
+        return query.getResultList();
+    }
+
+    /**
+     * Split the in lists with more values than one in list may have, see {@link Optimizer#split(Node, Map, int)}.
+     * The split of the literal lists is kept, so their values are only converted once.
+     * @param variables The values bound to variables, may be null
+     * @param limit The most values of one in list
+     * @return This query if no in list is too long, otherwise the split query
+     */
+    private CompiledQuery<T> split(Map<String, ?> variables, int limit) {
+        CompiledQuery<T> query = splits.computeIfAbsent(limit, l -> {
+            Node split = Optimizer.split(node, null, l);
+            return split == node ? this : new CompiledQuery<>(this, split);
+        });
+        if (variables == null || variables.isEmpty())
+            return query;
+        Node split = Optimizer.split(query.node, variables, limit);
+        return split == query.node ? query : new CompiledQuery<>(query, split);
+    }
+
+    /**
+     * @param entityManager The entity manager whose metamodel describes the entity
+     * @return The branches of the top level disjunction when the query is expanded, otherwise null
+     */
+    private List<Node> branches(EntityManager entityManager) {
+        if (!(node instanceof Node.Junction) || ((Node.Junction) node).operator != Logical.Operator.or)
+            return null;
+        List<Node> branches = ((Node.Junction) node).nodes;
+        if (branches.size() > expansion || Jpql.id(entityManager.getMetamodel().entity(type)) == null)
+            return null;
+        return branches;
+    }
+
+    /**
+     * Compile the query to a JPQL statement in which every literal is a named parameter. The statement is rendered
+     * once per query shape and cached.
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param fetch Attributes to fetch
+     * @return The statement and its parameter values
+     */
+    public JpqlQuery<T> jpql(EntityManager entityManager, String... fetch) {
+        return jpql(entityManager, null, fetch);
+    }
+
+    JpqlQuery<T> jpql(EntityManager entityManager, Map<String, ?> variables, String... fetch) {
+        CompiledQuery<T> split = split(variables, Dialect.JPA.inLimit());
+        if (split != this)
+            return split.jpql(entityManager, variables, fetch);
+        boolean subQuery = isSubQuery(fetch.length > 0);
+        Jpql.Template template = DSL.statements.get(
+                Arrays.asList(entityManager.getEntityManagerFactory(), CaseInsensitivity.version()
+                        , type, shape, subQuery, flatten, Arrays.asList(fetch))
+                , key -> Jpql.render(entityManager.getMetamodel(), type, node, terms, subQuery, flatten, fetch));
+        return new JpqlQuery<>(type, template.query, template.parameters(terms, variables));
+    }
+
+    /**
+     * Compile the query to a native SQL statement in which every literal is a parameter. The statement is rendered
+     * once per query shape and cached.
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param dialect The dialect of the database
+     * @param select Attributes to select instead of the primary key
+     * @return The statement and its parameter values
+     */
+    public SqlQuery<T> sql(EntityManager entityManager, Dialect dialect, String... select) {
+        return sql(entityManager, dialect, null, select);
+    }
+
+    SqlQuery<T> sql(EntityManager entityManager, Dialect dialect, Map<String, ?> variables, String... select) {
+        CompiledQuery<T> split = split(variables, dialect.inLimit());
+        if (split != this)
+            return split.sql(entityManager, dialect, variables, select);
+        boolean subQuery = isSubQuery(select.length > 0);
+        Sql.Template template = DSL.natives.get(
+                Arrays.asList(entityManager.getEntityManagerFactory(), CaseInsensitivity.version()
+                        , dialect, type, shape, subQuery, flatten, Arrays.asList(select))
+                , key -> Sql.render(entityManager.getMetamodel()
+                        , dialect
+                        , type
+                        , node
+                        , terms
+                        , subQuery
+                        , flatten
+                        , select));
+        return template.bind(type, terms, variables);
+    }
+
+    /**
+     * Build the parameterized criteria query for the shape of this query
+     * @param builder The criteria builder
+     * @param variables The values bound to variables, which only determine the types of their parameters
+     * @param subQuery True to filter aggregates in a sub query
+     * @param fetch Attributes to fetch
+     * @return The template
+     */
+    private Template<T> template(CriteriaBuilder builder, Map<String, ?> variables, boolean subQuery, String... fetch) {
+        CriteriaQuery<T> query = builder.createQuery(type);
+        Root<T> root = DSL.fetch(query.from(type), fetch);
+        Parameters parameters = new Parameters();
+        DSL.restrict(new DSL<>(root, query, builder, parameters, variables, flatten), node, subQuery);
+        return new Template<>(query, terms, parameters.slots());
+    }
+
+    /**
+     * Determine if aggregates are filtered in a sub query
+     * @param grouped True if grouping the query conflicts with what it selects
+     * @return True for a sub query
+     */
+    private boolean isSubQuery(boolean grouped) {
+        return grouping == Grouping.SUB_QUERY || (grouping == Grouping.AUTO && grouped);
+    }
+
+    @Override
+    public String toString() {
+        return q;
+    }
+}
@@ -0,0 +1,16 @@
+package io.oreto.jpa.dsl;
+
+/**
+ * Converts the text of a literal in a query to the type of the attribute it is compared with
+ * @param <T> The attribute type
+ */
+@FunctionalInterface
+public interface Converter<T> {
+    /**
+     * Convert the text of a literal
+     * @param s The text, never empty
+     * @return The value
+     * @throws RuntimeException if the text is not a valid value
+     */
+    T convert(String s);
+}
@@ -0,0 +1,138 @@
+package io.oreto.jpa.dsl;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Timestamp;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Registry of the converters used to turn literals into attribute values. Converters are looked up by attribute type
+ * when a query is compiled and the converted literals are kept by the compiled query, so a literal is parsed only
+ * once and an invalid literal is rejected by {@link DSL#compile}. Literals whose attribute only the metamodel
+ * resolves are converted when the query is first bound instead.
+ * Applications can register converters for their own types or replace the built in converters.
+ * <p>
+ * Temporal attributes also accept literals relative to the current time, now, today, startOfDay, startOfWeek,
+ * startOfMonth or startOfYear followed by offsets such as -7d or +12h. They are resolved against the clock of
+ * {@link #setClock(Clock)} each time a value is bound rather than converted once.
+ */
+public final class Converters {
+    private static final Map<Class<?>, Converter<?>> converters = new ConcurrentHashMap<>();
+    // the clock relative temporal literals such as now-7d are resolved against
+    private static volatile Clock clock = Clock.systemDefaultZone();
+
+    static {
+        register(String.class, s -> s);
+        register(Boolean.class, Boolean::valueOf);
+        register(Character.class, s -> {
+            if (s.length() != 1)
+                throw new IllegalArgumentException("not a single character");
+            return s.charAt(0);
+        });
+        register(Byte.class, number(Str::toByte));
+        register(Short.class, number(Str::toShort));
+        register(Integer.class, number(Str::toInteger));
+        register(Long.class, number(Str::toLong));
+        register(Float.class, number(Str::toFloat));
+        register(Double.class, number(Str::toDouble));
+        register(BigInteger.class, BigInteger::new);
+        register(BigDecimal.class, BigDecimal::new);
+        register(UUID.class, UUID::fromString);
+        register(Instant.class, Instant::parse);
+        register(LocalDate.class, LocalDate::parse);
+        register(LocalTime.class, LocalTime::parse);
+        register(LocalDateTime.class, Converters::localDateTime);
+        register(OffsetDateTime.class, OffsetDateTime::parse);
+        register(ZonedDateTime.class, ZonedDateTime::parse);
+        register(Date.class, s -> Date.from(localDateTime(s).atZone(ZoneId.systemDefault()).toInstant()));
+        register(Timestamp.class, s -> Timestamp.valueOf(localDateTime(s)));
+        register(java.sql.Date.class, s -> java.sql.Date.valueOf(LocalDate.parse(s)));
+        register(java.sql.Time.class, s -> java.sql.Time.valueOf(LocalTime.parse(s)));
+
+        converters.put(boolean.class, converters.get(Boolean.class));
+        converters.put(char.class, converters.get(Character.class));
+        converters.put(byte.class, converters.get(Byte.class));
+        converters.put(short.class, converters.get(Short.class));
+        converters.put(int.class, converters.get(Integer.class));
+        converters.put(long.class, converters.get(Long.class));
+        converters.put(float.class, converters.get(Float.class));
+        converters.put(double.class, converters.get(Double.class));
+    }
+
+    private Converters() {}
+
+    /**
+     * Register a converter, replacing any converter already registered for the type
+     * @param type The attribute type
+     * @param converter The converter
+     * @param <T> The attribute type
+     */
+    public static <T> void register(Class<T> type, Converter<? extends T> converter) {
+        converters.put(type, converter);
+    }
+
+    /**
+     * Get the converter for a type. Enum types without a registered converter are converted by constant name.
+     * @param type The attribute type
+     * @return The converter or null if there is no converter for the type
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static Converter<?> get(Class<?> type) {
+        Converter<?> converter = converters.get(type);
+        if (converter == null && type.isEnum())
+            converter = converters.computeIfAbsent(type, t -> s -> Enum.valueOf((Class<Enum>) t, s));
+        return converter;
+    }
+
+    /**
+     * Set the clock relative temporal literals, such as purchasedOn::gt:now-7d or startOfDay-1d, are resolved
+     * against when a value is bound
+     * @param clock The clock, the system clock in the default time zone by default
+     */
+    public static void setClock(Clock clock) {
+        Converters.clock = Objects.requireNonNull(clock, "clock");
+    }
+
+    /**
+     * @return The clock relative temporal literals are resolved against
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Wrap a Str number conversion, which only accepts plain decimal numbers
+     * @param convert The conversion
+     * @param <T> The number type
+     * @return The converter
+     */
+    private static <T> Converter<T> number(Function<CharSequence, Optional<T>> convert) {
+        return s -> convert.apply(s).orElseThrow(() -> new NumberFormatException("not a number"));
+    }
+
+    /**
+     * Parse a date time, a date alone is the start of the day
+     * @param s The ISO date or date time
+     * @return The date time
+     */
+    private static LocalDateTime localDateTime(String s) {
+        return s.indexOf('T') < 0
+                ? LocalDate.parse(s, DateTimeFormatter.ISO_LOCAL_DATE).atStartOfDay()
+                : LocalDateTime.parse(s, DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    }
+}
@@ -1,21 +1,71 @@
 package io.oreto.jpa.dsl;
 
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 import javax.persistence.criteria.*;
+import javax.persistence.metamodel.ManagedType;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Stack;
 
 public class DSL<T> {
-    // Used to quote expressions
-    protected static final char QUOTE = '\'';
+    // Compiled queries keyed by entity class and query string
+    static final Cache<List<Object>, CompiledQuery<?>> queries = new Cache<>(Cache.DEFAULT_SIZE);
+    // Parameterized criteria queries keyed by entity manager factory, case insensitivity version, entity class,
+    // query shape and fetches
+    static final Cache<List<Object>, Template<?>> templates = new Cache<>(Cache.DEFAULT_SIZE);
+    // JPQL statements keyed by entity manager factory, case insensitivity version, entity class, query shape
+    // and fetches
+    static final Cache<List<Object>, Jpql.Template> statements = new Cache<>(Cache.DEFAULT_SIZE);
+    // native SQL statements keyed by entity manager factory, case insensitivity version, dialect, entity class,
+    // query shape and selection
+    static final Cache<List<Object>, Sql.Template> natives = new Cache<>(Cache.DEFAULT_SIZE);
 
+    /**
+     * Compile the query or get the already compiled query from the cache
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param <T> The entity type
+     * @return The compiled query which can be bound to any number of criteria queries
+     * @throws BadQueryException if the query is malformed
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> CompiledQuery<T> compile(Class<T> tClass, String q) {
+        return (CompiledQuery<T>) queries.get(Arrays.asList(tClass, q), key -> new CompiledQuery<>(tClass, q));
+    }
+
+    @SuppressWarnings("unchecked")
     public static <T> Predicate predicate(Root<T> root
             , CriteriaQuery<?> query
             , CriteriaBuilder criteriaBuilder
             , String q, String...fetch) {
-        return parsePredicates(predicates(new DSL<>(q, fetch(root, fetch), query, criteriaBuilder)), root, query);
+        return compile((Class<T>) root.getJavaType(), q).predicate(root, query, criteriaBuilder, fetch);
+    }
+
+    /**
+     * Bind the query to a criteria query with a grouping strategy. Pages are bound with {@link Grouping#SUB_QUERY}:
+     * the content query of a page cannot be told apart from an unpaged query, so it would be grouped while its count
+     * query filters in a sub query.
+     * @param root The root of the query
+     * @param query The criteria query
+     * @param criteriaBuilder The criteria builder
+     * @param grouping How top level aggregate terms filter the entities
+     * @param q The query string
+     * @param fetch Attributes to fetch
+     * @param <T> The entity type
+     * @return The where restriction of the query or null if it has none
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Predicate predicate(Root<T> root
+            , CriteriaQuery<?> query
+            , CriteriaBuilder criteriaBuilder
+            , Grouping grouping
+            , String q, String...fetch) {
+        return compile((Class<T>) root.getJavaType(), q).grouping(grouping)
+                .predicate(root, query, criteriaBuilder, fetch);
     }
 
     public static <T> Predicate predicate(EntityManager entityManager, Class<T> tClass, String q, String...fetch) {
@@ -38,64 +88,101 @@ public class DSL<T> {
             , Class<T> tClass
             , String q
             , String...fetch) {
-        CriteriaBuilder builder = entityManager.getCriteriaBuilder();
-        CriteriaQuery<T> query = builder.createQuery(tClass);
-        Root<T> root = query.from(tClass);
-        predicate(root, query, builder, q, fetch);
-        return query;
+        return compile(tClass, q).criteriaQuery(entityManager, fetch);
+    }
+
+    /**
+     * Create a typed query in which every literal of the query is bound to a parameter. Queries which only
+     * differ by their literals share one cached criteria query, so the provider and the JDBC driver see the same
+     * statement and only the parameter values change.
+     * @param entityManager The entity manager used to create the query
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param fetch Attributes to fetch
+     * @param <T> The entity type
+     * @return The typed query with all parameters bound
+     */
+    public static <T> TypedQuery<T> typedQuery(EntityManager entityManager
+            , Class<T> tClass
+            , String q
+            , String...fetch) {
+        return compile(tClass, q).typedQuery(entityManager, fetch);
+    }
+
+    /**
+     * Compile the query to a JPQL statement with named parameters, to be run with
+     * {@link EntityManager#createQuery(String, Class)}. Queries which only differ by their literals produce the same
+     * statement, so the provider reuses its cached query plan.
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param fetch Attributes to fetch
+     * @param <T> The entity type
+     * @return The statement and its parameter values
+     */
+    public static <T> JpqlQuery<T> jpql(EntityManager entityManager
+            , Class<T> tClass
+            , String q
+            , String...fetch) {
+        return compile(tClass, q).jpql(entityManager, fetch);
+    }
+
+    /**
+     * Compile the query to a native SQL statement which selects the primary key of the matching entities or the
+     * selected attributes. The statement is rendered once per query shape, it goes to the database without the
+     * provider translating it.
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param dialect The dialect of the database
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param select Attributes to select instead of the primary key
+     * @param <T> The entity type
+     * @return The statement and its parameter values
+     */
+    public static <T> SqlQuery<T> sql(EntityManager entityManager
+            , Dialect dialect
+            , Class<T> tClass
+            , String q
+            , String... select) {
+        return compile(tClass, q).sql(entityManager, dialect, select);
+    }
+
+    /**
+     * Prepare a query which contains bind variables such as name::istartswith:$prefix. The query is compiled once,
+     * values are bound to the returned query by name without building or parsing a new query string.
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param <T> The entity type
+     * @return The prepared query with no values bound
+     * @throws BadQueryException if the query is malformed
+     */
+    public static <T> PreparedQuery<T> prepare(Class<T> tClass, String q) {
+        return new PreparedQuery<>(compile(tClass, q));
     }
 
-    private static <T> Root<T> fetch(Root<T> root, String... fetch) {
+    /**
+     * Create a runner of the query, which sets the hints of the statements it runs, such as
+     * DSL.query(entityManager, Person.class, q).readOnly().fetchSize(500).list()
+     * @param entityManager The entity manager used to run the query
+     * @param tClass The entity class being queried
+     * @param q The query string
+     * @param <T> The entity type
+     * @return The runner with the defaults registered for the entity
+     * @throws BadQueryException if the query is malformed
+     * @see QueryRunner
+     */
+    public static <T> QueryRunner<T> query(EntityManager entityManager, Class<T> tClass, String q) {
+        return prepare(tClass, q).runner(entityManager);
+    }
+
+    static <T> Root<T> fetch(Root<T> root, String... fetch) {
         for(String s : fetch) {
             root.fetch(s);
         }
         return root;
     }
 
-    private static <T> Predicates predicates(DSL<T> dsl) {
-        Predicates predicates = new Predicates();
-        if (dsl.q == null || dsl.q.trim().equals("")) {
-            return predicates;
-        }
-        for (; dsl.i < dsl.length && !dsl.shortCircuit; dsl.i++) {
-            char c = dsl.q.charAt(dsl.i);
-            if (quotesOrEscapes(c, dsl, predicates))
-                continue;
-
-            switch (c) {
-                case '{' :
-                    dsl.openSubQuery(predicates);
-                    break;
-                case '}' :
-                    dsl.shortCircuit = true;
-                    dsl.checkExpression(predicates);
-                    break;
-                case '(':
-                    predicates = dsl.open(predicates);
-                    break;
-                case ')':
-                    if (dsl.close(predicates)) {
-                        return dsl.str.isEmpty()
-                                ? predicates
-                                : addExpression(dsl.getString(), dsl, predicates);
-                    }
-                    break;
-                case ' ':
-                    dsl.checkExpression(predicates);
-                    break;
-                default:
-                    dsl.str.add(c);
-                    checkFinal(dsl, predicates);
-                    break;
-            }
-        }
-        if (dsl.isOpen())
-            throw new BadQueryException("no matching closing paren ')'", dsl.i);
-
-        return predicates;
-    }
-
-    private static <T> Predicate parsePredicates(Predicates predicates
+    static <T> Predicate parsePredicates(Predicates predicates
             , Path<T> root
             , AbstractQuery<?> criteriaQuery) {
         if(Objects.nonNull(predicates.where))
@@ -104,270 +191,215 @@ public class DSL<T> {
             predicates.grouping.add(root);
             criteriaQuery.groupBy(predicates.groupBy()).having(predicates.having);
         }
-        return predicates.where == null ? predicates.having : predicates.where;
-    }
-
-    private static <T> boolean quotesOrEscapes(char c, DSL<T> dsl, Predicates predicates) {
-        if (c == QUOTE) {
-            if (dsl.escaped) {
-                dsl.str.add(c);
-                dsl.unescape();
-            } else {
-                dsl.toggleQuote();
-            }
-            checkFinal(dsl, predicates);
-            return true;
-        } else if (dsl.quoted) {
-            if (c == '\\' && !dsl.escaped) {
-                dsl.escape();
-            } else {
-                dsl.str.add(c);
-            }
-            return true;
-        } else if (c == '\\') {
-            dsl.escape();
-            return true;
-        } else if (dsl.collecting) {
-            if (c == ']') {
-                dsl.closeCollection();
-                checkFinal(dsl, predicates);
-            } else {
-                if (c == ',')
-                    dsl.collect();
-                else
-                    dsl.str.add(c);
-            }
-            return true;
-        } else if (c == '[') {
-            dsl.openCollection();
-            return true;
-        }
-        return false;
-    }
-
-    private static <T> void checkFinal(DSL<T> dsl
-            , Predicates predicates) {
-        if (dsl.isLast() && (dsl.str.isNotEmpty() || Str.isNotEmpty(dsl.tmp))) {
-            addExpression(dsl.getString(), dsl, predicates);
-        }
+        // the having clause is already set, callers such as Spring specifications use the result as the where clause
+        return predicates.where;
     }
 
-    protected static <T> Predicates addExpression(String s
-            , DSL<T> dsl
-            , Predicates predicates) {
-        Expression<T> expression = dsl.list == null
-                ? new Expression<>(s)
-                : new Expression<>(dsl.tmp, dsl.list);
-        Predicate p = expression.apply(dsl);
-        boolean isOr = Logical.Operator.or.name().equals(dsl.logical.peek());
-        if (expression.isAggregate()) {
-            if(isOr && !dsl.isHaving)
-                throw new BadQueryException("Cannot use OR between aggregate and normal expressions. Use collector operator instead", dsl.i);
-
-            if (expression.f1 == null && Objects.nonNull(expression.p1))
-                predicates.grouping.add(expression.p1);
-            else if (expression.f2 == null && expression.prop && Objects.nonNull(expression.p2))
-                predicates.grouping.add(expression.p2);
-
-            predicates.having = Logical.apply(predicates.having, dsl.logical, dsl.criteriaBuilder, p);
-            dsl.isHaving = true;
-        } else {
-            if(isOr && dsl.isHaving)
-                throw new BadQueryException("Cannot use OR between aggregate and normal expressions. Use collector operator instead", dsl.i);
-
-            predicates.where = Logical.apply(predicates.where, dsl.logical, dsl.criteriaBuilder, p);
-            dsl.isHaving = false;
-        }
-
-        return predicates;
+    /**
+     * Bind a query to the top level scope of a criteria query, setting its where, group by and having clauses.
+     * A query which joins a collection of the root without aggregating it is a semi join,
+     * root in (select s from Entity s join s.collection c where ...), so every entity is selected once.
+     * @param dsl The top level scope
+     * @param node The root node of the query, may be null
+     * @param subQuery True to filter aggregates with root in (select s from Entity s ... group by s having ...),
+     * leaving the query itself without grouping
+     * @return The restriction of the query or null if the query is empty
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Predicate restrict(DSL<?> dsl, Node node, boolean subQuery) {
+        if (node == null || !(node.isAggregate() ? subQuery : node.isPlural(Paths.managedType(dsl.root.getModel()))))
+            return parsePredicates(dsl.bind(node), dsl.root, dsl.query);
+        Subquery sub = dsl.query.subquery(dsl.root.getJavaType());
+        Root<?> subRoot = sub.from(dsl.root.getJavaType());
+        parsePredicates(new DSL<>(subRoot, null, sub, dsl).bind(node), subRoot, sub);
+        sub.select(subRoot);
+        Predicate in = dsl.root.in(sub);
+        dsl.query.where(in);
+        return in;
     }
 
-    protected final String q;
     protected final Path<?> root;
     protected final Path<?> parent;
     protected final AbstractQuery<?> query;
     protected final CriteriaBuilder criteriaBuilder;
-    protected final Str str = Str.empty();
-    protected final Stack<String> logical = new Stack<String>() {{ push(Logical.Operator.and.name()); }};
-    protected final Stack<String> groups = new Stack<>();
-
-    protected String tmp;
-    protected int i = 0;
-    protected int depth = 0;
-    protected final int length;
-    protected boolean quoted = false;
-    protected boolean escaped = false;
-    protected boolean collecting = false;
-    protected boolean shortCircuit = false;
-    protected boolean function = false;
-    protected List<Object> list;
-    boolean isHaving;
-
-    DSL(String q, Root<T> root, AbstractQuery<?> query, CriteriaBuilder criteriaBuilder) {
-        this.q = q;
+    // receives the parameters of literals, null to inline literals
+    protected final Parameters parameters;
+    // the values bound to the variables of the query, may be null
+    protected final Map<String, ?> variables;
+    // the joins made by the query so far
+    protected final Joins joins;
+    // true to join nested blocks in the sub query of their block, see CompiledQuery#flatten
+    protected final boolean flatten;
+
+    DSL(Root<T> root, AbstractQuery<?> query, CriteriaBuilder criteriaBuilder) {
+        this(root, query, criteriaBuilder, null, null, Node.SubQuery.FLATTEN);
+    }
+
+    DSL(Root<T> root
+            , AbstractQuery<?> query
+            , CriteriaBuilder criteriaBuilder
+            , Parameters parameters
+            , Map<String, ?> variables
+            , boolean flatten) {
         this.root = root;
         this.parent = null;
         this.query = query;
         this.criteriaBuilder = criteriaBuilder;
-        this.length = q == null ? 0 : q.length();
+        this.parameters = parameters;
+        this.variables = variables;
+        this.joins = new Joins();
+        this.flatten = flatten;
     }
 
-    DSL(String q, int i, Path<?> path, Path<?> parent, Subquery<T> query, CriteriaBuilder criteriaBuilder) {
-        this.q = q;
+    DSL(Path<?> path, Path<?> parent, AbstractQuery<?> query, DSL<?> dsl) {
         this.root = path;
         this.parent = parent;
         this.query = query;
-        this.criteriaBuilder = criteriaBuilder;
-        this.i = i;
-        this.length = q == null ? 0 : q.length();
+        this.criteriaBuilder = dsl.criteriaBuilder;
+        this.parameters = dsl.parameters;
+        this.variables = dsl.variables;
+        this.joins = dsl.joins;
+        this.flatten = dsl.flatten;
     }
 
-    protected void escape() { escaped = true; }
-    protected void unescape() { escaped = false; }
-
-    protected void toggleQuote() {
-        quoted = !quoted;
+    /**
+     * Bind a compiled node to this scope
+     * @param node The node to bind, may be null for an empty query or block
+     * @return The predicates represented by the node
+     */
+    Predicates bind(Node node) {
+        return node == null ? new Predicates() : node.bind(this);
     }
 
-    protected DSL<T> increment() {
-        i++;
-        depth++;
-        return this;
+    /**
+     * Navigate a dotted path, sharing joins with the other terms of the query
+     * @param from The path to start from
+     * @param key The dotted path of the attribute
+     * @return The path of the attribute
+     */
+    Path<?> path(Path<?> from, String key) {
+        return Paths.get(from, key, joins);
     }
 
-    protected Predicates open(Predicates predicates) {
-        if (isFunctionName()) {
-            function = true;
-            str.add('(');
-        } else {
-            groups.push("(");
-            if (logical.size() > 0 && Logical.isValid(logical.peek())) {
-                Predicates newPredicates = predicates(increment());
-                String logic = logical.pop();
-
-                if (Objects.nonNull(newPredicates.where)) {
-                    if (predicates.where == null)
-                        predicates.where = newPredicates.where;
-                    else
-                        predicates.where = Logical.apply(logic
-                                , criteriaBuilder
-                                , predicates.where
-                                , newPredicates.where);
-                }
-                if (Objects.nonNull(newPredicates.having)) {
-                    predicates.grouping.addAll(newPredicates.grouping);
-                    if (predicates.having == null)
-                        predicates.having = newPredicates.having;
-                    else
-                        predicates.having = Logical.apply(logic
-                                , criteriaBuilder
-                                , predicates.having
-                                , newPredicates.having);
-                }
-            } else {
-                predicates = predicates(increment());
-            }
-        }
-        return predicates;
+    /**
+     * Get the case insensitivity strategy of an attribute
+     * @param from The path to start from
+     * @param key The dotted path of the attribute, prefixed with + to make new joins
+     * @return The strategy
+     */
+    CaseInsensitivity caseInsensitivity(Path<?> from, String key) {
+        if (Str.isEmpty(key))
+            return CaseInsensitivity.DEFAULT;
+        String k = key.charAt(0) == Joins.INDEPENDENT ? key.substring(1) : key;
+        return CaseInsensitivity.of(Paths.route(from, k), CaseInsensitivity.DEFAULT);
     }
 
     /**
-     * Execute a DSL close parentheses operation
-     * @param predicates The predicates representing the DSL
-     * @return True if the parentheses are nested
-     * @throws BadQueryException if there is no matching parentheses
+     * Create the expression for a literal value
+     * @param expression The expression the value belongs to
+     * @param type The type of the attribute the value is compared with
+     * @param value The value
+     * @param <V> The value type
+     * @return A literal or, when literals are parameterized, a parameter expression
      */
-    protected boolean close(Predicates predicates) {
-        if (function) {
-            function = false;
-            str.add(')');
-            checkFinal(this, predicates);
-        } else {
-            if (groups.isEmpty())
-                throw new BadQueryException("no matching opening paren '('", i);
-            groups.pop();
-            if (depth == 0) {
-                checkFinal(this, predicates);
-            } else {
-                depth--;
-                return true;
-            }
-        }
-        return false;
+    @SuppressWarnings("unchecked")
+    <V> javax.persistence.criteria.Expression<V> literal(Expression<?> expression, Class<?> type, V value) {
+        return parameters == null
+                ? criteriaBuilder.literal(value)
+                : (javax.persistence.criteria.Expression<V>) parameters.add(criteriaBuilder, expression, type, value);
     }
 
-    protected boolean isOpen() {
-        return groups.size() > 0;
+    /**
+     * @return True if literal values are parameters of the query rather than literals
+     */
+    boolean isParameterized() {
+        return parameters != null;
     }
 
-    protected void openCollection() {
-        this.collecting = true;
-        this.list = new ArrayList<>();
-        this.tmp = getString();
+    /**
+     * Determine if a collector in this scope must be correlated with the parent join
+     * @return True if the scope root is a plural join of a sub query
+     */
+    boolean isCorrelatedCollector() {
+        return parent != null && Paths.isPlural(root);
     }
 
-    protected void closeCollection() {
-        this.collect();
-        this.collecting = false;
+    /**
+     * Determine if a block is bound as a join of this scope rather than as a sub query. Blocks over to-one
+     * associations and embeddables are joined unless they are negated, where exists and a join differ on null
+     * values, or have aggregates which belong to a sub query of their own.
+     * @param attribute The attribute of the block
+     * @param node The node of the block
+     * @return True if the block is joined
+     */
+    boolean isJoin(String attribute, Node node) {
+        if (joins.isNegated() || (node != null && node.isAggregate()))
+            return false;
+        ManagedType<?> type = Paths.managedType(root.getModel());
+        return type != null && Paths.single(type, attribute) != null;
     }
 
-    protected void collect() {
-        if (str.trim().isInt()) {
-            list.add(str.toInteger().orElse(0));
-        } else if (str.isNum()) {
-            list.add(str.toDouble().orElse(0.0));
-        } else {
-            if (str.startsWith("'") && str.endsWith("'"))
-                str.trim("'");
-            list.add(str.toString());
-        }
-        str.delete();
-    }
-    boolean isLast() { return i == length - 1; }
-    boolean isFunctionName() {
-        String name = str.toString().trim();
-        int i = name.lastIndexOf(':');
-        return Expression.Function.isValid(i < 0 ? name : name.substring(i + 1));
-    }
-    boolean isLogicalName() { return Logical.isValid(str.toString().trim()); }
-
-    protected void openSubQuery(Predicates predicates) {
-        if (str.endsWith(Expression.COLLECTOR_REF)) {
-            if (parent == null || root.getClass().getName().contains("SingularAttribute"))
-                collectorSubQuery(predicates);
-            else
-                collectorSubQueryJoin(predicates);
-        } else {
-            subQuery(predicates);
-        }
+    /**
+     * Bind a block over a to-one association or embeddable in a scope rooted at the joined attribute. Inside a
+     * disjunction the association is left joined and must be present for the block to match.
+     * @param attribute The attribute of the block
+     * @param node The node of the block
+     * @return The condition of the block, null if the join itself is the condition
+     */
+    protected Predicate join(String attribute, Node node) {
+        boolean toOne = Tables.isToOne(Paths.single(Paths.managedType(root.getModel()), attribute));
+        Path<?> path = toOne ? Paths.join(root, attribute, joins) : root.get(attribute);
+        Predicate where = new DSL<>(path, root, query, this).bind(node).where;
+        if (!toOne || !joins.isOptional())
+            return where;
+        Predicate present = criteriaBuilder.isNotNull(path);
+        return where == null ? present : criteriaBuilder.and(present, where);
     }
 
-    protected void collectorSubQuery(Predicates predicates) {
+    protected Predicate collectorSubQuery(List<String> keys, Node node) {
         Subquery<Integer> subQuery = query.subquery(Integer.class);
         From<?, ?> subRoot = subQuery.from(root.getJavaType());
         CriteriaBuilder cb = criteriaBuilder;
-        String[] keys = getString().split(Expression.METHOD_REF)[0].split(",");
-        javax.persistence.criteria.Expression<?>[] groups = new javax.persistence.criteria.Expression[keys.length];
-        Predicate[] correlatedPredicates = new Predicate[keys.length];
-        for (int i = 0; i < keys.length; i++) {
-            String k = keys[i].trim();
-            Path<?> subPath = Expression.toPath(subRoot, k);
-            Path<?> path = Expression.toPath(root, k);
+        javax.persistence.criteria.Expression<?>[] groups = new javax.persistence.criteria.Expression[keys.size()];
+        Predicate[] correlatedPredicates = new Predicate[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            String k = keys.get(i);
+            Path<?> subPath = path(subRoot, k);
+            Path<?> path = path(root, k);
             correlatedPredicates[i] = cb.equal(subPath, path);
             groups[i] = subPath;
         }
-        DSL<?> subDSL = new DSL<>(q, i + 1, subRoot, root, subQuery, cb);
-        Predicates subPredicates = predicates(subDSL);
+        Predicates subPredicates = new DSL<>(subRoot, root, subQuery, this).bind(node);
         subPredicates.where = subPredicates.where == null
                 ? cb.and(correlatedPredicates)
                 : cb.and(cb.and(correlatedPredicates), subPredicates.where);
         parsePredicates(subPredicates, subRoot, subQuery);
         subQuery.select(cb.literal(1)).groupBy(groups);
-        predicates.where = Logical.apply(predicates.where, logical, cb, cb.exists(subQuery));
-        i = subDSL.i;
+        return cb.exists(subQuery);
+    }
+
+    /**
+     * Bind key in (select s.key from Entity s where ... group by s.key having ...), a collector which does not
+     * depend on the row being filtered. Criteria queries have no tuple in, so collectors over several keys remain
+     * correlated sub queries.
+     * @param keys The keys grouped by the collector
+     * @param node The node of the collector
+     * @return The in predicate
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected Predicate collectorIn(List<String> keys, Node node) {
+        if (keys.size() != 1)
+            return collectorSubQuery(keys, node);
+        String key = keys.get(0);
+        Subquery subQuery = query.subquery(Object.class);
+        From<?, ?> subRoot = subQuery.from(root.getJavaType());
+        Path<?> subPath = path(subRoot, key);
+        parsePredicates(new DSL<>(subRoot, root, subQuery, this).bind(node), subRoot, subQuery);
+        subQuery.select(subPath).groupBy(subPath);
+        return path(root, key).in(subQuery);
     }
 
-    protected void collectorSubQueryJoin(Predicates predicates) {
+    protected Predicate collectorSubQueryJoin(List<String> keys, Node node) {
         Subquery<Integer> subQuery = query.subquery(Integer.class);
         From<?, ?> subRoot = parent instanceof Root
                 ? subQuery.correlate((Root<?>)parent)
@@ -375,55 +407,80 @@ public class DSL<T> {
 
         From<?, ?> join = subRoot.join(((Join<?, ?>) root).getAttribute().getName());
         CriteriaBuilder cb = criteriaBuilder;
-        String[] keys = getString().split(Expression.METHOD_REF)[0].split(",");
         List<javax.persistence.criteria.Expression<?>> groups = new ArrayList<>();
         for (String key : keys) {
-            String k = key.trim();
-            if (k.isEmpty()) continue;
-            Path<?> subPath = Expression.toPath(join, k);
+            Path<?> subPath = path(join, key);
             groups.add(subPath);
         }
-        DSL<?> subDSL = new DSL<>(q, i + 1, join, root, subQuery, cb);
-        parsePredicates(predicates(subDSL), subRoot, subQuery);
+        parsePredicates(new DSL<>(join, root, subQuery, this).bind(node), subRoot, subQuery);
         subQuery.select(cb.literal(1));
         if (!groups.isEmpty())
             subQuery.groupBy(groups);
 
-        predicates.where = Logical.apply(predicates.where, logical, cb, cb.exists(subQuery));
-        i = subDSL.i;
+        return cb.exists(subQuery);
     }
 
     @SuppressWarnings({"unchecked", "rawtypes"})
-    protected void subQuery(Predicates predicates) {
+    protected Predicate subQuery(Node.SubQuery block) {
+        String attribute = block.attribute;
         From<?, ?> subRoot;
         Subquery<?> subQuery = query.subquery(root.getJavaType());
         if (root instanceof Root) {
             subRoot = subQuery.correlate((Root<?>)root);
-        } else {
+        } else if (root instanceof Join) {
             subRoot = subQuery.correlate((Join<?, ?>)root);
+        } else {
+            throw new BadQueryException(String.format("Cannot query %s of %s in a sub query"
+                    , attribute, root.getJavaType().getSimpleName()));
+        }
+        Join join = subRoot.join(attribute);
+        Predicate top = block.isTop() ? top(block, subQuery, subRoot, join) : null;
+        Path<?> parent = root;
+        // join the nested blocks which are the only condition of their block in this sub query
+        for (Node.SubQuery nested = flatten ? block.nested() : null; nested != null; nested = nested.nested()) {
+            ManagedType<?> type = Paths.managedType(join.getModel());
+            if (type == null || Paths.single(type, nested.attribute) != null)
+                break;
+            parent = join;
+            join = join.join(nested.attribute);
+            block = nested;
         }
-        Join join = subRoot.join(getString());
-        DSL<?> subDSL = new DSL<>(q, i + 1, join, root, subQuery, criteriaBuilder);
         subQuery.select((javax.persistence.criteria.Expression)subRoot);
-        parsePredicates(predicates(subDSL), subRoot, subQuery);
-        predicates.where = Logical.apply(predicates.where, logical, criteriaBuilder, criteriaBuilder.exists(subQuery));
-        i = subDSL.i;
+        Predicates predicates = new DSL<>(join, parent, subQuery, this).bind(block.node);
+        if (top != null)
+            predicates.where = predicates.where == null ? top : criteriaBuilder.and(top, predicates.where);
+        parsePredicates(predicates, subRoot, subQuery);
+        return criteriaBuilder.exists(subQuery);
     }
 
-    protected void checkExpression(Predicates predicates) {
-        if (Objects.nonNull(list) && list.size() > 0) {
-            addExpression(getString(), this, predicates);
-            list = null;
-        } else if(str.contains(":")) {
-            addExpression(getString(), this, predicates);
-        } else if (isLogicalName()) {
-            logical.push(getString());
+    /**
+     * Restrict the elements of a top block to the first or last ones of their row. A single element is the one with
+     * order = (select max(order) ...), which an index on the foreign key and the order answers without a scan,
+     * otherwise fewer than limit elements of the same row may be ordered before the element.
+     * @param block The top block
+     * @param subQuery The sub query of the block
+     * @param subRoot The root of the sub query correlated with this scope
+     * @param join The joined elements
+     * @return The restriction
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Predicate top(Node.SubQuery block, Subquery<?> subQuery, From<?, ?> subRoot, Join<?, ?> join) {
+        javax.persistence.criteria.Expression order = path(join, block.order);
+        Subquery sub = subQuery.subquery(block.limit == 1 ? order.getJavaType() : Long.class);
+        From<?, ?> correlated = subRoot instanceof Root
+                ? sub.correlate((Root<?>) subRoot)
+                : sub.correlate((Join<?, ?>) subRoot);
+        Path<?> other = path(correlated.join(block.attribute), block.order);
+        if (block.limit == 1) {
+            sub.select(block.last
+                    ? criteriaBuilder.greatest((javax.persistence.criteria.Expression) other)
+                    : criteriaBuilder.least((javax.persistence.criteria.Expression) other));
+            return criteriaBuilder.equal(order, sub);
         }
-    }
-
-    protected String getString() {
-        String s = str.trim().toString();
-        str.delete();
-        return s;
+        sub.select(criteriaBuilder.count(other));
+        sub.where(block.last
+                ? criteriaBuilder.greaterThan((javax.persistence.criteria.Expression) other, order)
+                : criteriaBuilder.lessThan((javax.persistence.criteria.Expression) other, order));
+        return criteriaBuilder.lessThan(sub, (long) block.limit);
     }
 }
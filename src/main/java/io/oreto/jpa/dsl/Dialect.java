@@ -0,0 +1,47 @@
+package io.oreto.jpa.dsl;
+
+/**
+ * The database specific parts of the native SQL backend. Native statements and table mappings are cached per dialect,
+ * so a dialect is meant to be a singleton shared by all queries, or a value which implements equals and hashCode
+ * over everything it renders differently, as {@link H2Dialect} does. A dialect created for each query otherwise
+ * misses the caches.
+ */
+public interface Dialect {
+    /**
+     * The dialect of the criteria and JPQL backends, whose statements the JPA provider translates for the database.
+     * Only its in list limit applies to them.
+     */
+    Dialect JPA = new Dialect() {};
+
+    /**
+     * @return The naming of the tables and columns, Spring Boot's snake case naming by default
+     */
+    default Naming naming() {
+        return Naming.SNAKE_CASE;
+    }
+
+    /**
+     * Quote an identifier if the database requires it, such as a column named after a reserved word
+     * @param identifier The physical name of a table or column
+     * @return The identifier as it is written in a statement
+     */
+    default String quote(String identifier) {
+        return identifier;
+    }
+
+    /**
+     * @return How the case insensitive operators compare attributes without a registered strategy,
+     * see {@link CaseInsensitivity}
+     */
+    default CaseInsensitivity caseInsensitivity() {
+        return CaseInsensitivity.DEFAULT;
+    }
+
+    /**
+     * @return The most values of one in list, a longer list is split into in lists of at most this many values
+     * joined by or. 1000 by default, the limit of Oracle.
+     */
+    default int inLimit() {
+        return 1000;
+    }
+}
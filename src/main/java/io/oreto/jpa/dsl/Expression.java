@@ -1,286 +1,563 @@
 package io.oreto.jpa.dsl;
 
 import javax.persistence.criteria.*;
-import java.sql.Timestamp;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
 import java.util.*;
 
 public class Expression<T> {
-    static final String METHOD_REF = "::";
-    static final String COLLECTOR_REF = METHOD_REF + Operator.collect;
-
     static final String NOT = "not_";
 
-    public enum Operator {
-        eq, isnull, gt, lt, gte, lte, in
-        , contains, icontains, startswith, istartswith, endswith, iendswith
-        , collect(true);
+    /**
+     * The built in operators of a term, key::operator:value. Each operator is also the translator of its condition.
+     * Other operators are registered by name with their translator, see {@link #register}.
+     */
+    public enum Operator implements OperatorTranslator {
+        eq(Translators.EQ)
+        , isnull(Translators.ISNULL)
+        , gt(Translators.GT)
+        , lt(Translators.LT)
+        , gte(Translators.GTE)
+        , lte(Translators.LTE)
+        , in(Translators.IN)
+        , contains(Translators.CONTAINS)
+        , icontains(Translators.ICONTAINS, false, true)
+        , startswith(Translators.STARTSWITH)
+        , istartswith(Translators.ISTARTSWITH, false, true)
+        , endswith(Translators.ENDSWITH)
+        , iendswith(Translators.IENDSWITH, false, true)
+        , range(Translators.RANGE)
+        , search(Translators.SEARCH)
+        , collect(Translators.COLLECT, true, false)
+        , first(Translators.FIRST)
+        , last(Translators.LAST);
 
-        public static boolean isValid(String s) {
-            for (Operator operator : values()) {
-                if (operator.name().equals(s))
-                    return true;
+        // the registered operators by name
+        private static final Map<String, Registered> registered = new LinkedHashMap<>();
+        // the built in and registered operators, named by their string form
+        static volatile Keywords<OperatorTranslator> keywords = new Keywords<>(Arrays.asList(values()));
+
+        /**
+         * Register an operator, replacing any operator registered with the same name. Queries parsed after the
+         * registration recognize the name.
+         * @param name The name of the operator, letters, digits and underscores
+         * @param translator The translator of the operator
+         * @throws IllegalArgumentException if the name is not valid or is the name of a built in operator
+         */
+        public static void register(String name, OperatorTranslator translator) {
+            if (!isName(name) || name.startsWith(NOT))
+                throw new IllegalArgumentException("Invalid operator name: " + name);
+            if (keywords.get(name) instanceof Operator)
+                throw new IllegalArgumentException("Built in operator: " + name);
+            Registered operator = new Registered(name, Objects.requireNonNull(translator, "translator"));
+            synchronized (registered) {
+                registered.put(name, operator);
+                List<OperatorTranslator> operators = new ArrayList<>(Arrays.asList(values()));
+                operators.addAll(registered.values());
+                keywords = new Keywords<>(operators);
             }
-            return false;
         }
 
+        public static boolean isValid(String s) {
+            return keywords.contains(s);
+        }
+
+        private final OperatorTranslator translator;
         private final boolean aggregate;
+        // true if the left side is compared with the case insensitivity of the attribute
+        final boolean ignoreCase;
 
-        Operator(boolean aggregate) {
-            this.aggregate = aggregate;
+        Operator(OperatorTranslator translator) {
+            this(translator, false, false);
         }
-        Operator() {
-            this.aggregate = false;
+
+        Operator(OperatorTranslator translator, boolean aggregate, boolean ignoreCase) {
+            this.translator = translator;
+            this.aggregate = aggregate;
+            this.ignoreCase = ignoreCase;
         }
 
         public boolean isAggregate() {
             return aggregate;
         }
-    }
 
-    static Path<?> toPath(Path<?> root, String key) {
-        Path<?> path = root;
-        String field = null;
-        if (Str.isEmpty(key))
-            return path;
-        if (key.contains(".")) {
-            String[] fields = key.split("\\.");
-            key = fields[0];
-            field = fields.length > 1 ? fields[1] : null;
-        }
-        path = path.get(key);
-        String name = path.getClass().getName();
-        if (name.contains("SingularAttribute")) {
-            return field == null ? path : path.get(field);
-        }
-        if (path.getJavaType() == Map.class) {
-            path = root instanceof Root ? ((Root<?>)root).joinMap(key) : ((Join<?,?>)root).joinMap(key);
-            if ("key".equals(field)) {
-                path = ((MapJoin<?, ?, ?>) path).key();
-            } else if ("value".equals(field)) {
-                path = ((MapJoin<?, ?, ?>) path).value();
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb
+                , javax.persistence.criteria.Expression<?> left
+                , javax.persistence.criteria.Expression<?> right
+                , boolean field) {
+            return translator.toPredicate(cb, left, right, field);
+        }
+
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb
+                , javax.persistence.criteria.Expression<?> left
+                , Collection<?> values) {
+            return translator.toPredicate(cb, left, values);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            return translator.toJpql(left, right, field);
+        }
+
+        @Override
+        public String toSql(String left, String right, boolean field) {
+            return translator.toSql(left, right, field);
+        }
+
+        @Override
+        public boolean hasValue() {
+            return translator.hasValue();
+        }
+
+        @Override
+        public Class<?> valueType(Class<?> type) {
+            return translator.valueType(type);
+        }
+
+        @Override
+        public Object argument(Object value) {
+            return translator.argument(value);
+        }
+
+        /**
+         * An operator registered by name, which queries name the way they name a built in operator
+         */
+        static final class Registered implements OperatorTranslator {
+            private final String name;
+            private final OperatorTranslator translator;
+
+            Registered(String name, OperatorTranslator translator) {
+                this.name = name;
+                this.translator = translator;
+            }
+
+            @Override
+            public Predicate toPredicate(CriteriaBuilder cb
+                    , javax.persistence.criteria.Expression<?> left
+                    , javax.persistence.criteria.Expression<?> right
+                    , boolean field) {
+                return translator.toPredicate(cb, left, right, field);
+            }
+
+            @Override
+            public Predicate toPredicate(CriteriaBuilder cb
+                    , javax.persistence.criteria.Expression<?> left
+                    , Collection<?> values) {
+                return translator.toPredicate(cb, left, values);
+            }
+
+            @Override
+            public String toJpql(String left, String right, boolean field) {
+                return translator.toJpql(left, right, field);
+            }
+
+            @Override
+            public String toSql(String left, String right, boolean field) {
+                return translator.toSql(left, right, field);
+            }
+
+            @Override
+            public boolean hasValue() {
+                return translator.hasValue();
+            }
+
+            @Override
+            public Class<?> valueType(Class<?> type) {
+                return translator.valueType(type);
+            }
+
+            @Override
+            public Object argument(Object value) {
+                return translator.argument(value);
+            }
+
+            @Override
+            public String toString() {
+                return name;
             }
-        } else if (path.getJavaType() == List.class) {
-            path = root instanceof Root ? ((Root<?>)root).joinList(key) : ((Join<?,?>)root).joinList(key);
         }
-        return path;
     }
 
-    public enum Function {
-        count(true)
-        , avg(true)
-        , sum(true)
-        , max(true)
-        , min(true)
-        , greatest(true)
-        , least(true)
-        , count_distinct(true);
+    /**
+     * The built in functions applied to the key or field of a term, function(key)::operator:value. Each function is
+     * also its translator. Other functions are registered by name with their translator, see {@link #register}.
+     */
+    public enum Function implements FunctionTranslator {
+        count(Translators.COUNT)
+        , avg(Translators.AVG)
+        , sum(Translators.SUM)
+        , max(Translators.MAX)
+        , min(Translators.MIN)
+        , greatest(Translators.GREATEST)
+        , least(Translators.LEAST)
+        , count_distinct(Translators.COUNT_DISTINCT);
 
-        private final boolean aggregate;
+        // the registered functions by name
+        private static final Map<String, Registered> registered = new LinkedHashMap<>();
+        // the built in and registered functions, named by their string form
+        static volatile Keywords<FunctionTranslator> keywords = new Keywords<>(Arrays.asList(values()));
 
-        Function(boolean aggregate) {
-            this.aggregate = aggregate;
+        /**
+         * Register a function, replacing any function registered with the same name. Queries parsed after the
+         * registration recognize the name.
+         * @param name The name of the function, letters, digits and underscores
+         * @param aggregate True if the function aggregates the values of a group, such as count
+         * @param translator The translator of the function
+         * @throws IllegalArgumentException if the name is not valid or is the name of a built in function
+         */
+        public static void register(String name, boolean aggregate, FunctionTranslator translator) {
+            if (!isName(name))
+                throw new IllegalArgumentException("Invalid function name: " + name);
+            if (keywords.get(name) instanceof Function)
+                throw new IllegalArgumentException("Built in function: " + name);
+            Registered function = new Registered(name, aggregate, Objects.requireNonNull(translator, "translator"));
+            synchronized (registered) {
+                registered.put(name, function);
+                List<FunctionTranslator> functions = new ArrayList<>(Arrays.asList(values()));
+                functions.addAll(registered.values());
+                keywords = new Keywords<>(functions);
+            }
         }
 
         public static boolean isValid(String s) {
-            for (Function f : values()) {
-                if (f.name().equals(s))
-                    return true;
-            }
-            return false;
+            return keywords.contains(s);
+        }
+
+        /**
+         * @param function A built in or registered function
+         * @return True if the function aggregates the values of a group
+         */
+        static boolean isAggregate(FunctionTranslator function) {
+            return function instanceof Function
+                    ? ((Function) function).aggregate
+                    : function instanceof Registered && ((Registered) function).aggregate;
+        }
+
+        private final FunctionTranslator translator;
+        private final boolean aggregate;
+
+        Function(FunctionTranslator translator) {
+            this.translator = translator;
+            this.aggregate = true;
         }
 
         public boolean isAggregate() {
             return aggregate;
         }
-    }
 
-    String key;
-    String s;
-    Object value;
-    Operator operator;
-    boolean negate;
-    boolean prop;
-    boolean parent;
-    Function f1;
-    Function f2;
-    Path<?> p1;
-    Path<?> p2;
+        @Override
+        public javax.persistence.criteria.Expression<?> toExpression(CriteriaBuilder cb
+                , javax.persistence.criteria.Expression<?> argument) {
+            return translator.toExpression(cb, argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return translator.toJpql(argument);
+        }
 
-    Expression(String expr) {
-        this(expr, null);
-    }
+        @Override
+        public String toSql(String argument) {
+            return translator.toSql(argument);
+        }
 
-    Expression(String expr, List<Object> values) {
-        String[] parts = expr.split(":", 2);
-        key = parts[0].trim();
+        @Override
+        public Class<?> resultType(Class<?> type) {
+            return translator.resultType(type);
+        }
 
-        String accessor = key + METHOD_REF;
-        if (expr.startsWith(accessor)) {
-            String op = expr.substring(expr.indexOf(accessor) + accessor.length())
-                    .split(":", 2)[0].trim();
-            String rawOp = op;
+        /**
+         * A function registered by name, which queries name the way they name a built in function
+         */
+        static final class Registered implements FunctionTranslator {
+            private final String name;
+            private final boolean aggregate;
+            private final FunctionTranslator translator;
 
-            if (op.startsWith(NOT)) {
-                negate = true;
-                op = op.substring(op.indexOf(NOT) + NOT.length());
+            Registered(String name, boolean aggregate, FunctionTranslator translator) {
+                this.name = name;
+                this.aggregate = aggregate;
+                this.translator = translator;
             }
-            if (!Operator.isValid(op)) {
-                throw new BadQueryException("Unexpected operator: " + op);
+
+            @Override
+            public javax.persistence.criteria.Expression<?> toExpression(CriteriaBuilder cb
+                    , javax.persistence.criteria.Expression<?> argument) {
+                return translator.toExpression(cb, argument);
             }
 
-            operator = Operator.valueOf(op);
-            if (Objects.nonNull(values)) {
-                value = values;
-            } else {
-                String accessorOp = accessor + rawOp;
-                String val = expr.substring(expr.indexOf(accessorOp) + (accessorOp).length()).trim();
-                value = val.startsWith(":") ? val.substring(1) : "";
+            @Override
+            public String toJpql(String argument) {
+                return translator.toJpql(argument);
             }
-        } else {
-            operator = Operator.eq;
-            value = values == null ? parts.length > 1 ? parts[1] : true : values;
-        }
-        s = value.toString();
-
-        String funcRegex = "^[a-zA-Z_0-9]+\\(.*\\)$";
-        // check for a left function
-        if (key.matches(funcRegex)) {
-            String func = key.substring(0, key.indexOf('('));
-            f1 = toFunction(func);
-            key = key.substring(key.indexOf('(') + 1, key.indexOf(')'));
-        }
-        // check for a quote string literal
-        if (s.matches("^'.*'$")) {
-            value = s.substring(1, s.length() - 1);
-            s = value.toString();
-        }
-        // check for a function
-        else if (s.matches(funcRegex)) {
-            String func = s.substring(0, s.indexOf('('));
-            f2 = toFunction(func);
-            s = s.substring(s.indexOf('(') + 1, s.indexOf(')'));
-        }
-        if (s.startsWith("@")) {
-            // value is a non-literal and instead a field.
-            prop = true;
-            value = s.substring(1);
-            s = value.toString();
-        } else if (s.startsWith("^")) {
-            // value is a non-literal and instead a parent query field.
-            prop = true;
-            parent = true;
-            value = s.substring(1);
-            s = value.toString();
-        }
-    }
-
-    protected Function toFunction(String func) {
-        if (Function.isValid(func))
-            return Function.valueOf(func);
-        else
-            throw new BadQueryException(String.format("%s is not a valid function", func));
+
+            @Override
+            public String toSql(String argument) {
+                return translator.toSql(argument);
+            }
+
+            @Override
+            public Class<?> resultType(Class<?> type) {
+                return translator.resultType(type);
+            }
+
+            @Override
+            public String toString() {
+                return name;
+            }
+        }
+    }
+
+    private static boolean isName(String name) {
+        if (Str.isEmpty(name))
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_')
+                return false;
+        }
+        return true;
+    }
+
+    final String key;
+    final String s;
+    final Object value;
+    final OperatorTranslator operator;
+    final boolean negate;
+    final boolean prop;
+    final boolean parent;
+    final FunctionTranslator f1;
+    final FunctionTranslator f2;
+    // the name of the bind variable providing the value, null for literal values
+    final String variable;
+    // the bounds of a range, key::gte:a or key::gt:a and key::lte:b or key::lt:b, null if a side is open
+    final Expression<?> lower;
+    final Expression<?> upper;
+    // the literal when it is relative to the current time, such as now-7d, which is resolved whenever it is bound
+    private final Relative relative;
+    // the literal converted to the type of the attribute it was last compared with
+    private volatile Conversion conversion;
+
+    /**
+     * Create an expression which compares the key with a literal value
+     * @param key The path of the attribute
+     * @param f1 The function applied to the key, may be null
+     * @param operator The operator
+     * @param negate True to negate the operator
+     * @param value The literal, a string, a list of values or true
+     */
+    Expression(String key, FunctionTranslator f1, OperatorTranslator operator, boolean negate, Object value) {
+        this(key, f1, operator, negate, value, null);
+    }
+
+    /**
+     * Create an expression which compares the key with the value bound to a variable, such as name:$name
+     * @param key The path of the attribute
+     * @param f1 The function applied to the key, may be null
+     * @param operator The operator
+     * @param negate True to negate the operator
+     * @param value The text of the value
+     * @param variable The name of the variable, null if the value is a literal
+     */
+    Expression(String key
+            , FunctionTranslator f1
+            , OperatorTranslator operator
+            , boolean negate
+            , Object value
+            , String variable) {
+        this.key = key;
+        this.f1 = f1;
+        this.operator = operator;
+        this.negate = negate;
+        this.value = value;
+        this.s = value.toString();
+        this.f2 = null;
+        this.prop = false;
+        this.parent = false;
+        this.variable = variable;
+        this.lower = null;
+        this.upper = null;
+        this.relative = variable == null && value instanceof String ? Relative.parse(s) : null;
+    }
+
+    /**
+     * Create an expression which compares the key with another field
+     * @param key The path of the attribute
+     * @param f1 The function applied to the key, may be null
+     * @param operator The operator
+     * @param negate True to negate the operator
+     * @param f2 The function applied to the field, may be null
+     * @param field The path of the field
+     * @param parent True if the field belongs to the parent query
+     */
+    Expression(String key
+            , FunctionTranslator f1
+            , OperatorTranslator operator
+            , boolean negate
+            , FunctionTranslator f2
+            , String field
+            , boolean parent) {
+        this.key = key;
+        this.f1 = f1;
+        this.operator = operator;
+        this.negate = negate;
+        this.f2 = f2;
+        this.value = field;
+        this.s = field;
+        this.prop = true;
+        this.parent = parent;
+        this.variable = null;
+        this.lower = null;
+        this.upper = null;
+        this.relative = null;
+    }
+
+    /**
+     * Create an expression which compares the key with the bounds of a range, key::range:[a,b)
+     * @param key The path of the attribute
+     * @param f1 The function applied to the key, may be null
+     * @param negate True to negate the operator
+     * @param lower The lower bound, key::gte:a or key::gt:a, null to leave the lower side open
+     * @param upper The upper bound, key::lte:b or key::lt:b, null to leave the upper side open
+     */
+    Expression(String key, FunctionTranslator f1, boolean negate, Expression<?> lower, Expression<?> upper) {
+        this.key = key;
+        this.f1 = f1;
+        this.operator = Operator.range;
+        this.negate = negate;
+        this.f2 = null;
+        this.s = (lower != null && lower.operator == Operator.gte ? "[" : "(")
+                + (lower == null ? Str.EMPTY : lower.bound())
+                + ','
+                + (upper == null ? Str.EMPTY : upper.bound())
+                + (upper != null && upper.operator == Operator.lte ? "]" : ")");
+        this.value = s;
+        this.prop = false;
+        this.parent = false;
+        this.variable = null;
+        this.lower = lower;
+        this.upper = upper;
+        this.relative = null;
+    }
+
+    private Expression(Expression<?> expression, OperatorTranslator operator, boolean negate) {
+        this.key = expression.key;
+        this.f1 = expression.f1;
+        this.operator = operator;
+        this.negate = negate;
+        this.f2 = expression.f2;
+        this.value = expression.value;
+        this.s = expression.s;
+        this.prop = expression.prop;
+        this.parent = expression.parent;
+        this.variable = expression.variable;
+        this.lower = expression.lower;
+        this.upper = expression.upper;
+        this.relative = expression.relative;
+    }
+
+    /**
+     * Copy this expression with another operator
+     * @param operator The operator
+     * @param negate True to negate the operator
+     * @return The new expression
+     */
+    Expression<T> with(OperatorTranslator operator, boolean negate) {
+        return new Expression<>(this, operator, negate);
+    }
+
+    /**
+     * Add the expressions providing the values of this expression, the bounds of a range or the expression itself
+     * @param terms Receives the expressions
+     */
+    void terms(List<Expression<?>> terms) {
+        if (operator != Operator.range) {
+            terms.add(this);
+            return;
+        }
+        if (lower != null)
+            terms.add(lower);
+        if (upper != null)
+            terms.add(upper);
+    }
+
+    private String bound() {
+        return variable == null ? s : '$' + variable;
     }
 
     protected boolean isAggregate() {
-        boolean f1Aggregate = Objects.nonNull(f1) && f1.isAggregate();
-        boolean f2Aggregate = Objects.nonNull(f2) && f2.isAggregate();
+        boolean f1Aggregate = Objects.nonNull(f1) && Function.isAggregate(f1);
+        boolean f2Aggregate = Objects.nonNull(f2) && Function.isAggregate(f2);
         return f1Aggregate || f2Aggregate;
     }
 
+    /**
+     * Determine if the expression navigates a collection of the root of its scope
+     * @param type The managed type of the root
+     * @return True if the key or the compared field joins a collection
+     */
+    boolean isPlural(ManagedType<?> type) {
+        return isPlural(type, key) || (prop && !parent && isPlural(type, s));
+    }
+
+    private static boolean isPlural(ManagedType<?> type, String key) {
+        if (Str.isEmpty(key))
+            return false;
+        String path = key.charAt(0) == Joins.INDEPENDENT ? key.substring(1) : key;
+        return Paths.route(type, path).isPlural();
+    }
+
+    /**
+     * Build the predicate for this expression. The expression itself is never modified so that it can be
+     * applied to any number of queries.
+     * @param dsl The scope holding the root, query and criteria builder
+     * @param predicates Receives the grouping paths of aggregate expressions
+     * @return The predicate
+     */
     @SuppressWarnings({"unchecked", "rawtypes"})
-    protected Predicate apply(DSL<T> dsl) {
+    protected Predicate apply(DSL<?> dsl, Predicates predicates) {
         Path<?> root = dsl.root;
         CriteriaBuilder cb = dsl.criteriaBuilder;
         Predicate predicate;
         try {
-            p1 = toPath(root, key);
-            if (!prop) setValue(p1);
-            if (prop) p2 = toPath(parent ? dsl.parent : root, s);
-            else p2 = null;
+            if (operator == Operator.search) {
+                predicate = search(dsl);
+                return negate ? cb.not(predicate) : predicate;
+            }
+            // each side of a comparison of two fields is compared the way its own attribute is
+            Path<?> from2 = parent ? dsl.parent : root;
+            CaseInsensitivity ci = isCaseInsensitive() ? dsl.caseInsensitivity(root, key) : null;
+            CaseInsensitivity ci2 = isCaseInsensitive() && prop ? dsl.caseInsensitivity(from2, s) : null;
+            Path<?> p1 = dsl.path(root, ci == null ? key : ci.key(key));
+            Path<?> p2 = prop ? dsl.path(from2, ci2 == null ? s : ci2.key(s)) : null;
+            if (isAggregate()) {
+                if (f1 == null)
+                    predicates.grouping.add(p1);
+                else if (f2 == null && prop)
+                    predicates.grouping.add(p2);
+            }
 
             javax.persistence.criteria.Expression exp1 = f1 == null ? p1 : applyFunction(f1, p1, cb);
             javax.persistence.criteria.Expression exp2 = f2 == null ? p2 : applyFunction(f2, p2, cb);
+            if (ci != null && ci.upper)
+                exp1 = cb.upper(exp1);
+            if (ci2 != null && ci2.upper)
+                exp2 = cb.upper(exp2);
 
-            switch (operator) {
-                case eq:
-                    predicate = prop
-                            ? cb.equal(exp1, exp2)
-                            : cb.equal(exp1, value);
-                    break;
-                case lt:
-                    if (prop)
-                        predicate = cb.lt(exp1, exp2);
-                    else
-                        predicate = value instanceof Comparable
-                                ? cb.lessThan(exp1, (Comparable) value)
-                                : cb.lessThan(exp1, s);
-                    break;
-                case lte:
-                    if (prop)
-                        predicate = cb.lessThanOrEqualTo(exp1, exp2);
-                    else
-                        predicate = value instanceof Comparable
-                                ? cb.lessThanOrEqualTo(exp1, (Comparable) value)
-                                : cb.lessThanOrEqualTo(exp1, s);
-                    break;
-                case gt:
-                    if (prop)
-                        predicate = cb.gt(exp1, exp2);
-                    else
-                        predicate = value instanceof Comparable
-                                ? cb.greaterThan(exp1, (Comparable) value)
-                                : cb.greaterThan(exp1, s);
-                    break;
-                case gte:
-                    if (prop)
-                        predicate = cb.greaterThanOrEqualTo(exp1, exp2);
-                    else
-                        predicate = value instanceof Comparable
-                                ? cb.greaterThanOrEqualTo(exp1, (Comparable) value)
-                                : cb.greaterThanOrEqualTo(exp1, s);
-                    break;
-                case isnull:
-                    predicate = cb.isNull(exp1);
-                    break;
-                case in:
-                    predicate = exp1.in((Collection<?>) value);
-                    break;
-                case contains:
-                    predicate = prop
-                            ? cb.like(exp1, cb.concat("%", cb.concat(exp2, "%")))
-                            : cb.like(exp1, String.format("%%%s%%", s));
-                    break;
-                case icontains:
-                    predicate = prop
-                            ? cb.like(cb.upper(exp1), cb.concat("%", cb.concat(cb.upper(exp2), "%")))
-                            : cb.like(cb.upper(exp1), String.format("%%%s%%", s.toUpperCase()));
-                    break;
-                case startswith:
-                    predicate = prop
-                            ? cb.like(exp1, cb.concat(exp2, "%"))
-                            : cb.like(exp1, String.format("%s%%", s));
-                    break;
-                case istartswith:
-                    predicate = prop
-                            ? cb.like(cb.upper(exp1), cb.concat(cb.upper(exp2), "%"))
-                            : cb.like(cb.upper(exp1), String.format("%s%%", s.toUpperCase()));
-                    break;
-                case endswith:
-                    predicate = prop
-                            ? cb.like(exp1, cb.concat("%", exp2))
-                            : cb.like(exp1, String.format("%%%s", s));
-                    break;
-                case iendswith:
-                    predicate = prop
-                            ? cb.like(cb.upper(exp1), cb.concat("%", cb.upper(exp2)))
-                            : cb.like(cb.upper(exp1), String.format("%%%s", s.toUpperCase()));
-                    break;
-                default:
-                    throw new BadQueryException("Unexpected operator: " + operator.name());
+            Class<?> type = valueType(p1.getJavaType());
+            Object value = prop || !operator.hasValue() || operator == Operator.range
+                    ? null
+                    : argument(type, dsl.variables);
+            if (operator == Operator.range) {
+                predicate = range(dsl, exp1, type);
+            } else if (value instanceof Collection && !dsl.isParameterized()) {
+                predicate = operator.toPredicate(cb, exp1, (Collection<?>) value);
+            } else {
+                if (value != null)
+                    exp2 = dsl.literal(this, type, value);
+                predicate = operator.toPredicate(cb, exp1, exp2, prop);
             }
         } catch (IllegalArgumentException e) {
             throw new BadQueryException("Invalid attribute: " + e.getMessage());
@@ -290,63 +567,454 @@ public class Expression<T> {
         return negate ? cb.not(predicate) : predicate;
     }
 
-    protected void setValue(Path<?> path) {
+    /**
+     * Build the predicate of a search, the id of the entity in the ids found by the full text index of the attribute
+     */
+    private Predicate search(DSL<?> dsl) {
+        EntityType<?> entity = searched(Paths.managedType(dsl.root.getModel()));
+        Path<?> id = dsl.path(dsl.root, searchedId(entity));
+        Object ids = argument(entity.getJavaType(), dsl.variables);
+        return dsl.isParameterized()
+                ? operator.toPredicate(dsl.criteriaBuilder, id, dsl.literal(this, entity.getJavaType(), ids), false)
+                : operator.toPredicate(dsl.criteriaBuilder, id, (Collection<?>) ids);
+    }
+
+    /**
+     * Build the predicate of a range, a between predicate if both bounds are included
+     */
+    private Predicate range(DSL<?> dsl, javax.persistence.criteria.Expression<?> exp1, Class<?> type) {
+        CriteriaBuilder cb = dsl.criteriaBuilder;
+        javax.persistence.criteria.Expression<?> low = lower == null
+                ? null
+                : dsl.literal(lower, type, lower.argument(type, dsl.variables));
+        javax.persistence.criteria.Expression<?> high = upper == null
+                ? null
+                : dsl.literal(upper, type, upper.argument(type, dsl.variables));
+        if (low != null && high != null && lower.operator == Operator.gte && upper.operator == Operator.lte)
+            return Translators.between(cb, exp1, low, high);
+        if (high == null)
+            return lower.operator.toPredicate(cb, exp1, low, false);
+        if (low == null)
+            return upper.operator.toPredicate(cb, exp1, high, false);
+        return cb.and(lower.operator.toPredicate(cb, exp1, low, false)
+                , upper.operator.toPredicate(cb, exp1, high, false));
+    }
+
+    /**
+     * Render the JPQL condition for this expression, the counterpart of {@link #apply}
+     * @param jpql The scope holding the root and the parameters
+     * @param clauses Receives the grouping paths of aggregate expressions
+     * @return The condition
+     */
+    protected String render(Jpql jpql, Jpql.Clauses clauses) {
+        if (operator == Operator.search) {
+            String condition = search(jpql);
+            return negate ? "not (" + condition + ')' : condition;
+        }
+        Jpql.Alias from2 = parent ? jpql.parent : jpql.root;
+        CaseInsensitivity ci = isCaseInsensitive() ? jpql.caseInsensitivity(jpql.root, key) : null;
+        CaseInsensitivity ci2 = isCaseInsensitive() && prop ? jpql.caseInsensitivity(from2, s) : null;
+        Jpql.Ref p1 = jpql.path(jpql.root, ci == null ? key : ci.key(key));
+        Jpql.Ref p2 = prop ? jpql.path(from2, ci2 == null ? s : ci2.key(s)) : null;
+        if (isAggregate()) {
+            if (f1 == null)
+                clauses.grouping.add(p1.path);
+            else if (f2 == null && prop)
+                clauses.grouping.add(p2.path);
+        }
+
+        String exp1 = f1 == null ? p1.path : renderFunction(jpql, f1, p1.path);
+        String exp2 = prop ? (f2 == null ? p2.path : renderFunction(jpql, f2, p2.path)) : null;
+        if (ci != null && ci.upper)
+            exp1 = "upper(" + exp1 + ')';
+        if (ci2 != null && ci2.upper)
+            exp2 = "upper(" + exp2 + ')';
+        Class<?> type = valueType(p1.javaType);
+        if (operator == Operator.range) {
+            String condition = range(jpql, exp1, type, p1);
+            return negate ? "not (" + condition + ')' : condition;
+        }
+        if (!prop && operator.hasValue() && (variable != null || argument(type) != null))
+            exp2 = jpql.parameter(this, type, p1);
+        if (exp2 == null && operator.hasValue() && operator != Operator.eq)
+            throw new BadQueryException(String.format("%s::%s requires a value", key, operator));
+
+        String condition = jpql.condition(operator, exp1, exp2, prop);
+        return negate ? "not (" + condition + ')' : condition;
+    }
+
+    /**
+     * Render the condition of a search, the id of the entity in the ids found by the full text index of the attribute
+     */
+    private String search(Jpql jpql) {
+        EntityType<?> entity = searched(jpql.root.type);
+        Jpql.Ref id = jpql.path(jpql.root, searchedId(entity));
+        return jpql.condition(operator, id.path, jpql.parameter(this, entity.getJavaType(), id), false);
+    }
+
+    /**
+     * Get the entity the attribute of a search belongs to, the entity whose ids the full text index returns
+     * @param type The managed type of the root of the scope
+     * @return The entity
+     * @throws BadQueryException if the search is not over a text or the attribute does not belong to an entity
+     * with a single id
+     */
+    private EntityType<?> searched(ManagedType<?> type) {
+        if (f1 != null || prop || (variable == null && Str.EMPTY.equals(s)))
+            throw new BadQueryException(String.format("%s::search requires a text", key));
+        String k = key.charAt(0) == Joins.INDEPENDENT ? key.substring(1) : key;
+        int i = k.lastIndexOf('.');
+        ManagedType<?> owner = type == null || i < 0 ? type : Paths.managedType(type, k.substring(0, i));
+        if (!(owner instanceof EntityType) || Jpql.id((EntityType<?>) owner) == null)
+            throw new BadQueryException(String.format("%s::search requires an attribute of an entity with a single id"
+                    , key));
+        Paths.managedType(owner, searchedAttribute());
+        return (EntityType<?>) owner;
+    }
+
+    /**
+     * @return The name of the attribute of a search
+     */
+    private String searchedAttribute() {
+        int i = key.lastIndexOf('.');
+        return i < 0 && key.charAt(0) == Joins.INDEPENDENT ? key.substring(1) : key.substring(i + 1);
+    }
+
+    /**
+     * @param entity The entity the attribute of a search belongs to
+     * @return The key of the id of the entity
+     */
+    private String searchedId(EntityType<?> entity) {
+        return key.substring(0, key.lastIndexOf('.') + 1) + Jpql.id(entity);
+    }
+
+    /**
+     * Render the condition of a range, between if both bounds are included
+     */
+    private String range(Jpql jpql, String exp1, Class<?> type, Jpql.Ref p1) {
+        String low = lower == null ? null : jpql.parameter(lower, type, p1);
+        String high = upper == null ? null : jpql.parameter(upper, type, p1);
+        if (low != null && high != null && lower.operator == Operator.gte && upper.operator == Operator.lte)
+            return exp1 + " between " + low + " and " + high;
+        if (high == null)
+            return jpql.condition(lower.operator, exp1, low, false);
+        if (low == null)
+            return jpql.condition(upper.operator, exp1, high, false);
+        return '(' + jpql.condition(lower.operator, exp1, low, false)
+                + " and " + jpql.condition(upper.operator, exp1, high, false) + ')';
+    }
+
+    /**
+     * The type of values compared with the left side of the expression
+     * @param type The type of the key
+     * @return The type of the key or the result type of the function applied to it
+     */
+    protected Class<?> valueType(Class<?> type) {
+        return f1 == null ? type : f1.resultType(type);
+    }
+
+    /**
+     * The literal value of this expression as the operator uses it, converted to the value type of the operator
+     * and prepared by its translator, such as a like pattern for the string operators
+     * @param type The type of the attribute
+     * @return The value, null for an empty literal
+     */
+    protected Object argument(Class<?> type) {
+        return operator.argument(toValue(operator.valueType(type)));
+    }
+
+    /**
+     * The value of this expression as the operator uses it, either the literal or the value bound to the variable
+     * of the expression. Bound values must already have the type of the attribute, except the numbers and strings
+     * of a collection bound to an in list which are converted, so ids bound as integers match a Long id.
+     * In lists are padded to a power of two by repeating their last value, so lists of similar sizes render the
+     * same statement. The value of a search is the ids found by the full text index of its attribute.
+     * @param type The type of the attribute, the entity the attribute belongs to for a search
+     * @param variables The values bound to variables, may be null
+     * @return The value, null for an empty literal
+     * @throws BadQueryException if no value or a value of the wrong type is bound to the variable
+     */
+    protected Object argument(Class<?> type, Map<String, ?> variables) {
+        return argument(type, variables, Dialect.JPA.inLimit());
+    }
+
+    /**
+     * The value of this expression as the operator uses it
+     * @param type The type of the attribute, the entity the attribute belongs to for a search
+     * @param variables The values bound to variables, may be null
+     * @param limit The most values of one in list, in lists are not padded beyond it
+     * @return The value, null for an empty literal
+     * @throws BadQueryException if no value or a value of the wrong type is bound to the variable
+     * @see #argument(Class, Map)
+     */
+    protected Object argument(Class<?> type, Map<String, ?> variables, int limit) {
+        if (operator == Operator.search)
+            return pad(FullText.search(type, searchedAttribute(), text(variables)), limit);
+        if (variable == null) {
+            Object argument = argument(type);
+            return operator == Operator.in && argument instanceof Collection
+                    ? pad((Collection<?>) argument, limit)
+                    : argument;
+        }
+        Object value = variables == null ? null : variables.get(variable);
+        if (value == null)
+            throw new BadQueryException(String.format("No value bound to $%s", variable));
+        if (operator == Operator.in) {
+            if (!(value instanceof Collection))
+                throw new BadQueryException(String.format("$%s must be bound to a collection", variable));
+            Class<?> boxed = box(type);
+            List<Object> values = new ArrayList<>(((Collection<?>) value).size());
+            for (Object item : (Collection<?>) value) {
+                if (item instanceof Number || item instanceof CharSequence) {
+                    if (!boxed.isInstance(item))
+                        item = convert(type, item.toString());
+                } else {
+                    check(item, boxed);
+                }
+                values.add(item);
+            }
+            return pad(values, limit);
+        }
+        check(value, box(operator.valueType(type)));
+        return operator.argument(value);
+    }
+
+    /**
+     * @param variables The values bound to variables, may be null
+     * @return The text searched for by a search, the literal or the text bound to the variable
+     */
+    private String text(Map<String, ?> variables) {
+        if (variable == null)
+            return s;
+        Object value = variables == null ? null : variables.get(variable);
+        if (!(value instanceof CharSequence))
+            throw new BadQueryException(String.format("$%s must be bound to a text", variable));
+        return value.toString();
+    }
+
+    /**
+     * Pad the values of an in list to the next power of two by repeating the last value, up to the limit of
+     * an in list
+     * @param values The values
+     * @param limit The most values of one in list
+     * @return The padded values
+     */
+    static Collection<?> pad(Collection<?> values, int limit) {
+        int size = values.size();
+        if (size < 3 || size >= limit || Integer.bitCount(size) == 1)
+            return values;
+        int padded = Math.min(Integer.highestOneBit(size) << 1, limit);
+        List<Object> list = new ArrayList<>(padded);
+        list.addAll(values);
+        Object last = list.get(size - 1);
+        while (list.size() < padded)
+            list.add(last);
+        return list;
+    }
+
+    /**
+     * The type of the parameter which receives the value of this expression
+     * @param type The type of the attribute
+     * @param value The value
+     * @return The parameter type
+     */
+    protected Class<?> parameterType(Class<?> type, Object value) {
         if (value instanceof Collection)
+            return Collection.class;
+        return variable == null ? value.getClass() : box(operator.valueType(type));
+    }
+
+    /**
+     * @return True if the operator ignores case, see {@link CaseInsensitivity}
+     */
+    protected boolean isCaseInsensitive() {
+        return operator instanceof Operator && ((Operator) operator).ignoreCase;
+    }
+
+    private void check(Object value, Class<?> type) {
+        if (value == null || !type.isInstance(value))
+            throw new BadQueryException(String.format("$%s must be bound to %s but was %s"
+                    , variable, type.getSimpleName(), value == null ? null : value.getClass().getSimpleName()));
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive())
+            return type;
+        if (type == int.class)
+            return Integer.class;
+        if (type == long.class)
+            return Long.class;
+        if (type == double.class)
+            return Double.class;
+        if (type == float.class)
+            return Float.class;
+        if (type == short.class)
+            return Short.class;
+        if (type == byte.class)
+            return Byte.class;
+        if (type == char.class)
+            return Character.class;
+        return Boolean.class;
+    }
+
+    /**
+     * Write the shape of this expression, the expression with its literal value left out. Expressions with the
+     * same shape only differ by the values bound to their parameters.
+     * @param sb Receives the shape
+     */
+    protected void shape(StringBuilder sb) {
+        if (f1 == null)
+            sb.append(key);
+        else
+            sb.append(f1).append('(').append(key).append(')');
+        sb.append("::");
+        if (negate)
+            sb.append(NOT);
+        sb.append(operator).append(':');
+        if (prop) {
+            sb.append(parent ? '^' : '@');
+            if (f2 == null)
+                sb.append(s);
+            else
+                sb.append(f2).append('(').append(s).append(')');
+        } else if (operator == Operator.range) {
+            sb.append(s.charAt(0));
+            if (lower != null)
+                sb.append(lower.variable == null ? "?" : '$' + lower.variable);
+            sb.append(',');
+            if (upper != null)
+                sb.append(upper.variable == null ? "?" : '$' + upper.variable);
+            sb.append(s.charAt(s.length() - 1));
+        } else if (variable != null) {
+            sb.append('$').append(variable);
+        } else if (value instanceof Collection) {
+            sb.append("[?]");
+        } else if (!Str.EMPTY.equals(s)) {
+            sb.append('?');
+        }
+    }
+
+    /**
+     * @return True if the literal is relative to the current time, such as now-7d
+     */
+    boolean isRelative() {
+        return relative != null;
+    }
+
+    /**
+     * Convert the literal value of this expression to a type. The converted value is kept, so the literal is only
+     * converted again if the expression is compared with an attribute of a different type. A literal relative to
+     * the current time is resolved each time instead.
+     * @param type The type of the attribute the value is compared with
+     * @return The converted value
+     * @throws BadQueryException if the literal is not a valid value or there is no converter for the type
+     */
+    protected Object toValue(Class<?> type) {
+        if (!(value instanceof Collection) && Str.EMPTY.equals(s))
+            return null;
+        if (relative != null) {
+            Object time = relative.resolve(type);
+            if (time != null)
+                return time;
+        }
+        Conversion conversion = this.conversion;
+        if (conversion == null || conversion.type != type) {
+            conversion = new Conversion(type, value instanceof Collection ? convertAll(type) : convert(type, s));
+            this.conversion = conversion;
+        }
+        return conversion.value;
+    }
+
+    /**
+     * Convert the literal of this expression to the type of its attribute when the query is compiled, so a literal
+     * which is not a valid value is rejected before the query is bound
+     * @param attribute The type of the attribute, null if it is only known once the query is bound
+     * @throws BadQueryException if the literal is not a valid value or there is no converter for the type
+     */
+    void resolve(Class<?> attribute) {
+        if (attribute == null || prop || variable != null || operator == Operator.search || !operator.hasValue())
             return;
-        if (Str.EMPTY.equals(s))
-            value = null;
-        else if (path.getJavaType() == Boolean.class) {
-            value = Boolean.valueOf(s);
-        } else if (path.getJavaType() == LocalDate.class) {
-            value = LocalDate.parse(s);
-        } else if (path.getJavaType() == LocalDateTime.class) {
-            value = LocalDateTime.parse(s);
-        } else if (path.getJavaType() == Date.class || path.getJavaType() == Timestamp.class) {
-            try {
-                value = SimpleDateFormat.getTimeInstance().parse(s);
-            } catch (ParseException e) {
-                throw new BadQueryException(String.format("Bad date format %s: %s", value, e.getMessage()));
-            }
-        } else if (path.getJavaType() == Long.class) {
-            value = Str.toLong(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));;
-        } else if (path.getJavaType() == Integer.class) {
-            value = Str.toInteger(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));;
-        } else if (path.getJavaType() == Short.class) {
-            value = Str.toShort(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));;
-        } else if (path.getJavaType() == Float.class) {
-            value = Str.toFloat(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));;
-        } else if (path.getJavaType() == Byte.class) {
-            value = Str.toByte(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));;
-        } else if (path.getJavaType() == Double.class) {
-            value = Str.toDouble(s)
-                    .orElseThrow(() -> new BadQueryException(String.format("%s:%s is not a number", key, value)));
+        argument(valueType(attribute));
+    }
+
+    /**
+     * Check a value bound to the variable of this expression when it is bound, converting a text or a number to
+     * the type the operator compares, and the texts and numbers of a collection bound to an in list
+     * @param attribute The type of the attribute
+     * @param value The value
+     * @return The converted value
+     * @throws BadQueryException if the value is not a valid value
+     */
+    Object bind(Class<?> attribute, Object value) {
+        if (operator == Operator.search) {
+            if (!(value instanceof CharSequence))
+                throw new BadQueryException(String.format("$%s must be bound to a text", variable));
+            return value;
         }
+        Class<?> type = valueType(attribute);
+        if (operator == Operator.in) {
+            if (!(value instanceof Collection))
+                throw new BadQueryException(String.format("$%s must be bound to a collection", variable));
+            Class<?> boxed = box(type);
+            List<Object> values = new ArrayList<>(((Collection<?>) value).size());
+            for (Object item : (Collection<?>) value)
+                values.add(bound(type, boxed, item));
+            return Collections.unmodifiableList(values);
+        }
+        Class<?> valueType = operator.valueType(type);
+        return bound(valueType, box(valueType), value);
     }
 
-    @SuppressWarnings({"unchecked", "rawtypes"})
-    protected javax.persistence.criteria.Expression<?> applyFunction(Function function, Path path, CriteriaBuilder cb) {
-        if (function == Function.count) {
-            return cb.count(path);
-        } else if (function == Function.avg) {
-            return cb.avg(path);
-        } else if (function == Function.sum) {
-            return cb.sum(path);
-        } else if (function == Function.max) {
-            return cb.max(path);
-        } else if (function == Function.min) {
-            return cb.min(path);
-        } else if (function == Function.greatest) {
-            return cb.greatest(path);
-        } else if (function == Function.least) {
-            return cb.least(path);
-        } else if (function == Function.count_distinct) {
-            return cb.countDistinct(path);
-        }
-        return cb.count(path);
+    private Object bound(Class<?> type, Class<?> boxed, Object value) {
+        if (boxed.isInstance(value))
+            return value;
+        if (value instanceof Number || value instanceof CharSequence)
+            return convert(type, value.toString());
+        check(value, boxed);
+        return value;
+    }
+
+    /**
+     * Convert the items of a list literal, which the parser keeps as they are written, to the type of the attribute
+     */
+    private List<Object> convertAll(Class<?> type) {
+        Class<?> boxed = box(type);
+        List<Object> values = new ArrayList<>();
+        for (Object item : (Collection<?>) value)
+            values.add(boxed.isInstance(item) ? item : convert(type, item.toString()));
+        return Collections.unmodifiableList(values);
+    }
+
+    private Object convert(Class<?> type, String s) {
+        Converter<?> converter = Converters.get(type);
+        if (converter == null)
+            throw new BadQueryException(String.format("%s:%s cannot be converted, no converter for %s", key, s, type.getName()));
+        try {
+            return converter.convert(s);
+        } catch (RuntimeException e) {
+            throw new BadQueryException(String.format("%s:%s is not a valid %s: %s"
+                    , key, s, type.getSimpleName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * A literal converted to the type of an attribute
+     */
+    private static class Conversion {
+        final Class<?> type;
+        final Object value;
+
+        Conversion(Class<?> type, Object value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+
+    protected javax.persistence.criteria.Expression<?> applyFunction(FunctionTranslator function, Path<?> path, CriteriaBuilder cb) {
+        return function.toExpression(cb, path);
+    }
+
+    protected String renderFunction(Jpql jpql, FunctionTranslator function, String path) {
+        return jpql.function(function, path);
     }
 }
@@ -0,0 +1,47 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The full text indexes of the attributes searched by the search operator, see {@link FullTextIndex}. The index of
+ * an attribute is searched each time a query is bound, so the ids always reflect the current state of the index.
+ */
+public final class FullText {
+    private FullText() {}
+
+    // indexes keyed by entity class and attribute name
+    private static final Map<List<Object>, FullTextIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Register the index of an attribute, replacing any index already registered for it
+     * @param type The entity class the attribute belongs to
+     * @param attribute The name of the attribute
+     * @param index The index
+     */
+    public static void register(Class<?> type, String attribute, FullTextIndex index) {
+        if (Str.isEmpty(attribute))
+            throw new IllegalArgumentException("attribute required");
+        indexes.put(Arrays.asList(type, attribute), index);
+    }
+
+    /**
+     * Search the index of an attribute, the index registered for the entity class or one of its super classes
+     * @param type The entity class the attribute belongs to
+     * @param attribute The name of the attribute
+     * @param text The text searched for
+     * @return The ids of the matching entities
+     * @throws BadQueryException if no index is registered for the attribute
+     */
+    static Collection<?> search(Class<?> type, String attribute, String text) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            FullTextIndex index = indexes.get(Arrays.asList(c, attribute));
+            if (index != null)
+                return index.search(type, attribute, text);
+        }
+        throw new BadQueryException(String.format("No full text index for %s of %s", attribute, type.getSimpleName()));
+    }
+}
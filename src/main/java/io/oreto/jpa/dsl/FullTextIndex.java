@@ -0,0 +1,24 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Collection;
+
+/**
+ * A full text index searched by the search operator, name::search:'red wine'. Unlike icontains, which compares
+ * every row with a like pattern, the index looks the words up and returns the ids of the entities which match. The
+ * query compares them with id in (...), so a search combines with the other conditions of the query.
+ * <p>
+ * Indexes are registered for the attributes they search with {@link FullText#register}. {@link H2FullText} searches
+ * the native full text index of H2, other implementations may search the full text index of another database or an
+ * index kept by the application.
+ */
+@FunctionalInterface
+public interface FullTextIndex {
+    /**
+     * Search an attribute
+     * @param type The entity class the attribute belongs to
+     * @param attribute The name of the attribute
+     * @param text The text searched for
+     * @return The ids of the matching entities, of the type of the id attribute of the entity
+     */
+    Collection<?> search(Class<?> type, String attribute, String text);
+}
@@ -0,0 +1,43 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+
+/**
+ * Translates a function applied to a key or field, function(key)::operator:value, for each backend. The built in
+ * functions are translators as well, applications register their own with
+ * {@link io.oreto.jpa.dsl.Expression.Function#register}.
+ */
+public interface FunctionTranslator {
+    /**
+     * Build the criteria expression
+     * @param cb The criteria builder
+     * @param argument The path the function is applied to
+     * @return The expression
+     */
+    Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument);
+
+    /**
+     * Render the JPQL expression
+     * @param argument The path the function is applied to
+     * @return The expression
+     */
+    String toJpql(String argument);
+
+    /**
+     * Render the native SQL expression, the JPQL expression by default
+     * @param argument The column the function is applied to
+     * @return The expression
+     */
+    default String toSql(String argument) {
+        return toJpql(argument);
+    }
+
+    /**
+     * @param type The type of the argument
+     * @return The type of the result, the type of the argument by default
+     */
+    default Class<?> resultType(Class<?> type) {
+        return type;
+    }
+}
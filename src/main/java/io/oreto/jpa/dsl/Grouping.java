@@ -0,0 +1,22 @@
+package io.oreto.jpa.dsl;
+
+/**
+ * How aggregate terms of the top level of a query, such as count(orders)::gt:1, filter the entities
+ */
+public enum Grouping {
+    /**
+     * A sub query when the query fetches attributes, is a count query or selects columns other than the primary key,
+     * otherwise group by. The content query of a page looks like any other query, so pages use {@link #SUB_QUERY}.
+     */
+    AUTO
+    /**
+     * Group the query by the entity, select ... group by e having count(o) > 1. Fetched attributes and count queries
+     * conflict with the grouping.
+     */
+    , GROUP_BY
+    /**
+     * Filter the entities with a grouped sub query, select ... where e in (select s ... group by s having count(o) > 1),
+     * so the query itself remains a plain select
+     */
+    , SUB_QUERY
+}
@@ -0,0 +1,69 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Dialect of the H2 database. Dialects with the same class, naming, case insensitivity and in list limit are equal,
+ * so they share the cached statements and table mappings.
+ */
+public class H2Dialect implements Dialect {
+    // the keywords which cannot be used as unquoted identifiers in H2 2.x
+    private static final Set<String> keywords = new HashSet<>(Arrays.asList(
+            "ALL", "AND", "ANY", "ARRAY", "AS", "ASYMMETRIC", "AUTHORIZATION", "BETWEEN", "BOTH", "CASE", "CAST"
+            , "CHECK", "CONSTRAINT", "CROSS", "CURRENT_CATALOG", "CURRENT_DATE", "CURRENT_PATH", "CURRENT_ROLE"
+            , "CURRENT_SCHEMA", "CURRENT_TIME", "CURRENT_TIMESTAMP", "CURRENT_USER", "DAY", "DEFAULT", "DISTINCT"
+            , "ELSE", "END", "EXCEPT", "EXISTS", "FALSE", "FETCH", "FOR", "FOREIGN", "FROM", "FULL", "GROUP", "GROUPS"
+            , "HAVING", "HOUR", "IF", "ILIKE", "IN", "INNER", "INTERSECT", "INTERVAL", "IS", "JOIN", "KEY", "LEADING"
+            , "LEFT", "LIKE", "LIMIT", "LOCALTIME", "LOCALTIMESTAMP", "MINUS", "MINUTE", "MONTH", "NATURAL", "NOT"
+            , "NULL", "OFFSET", "ON", "OR", "ORDER", "OVER", "PARTITION", "PRIMARY", "QUALIFY", "RANGE", "REGEXP"
+            , "RIGHT", "ROW", "ROWNUM", "ROWS", "SECOND", "SELECT", "SESSION_USER", "SET", "SOME", "SYMMETRIC"
+            , "SYSTEM_USER", "TABLE", "TO", "TOP", "TRAILING", "TRUE", "UESCAPE", "UNION", "UNIQUE", "UNKNOWN"
+            , "USER", "USING", "VALUE", "VALUES", "WHEN", "WHERE", "WINDOW", "WITH", "YEAR", "_ROWID_"));
+
+    private final Naming naming;
+
+    public H2Dialect() {
+        this(Naming.SNAKE_CASE);
+    }
+
+    public H2Dialect(Naming naming) {
+        this.naming = naming;
+    }
+
+    @Override
+    public Naming naming() {
+        return naming;
+    }
+
+    /**
+     * Quote keywords. H2 stores unquoted identifiers in upper case, so quoted identifiers are upper case as well.
+     * @param identifier The physical name of a table or column
+     * @return The identifier as it is written in a statement
+     */
+    @Override
+    public String quote(String identifier) {
+        String name = identifier.toUpperCase(Locale.ROOT);
+        return keywords.contains(name) ? '"' + name + '"' : identifier;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (o == null || getClass() != o.getClass())
+            return false;
+        H2Dialect dialect = (H2Dialect) o;
+        return Objects.equals(naming(), dialect.naming())
+                && Objects.equals(caseInsensitivity(), dialect.caseInsensitivity())
+                && inLimit() == dialect.inLimit();
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getClass(), naming(), caseInsensitivity(), inLimit());
+    }
+}
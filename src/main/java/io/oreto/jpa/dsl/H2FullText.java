@@ -0,0 +1,146 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.Metamodel;
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The native full text search of H2, FT_SEARCH_DATA. H2 keeps one index per table and does not tell which column
+ * matched, so an attribute can only be searched while it is the only indexed column of its table.
+ */
+public class H2FullText implements FullTextIndex {
+    private final DataSource dataSource;
+    private final Metamodel metamodel;
+    private final Tables tables;
+
+    public H2FullText(DataSource dataSource, Metamodel metamodel) {
+        this(dataSource, metamodel, new H2Dialect());
+    }
+
+    public H2FullText(DataSource dataSource, Metamodel metamodel, Dialect dialect) {
+        this.dataSource = dataSource;
+        this.metamodel = metamodel;
+        this.tables = new Tables(dialect);
+    }
+
+    /**
+     * Index the columns of attributes of an entity, replacing the index of its table, and register this index for
+     * the attributes. The full text search of the database is initialized if it was not already. An index of more than
+     * one attribute cannot be searched by one of them alone.
+     * @param type The entity class
+     * @param attributes The names of the attributes
+     * @return This index
+     * @throws IllegalStateException if the index cannot be created
+     */
+    public H2FullText index(Class<?> type, String... attributes) {
+        EntityType<?> entity = metamodel.entity(type);
+        List<String> columns = new ArrayList<>();
+        for (String attribute : attributes)
+            columns.add(name(tables.column(entity.getAttribute(attribute))));
+
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create alias if not exists FT_INIT for 'org.h2.fulltext.FullText.init'");
+                statement.execute("call FT_INIT()");
+            }
+            try (PreparedStatement drop = connection.prepareStatement("call FT_DROP_INDEX(?, ?)");
+                 PreparedStatement create = connection.prepareStatement("call FT_CREATE_INDEX(?, ?, ?)")) {
+                drop.setString(1, connection.getSchema());
+                drop.setString(2, table(entity));
+                drop.execute();
+                create.setString(1, connection.getSchema());
+                create.setString(2, table(entity));
+                create.setString(3, String.join(",", columns));
+                create.execute();
+            }
+            if (!connection.getAutoCommit())
+                connection.commit();
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot create the full text index of " + type.getSimpleName(), e);
+        }
+        for (String attribute : attributes)
+            FullText.register(type, attribute, this);
+        return this;
+    }
+
+    /**
+     * Search the rows of an entity by the index of its table
+     * @param type The entity class
+     * @param attribute The name of the attribute
+     * @param text The words to find
+     * @return The ids of the matching rows
+     * @throws BadQueryException if the column of the attribute is not the only column of the index
+     */
+    @Override
+    public Collection<?> search(Class<?> type, String attribute, String text) {
+        EntityType<?> entity = metamodel.entity(type);
+        Class<?> idType = entity.getIdType().getJavaType();
+        String table = table(entity);
+        String column = name(tables.column(entity.getAttribute(attribute)));
+        List<Object> ids = new ArrayList<>();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "select KEYS from FT_SEARCH_DATA(?, 0, 0) where \"SCHEMA\" = ? and \"TABLE\" = ?")) {
+            String columns = columns(connection, table);
+            if (columns == null || !columns.equals("*") && !Arrays.asList(columns.split(",")).contains(column))
+                throw new BadQueryException(String.format("%s of %s is not indexed", attribute, type.getSimpleName()));
+            if (!columns.equals(column))
+                throw new BadQueryException(String.format("Cannot search %s of %s alone, the index of %s covers %s"
+                        , attribute, type.getSimpleName(), table, columns));
+            statement.setString(1, text);
+            statement.setString(2, connection.getSchema());
+            statement.setString(3, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    Object[] keys = (Object[]) resultSet.getArray(1).getArray();
+                    ids.add(id(idType, keys[0]));
+                }
+            }
+        } catch (SQLException e) {
+            throw new BadQueryException(String.format("Cannot search %s of %s: %s"
+                    , attribute, type.getSimpleName(), e.getMessage()));
+        }
+        return ids;
+    }
+
+    // the upper case indexed columns of a table separated by commas, * for all the columns, or null without an index
+    private static String columns(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "select COLUMNS from FT.INDEXES where \"SCHEMA\" = ? and \"TABLE\" = ?")) {
+            statement.setString(1, connection.getSchema());
+            statement.setString(2, table);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next())
+                    return null;
+                String columns = resultSet.getString(1);
+                return Str.isBlank(columns) ? "*" : columns.replace(" ", Str.EMPTY).toUpperCase(Locale.ROOT);
+            }
+        }
+    }
+
+    private String table(EntityType<?> entity) {
+        return name(tables.table(entity));
+    }
+
+    // the full text search stores unquoted upper case names
+    private static String name(String identifier) {
+        return identifier.replace("\"", Str.EMPTY).toUpperCase(Locale.ROOT);
+    }
+
+    private static Object id(Class<?> type, Object key) {
+        if (type.isInstance(key))
+            return key;
+        Converter<?> converter = Converters.get(type);
+        return converter == null ? key : converter.convert(key.toString());
+    }
+}
@@ -0,0 +1,159 @@
+package io.oreto.jpa.dsl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Tracks the joins made while one query is translated so that terms navigating the same collection share one
+ * join instead of each adding another join to the statement.
+ * <p>
+ * A join is reused unless it is already constrained by a term with the same key in the same conjunction, so
+ * nickNames:a or nickNames:b and attributes.key:type and attributes.value:forged use one join each while
+ * nickNames:a and nickNames:b still requires two different nick names. Prefixing a key with + always makes
+ * new joins, +nickNames:a.
+ * <p>
+ * Joins of to-one associations never multiply rows, so every term navigating the same association shares one
+ * join. They are inner joins unless the term is inside a disjunction or negation, where an inner join would drop
+ * the rows matched by the other alternatives and a left join is made instead.
+ */
+class Joins {
+    static final char INDEPENDENT = '+';
+
+    // joins by the path they start from and attribute name
+    private final Map<Object, Map<String, List<Object>>> joins = new HashMap<>();
+    // the keys of terms which constrain a join
+    private final List<Claim> claims = new ArrayList<>();
+    // to-one joins by the path they start from, attribute name and join type
+    private final Map<List<Object>, Object> singles = new HashMap<>();
+    // the number of disjunctions and negations enclosing the term being translated
+    private int optional;
+    // the number of negations enclosing the term being translated
+    private int negated;
+
+    /**
+     * Get a join for a term, reusing an earlier join of the same attribute when the term does not conflict with it.
+     * Joins are any objects which identify a join, criteria joins or the aliases of a JPQL query.
+     * @param from The path the join starts from
+     * @param attribute The attribute name
+     * @param key The key of the term
+     * @param join Makes a new join
+     * @param <J> The join type
+     * @return The join
+     */
+    @SuppressWarnings("unchecked")
+    <J> J join(Object from, String attribute, String key, Supplier<? extends J> join) {
+        List<Object> list = joins.computeIfAbsent(from, k -> new HashMap<>())
+                .computeIfAbsent(attribute, k -> new ArrayList<>(1));
+        for (Object existing : list) {
+            if (!isClaimed(existing, key)) {
+                claims.add(new Claim(existing, key));
+                return (J) existing;
+            }
+        }
+        J created = join.get();
+        list.add(created);
+        claims.add(new Claim(created, key));
+        return created;
+    }
+
+    /**
+     * Get the join of a to-one association, shared by all terms which need the same join type
+     * @param from The path the join starts from
+     * @param attribute The attribute name
+     * @param join Makes a new join, left when {@link #isOptional()} is true
+     * @param <J> The join type
+     * @return The join
+     */
+    @SuppressWarnings("unchecked")
+    <J> J single(Object from, String attribute, Supplier<? extends J> join) {
+        return (J) singles.computeIfAbsent(Arrays.asList(from, attribute, optional > 0), k -> join.get());
+    }
+
+    /**
+     * Enter the children of a junction
+     * @param operator The operator of the junction
+     */
+    void enter(Logical.Operator operator) {
+        if (operator != Logical.Operator.and)
+            optional++;
+        if (operator == Logical.Operator.not)
+            negated++;
+    }
+
+    /**
+     * Leave the children of a junction entered before
+     * @param operator The operator of the junction
+     */
+    void exit(Logical.Operator operator) {
+        if (operator != Logical.Operator.and)
+            optional--;
+        if (operator == Logical.Operator.not)
+            negated--;
+    }
+
+    /**
+     * @return True if the term being translated is inside a disjunction or negation, so its to-one joins must keep
+     * the rows without an associated entity
+     */
+    boolean isOptional() {
+        return optional > 0;
+    }
+
+    /**
+     * @return True if the term being translated is inside a negation
+     */
+    boolean isNegated() {
+        return negated > 0;
+    }
+
+    /**
+     * @return A mark of the claims made so far
+     */
+    int mark() {
+        return claims.size();
+    }
+
+    /**
+     * Remove the claims made since a mark, used between the alternatives of a disjunction which may share joins
+     * @param mark The mark
+     * @return The removed claims
+     */
+    List<Claim> release(int mark) {
+        List<Claim> released = new ArrayList<>(claims.subList(mark, claims.size()));
+        claims.subList(mark, claims.size()).clear();
+        return released;
+    }
+
+    /**
+     * Add claims released earlier
+     * @param claims The claims
+     */
+    void claim(List<Claim> claims) {
+        this.claims.addAll(claims);
+    }
+
+    private boolean isClaimed(Object join, String key) {
+        for (Claim claim : claims) {
+            if (claim.join == join && claim.key.equals(key))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A join constrained by the term with the key
+     */
+    static class Claim {
+        final Object join;
+        final String key;
+
+        Claim(Object join, String key) {
+            this.join = join;
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,727 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EnumType;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Translation scope of the text backends, the counterpart of {@link DSL} for criteria queries. Nodes render
+ * themselves into query text in which every value is a parameter, so every query of one shape renders to the same
+ * string and shares the query plan cached by the provider or the database. The context decides the language,
+ * JPQL over entities or native SQL over tables.
+ */
+final class Jpql {
+    // the parameter of the ids loaded by an expanded query
+    static final String ID = "ids";
+
+    /**
+     * Render a compiled query
+     * @param metamodel The metamodel of the persistence unit
+     * @param type The entity class
+     * @param node The root node of the query, may be null
+     * @param terms The expressions of the query in query order
+     * @param subQuery True to filter aggregates in a sub query
+     * @param flatten True to join nested blocks in the sub query of their block
+     * @param fetch Attributes to fetch
+     * @return The JPQL statement and the expressions providing its parameters
+     */
+    static Template render(Metamodel metamodel
+            , Class<?> type
+            , Node node
+            , List<Expression<?>> terms
+            , boolean subQuery
+            , boolean flatten
+            , String... fetch) {
+        Context context = new EntityContext(flatten);
+        Select select = new Select();
+        Alias root = context.root(select, metamodel.entity(type));
+        for (String f : fetch)
+            select.from.append(" join fetch ").append(root.name).append('.').append(f);
+        Clauses clauses = restrict(context, root, node, subQuery);
+        String query = select.render("select " + root.name, clauses, null);
+        return new Template(query, terms, context.expressions, context.types, Dialect.JPA.inLimit());
+    }
+
+    /**
+     * Render a query selecting the primary key of the entities matching a node, aggregates are filtered in a sub query
+     * @param metamodel The metamodel of the persistence unit
+     * @param type The entity class, which must have a single id attribute
+     * @param node The node
+     * @param terms The expressions of the node in query order
+     * @param flatten True to join nested blocks in the sub query of their block
+     * @return The JPQL statement and the expressions providing its parameters
+     */
+    static Template ids(Metamodel metamodel, Class<?> type, Node node, List<Expression<?>> terms, boolean flatten) {
+        Context context = new EntityContext(flatten);
+        Select select = new Select();
+        EntityType<?> entity = metamodel.entity(type);
+        Alias root = context.root(select, entity);
+        Clauses clauses = restrict(context, root, node, true);
+        String query = select.render("select " + root.name + '.' + id(entity), clauses, null);
+        return new Template(query, terms, context.expressions, context.types, Dialect.JPA.inLimit());
+    }
+
+    /**
+     * Render select e0 from Entity e0 join fetch ... where e0.id in :ids
+     * @param metamodel The metamodel of the persistence unit
+     * @param type The entity class, which must have a single id attribute
+     * @param fetch Attributes to fetch
+     * @return The JPQL statement with the ids parameter
+     */
+    static String load(Metamodel metamodel, Class<?> type, String... fetch) {
+        EntityType<?> entity = metamodel.entity(type);
+        StringBuilder sb = new StringBuilder(fetch.length == 0 ? "select e0 from " : "select distinct e0 from ")
+                .append(entity.getName()).append(" e0");
+        for (String f : fetch)
+            sb.append(" join fetch e0.").append(f);
+        return sb.append(" where e0.").append(id(entity)).append(" in :").append(ID).toString();
+    }
+
+    /**
+     * @param entity The entity
+     * @return The name of the single id attribute of the entity, null if the entity has a composite id
+     */
+    static String id(EntityType<?> entity) {
+        if (!entity.hasSingleIdAttribute())
+            return null;
+        for (Attribute<?, ?> attribute : entity.getAttributes()) {
+            if (attribute instanceof SingularAttribute && ((SingularAttribute<?, ?>) attribute).isId())
+                return attribute.getName();
+        }
+        return null;
+    }
+
+    /**
+     * Render the clauses of the top level of a query, a semi join when the query joins a collection of the root
+     * without aggregating it, see {@link DSL#restrict(DSL, Node, boolean)}
+     * @param context The context of the query
+     * @param root The root alias of the query
+     * @param node The root node of the query, may be null
+     * @param subQuery True to filter aggregates with root in (select s from Entity s ... group by s having ...)
+     * @return The clauses
+     */
+    static Clauses restrict(Context context, Alias root, Node node, boolean subQuery) {
+        if (node == null || !(node.isAggregate() ? subQuery : node.isPlural(root.type)))
+            return new Jpql(context, root, null).bind(node);
+        Select sub = new Select();
+        Alias subRoot = context.root(sub, (EntityType<?>) root.type);
+        Clauses grouped = new Jpql(context, subRoot, null).bind(node);
+        // a composite primary key is compared as a tuple
+        String identity = root.select.identity;
+        Clauses clauses = new Clauses();
+        clauses.where = (identity.indexOf(',') < 0 ? identity : '(' + identity + ')')
+                + " in (" + sub.render("select " + sub.identity, grouped, null) + ')';
+        return clauses;
+    }
+
+    private final Context context;
+    // the path the terms of this scope start from
+    final Alias root;
+    // the root of the enclosing scope, null at the top level
+    final Alias parent;
+
+    Jpql(Context context, Alias root, Alias parent) {
+        this.context = context;
+        this.root = root;
+        this.parent = parent;
+    }
+
+    /**
+     * Render a compiled node in this scope
+     * @param node The node to render, may be null for an empty query or block
+     * @return The clauses represented by the node
+     */
+    Clauses bind(Node node) {
+        return node == null ? new Clauses() : node.render(this);
+    }
+
+    Joins joins() {
+        return context.joins;
+    }
+
+    /**
+     * Render a dotted path, sharing joins with the other terms of the query
+     * @param from The path to start from
+     * @param key The dotted path of the attribute, prefixed with + to make new joins
+     * @return The path expression and its type
+     */
+    Ref path(Alias from, String key) {
+        if (Str.isEmpty(key))
+            return context.path(from);
+        boolean independent = key.charAt(0) == Joins.INDEPENDENT;
+        String k = independent ? key.substring(1) : key;
+        if (from.type == null)
+            throw new BadQueryException(String.format("Invalid attribute: %s has no attribute %s", from.javaType, k));
+        return context.path(from, Paths.route(from.type, k), k, independent);
+    }
+
+    /**
+     * Render the condition of an operator in the language of the context
+     * @param translator The translator of the operator
+     * @param left The left side
+     * @param right The right side, null if the expression has no value
+     * @param field True if the right side is a field rather than a value
+     * @return The condition
+     */
+    String condition(OperatorTranslator translator, String left, String right, boolean field) {
+        return context.condition(translator, left, right, field);
+    }
+
+    /**
+     * Render a function in the language of the context
+     * @param translator The translator of the function
+     * @param argument The path the function is applied to
+     * @return The expression
+     */
+    String function(FunctionTranslator translator, String argument) {
+        return context.function(translator, argument);
+    }
+
+    /**
+     * Get the case insensitivity strategy of an attribute
+     * @param from The alias to start from
+     * @param key The dotted path of the attribute, prefixed with + to make new joins
+     * @return The strategy
+     */
+    CaseInsensitivity caseInsensitivity(Alias from, String key) {
+        if (Str.isEmpty(key))
+            return context.caseInsensitivity();
+        String k = key.charAt(0) == Joins.INDEPENDENT ? key.substring(1) : key;
+        if (from.type == null)
+            throw new BadQueryException(String.format("Invalid attribute: %s has no attribute %s", from.javaType, k));
+        return CaseInsensitivity.of(Paths.route(from.type, k), context.caseInsensitivity());
+    }
+
+    /**
+     * Add a parameter for the value of an expression
+     * @param expression The expression the value belongs to
+     * @param type The type of the attribute the value is compared with
+     * @param ref The path the value is compared with
+     * @return The parameter reference
+     */
+    String parameter(Expression<?> expression, Class<?> type, Ref ref) {
+        context.expressions.add(expression);
+        context.types.add(type);
+        context.enumTypes.add(ref.enumType);
+        return context.parameter(context.expressions.size());
+    }
+
+    /**
+     * Determine if a collector in this scope must be correlated with the parent join
+     * @return True if the scope root is a plural join of a sub query
+     */
+    boolean isCorrelatedCollector() {
+        return parent != null && root.plural;
+    }
+
+    /**
+     * Determine if a block is rendered as a join of this scope rather than as a sub query, see
+     * {@link DSL#isJoin(String, Node)}
+     * @param attribute The attribute of the block
+     * @param node The node of the block
+     * @return True if the block is joined
+     */
+    boolean isJoin(String attribute, Node node) {
+        if (joins().isNegated() || (node != null && node.isAggregate()))
+            return false;
+        return root.type != null && Paths.single(root.type, attribute) != null;
+    }
+
+    /**
+     * Render a block over a to-one association or embeddable in a scope rooted at the joined attribute
+     * @param attribute The attribute of the block
+     * @param node The node of the block
+     * @return The condition of the block, null if the join itself is the condition
+     */
+    String join(String attribute, Node node) {
+        Attribute<?, ?> single = Paths.single(root.type, attribute);
+        Alias alias = context.single(root, single);
+        String where = new Jpql(context, alias, root).bind(node).where;
+        if (!Tables.isToOne(single) || !joins().isOptional())
+            return where;
+        String present = context.path(alias).path + " is not null";
+        return where == null ? present : '(' + present + " and " + where + ')';
+    }
+
+    /**
+     * Render exists (select 1 from Entity s join s.attribute j where s = root ...), nested blocks which are the only
+     * condition of their block are joined in the same sub query
+     * @param block The block
+     * @return The exists condition
+     */
+    String subQuery(Node.SubQuery block) {
+        Select sub = new Select();
+        Alias join = context.correlate(sub, root, block.attribute);
+        String top = block.isTop() ? top(block, join) : null;
+        Alias parent = root;
+        for (Node.SubQuery nested = context.flatten ? block.nested() : null; nested != null; nested = nested.nested()) {
+            if (join.type == null || Paths.single(join.type, nested.attribute) != null)
+                break;
+            parent = join;
+            join = context.join(join, nested.attribute);
+            block = nested;
+        }
+        Clauses clauses = new Jpql(context, join, parent).bind(block.node);
+        if (top != null)
+            clauses.where = clauses.where == null ? top : top + " and " + clauses.where;
+        return "exists (" + sub.render("select 1", clauses, null) + ')';
+    }
+
+    /**
+     * Render the restriction of a top block, j.order = (select max(t.order) from Entity s join s.attribute t
+     * where s = root) for a single element, otherwise (select count(t.order) ... and t.order > j.order) &lt; limit
+     * @param block The top block
+     * @param join The joined elements
+     * @return The restriction
+     */
+    private String top(Node.SubQuery block, Alias join) {
+        String order = path(join, block.order).path;
+        Select sub = new Select();
+        String other = path(context.correlate(sub, root, block.attribute), block.order).path;
+        if (block.limit == 1)
+            return order + " = (" + sub.render((block.last ? "select max(" : "select min(") + other + ')'
+                    , new Clauses(), null) + ')';
+        sub.conditions.add(other + (block.last ? " > " : " < ") + order);
+        return "(" + sub.render("select count(" + other + ')', new Clauses(), null) + ") < " + block.limit;
+    }
+
+    /**
+     * Render exists (select 1 from Entity s where s.key = root.key ... group by s.key having ...)
+     * @param keys The keys grouped by the collector
+     * @param node The node of the collector
+     * @return The exists condition
+     */
+    String collectorSubQuery(List<String> keys, Node node) {
+        if (!(root.type instanceof EntityType))
+            throw new BadQueryException(String.format("Cannot query %s in a sub query, it is not an entity"
+                    , root.javaType.getSimpleName()));
+        Select sub = new Select();
+        Alias subRoot = context.root(sub, (EntityType<?>) root.type);
+        Jpql scope = new Jpql(context, subRoot, root);
+        List<String> groups = new ArrayList<>();
+        for (String key : keys) {
+            String subPath = scope.path(subRoot, key).path;
+            sub.conditions.add(subPath + " = " + path(root, key).path);
+            groups.add(subPath);
+        }
+        Clauses clauses = scope.bind(node);
+        return "exists (" + sub.render("select 1", clauses, groups) + ')';
+    }
+
+    /**
+     * Render key in (select s.key from Entity s where ... group by s.key having ...), a collector which does not
+     * depend on the row being filtered. Several keys are compared as a tuple where the language has tuples,
+     * otherwise the collector remains a correlated sub query.
+     * @param keys The keys grouped by the collector
+     * @param node The node of the collector
+     * @return The in condition
+     */
+    String collectorIn(List<String> keys, Node node) {
+        if (keys.size() != 1 && !context.hasTuples())
+            return collectorSubQuery(keys, node);
+        if (!(root.type instanceof EntityType))
+            throw new BadQueryException(String.format("Cannot query %s in a sub query, it is not an entity"
+                    , root.javaType.getSimpleName()));
+        Select sub = new Select();
+        Alias subRoot = context.root(sub, (EntityType<?>) root.type);
+        Jpql scope = new Jpql(context, subRoot, root);
+        List<String> paths = new ArrayList<>();
+        List<String> groups = new ArrayList<>();
+        for (String key : keys) {
+            paths.add(path(root, key).path);
+            groups.add(scope.path(subRoot, key).path);
+        }
+        Clauses clauses = scope.bind(node);
+        String select = sub.render("select " + String.join(", ", groups), clauses, groups);
+        return keys.size() == 1
+                ? paths.get(0) + " in (" + select + ')'
+                : '(' + String.join(", ", paths) + ") in (" + select + ')';
+    }
+
+    /**
+     * Render exists (select 1 from Parent s join s.attribute j where s = parent ... group by j.key having ...)
+     * @param keys The keys grouped by the collector
+     * @param node The node of the collector
+     * @return The exists condition
+     */
+    String collectorSubQueryJoin(List<String> keys, Node node) {
+        Select sub = new Select();
+        Alias join = context.correlate(sub, parent, root.attribute);
+        Jpql scope = new Jpql(context, join, root);
+        List<String> groups = new ArrayList<>();
+        for (String key : keys)
+            groups.add(scope.path(join, key).path);
+        Clauses clauses = scope.bind(node);
+        return "exists (" + sub.render("select 1", clauses, groups) + ')';
+    }
+
+    /**
+     * Everything shared by the scopes of one translation. The context renders the from clauses and paths of one
+     * query language.
+     */
+    abstract static class Context {
+        final Joins joins = new Joins();
+        // the expression and attribute type of each parameter
+        final List<Expression<?>> expressions = new ArrayList<>();
+        final List<Class<?>> types = new ArrayList<>();
+        final List<EnumType> enumTypes = new ArrayList<>();
+        // true to join nested blocks in the sub query of their block
+        final boolean flatten;
+        private int aliases;
+
+        Context(boolean flatten) {
+            this.flatten = flatten;
+        }
+
+        String alias() {
+            return "e" + aliases++;
+        }
+
+        /**
+         * Start the from clause of a select with an entity
+         * @param select The select
+         * @param entity The entity
+         * @return The alias of the entity, which is also the identity of the select
+         */
+        abstract Alias root(Select select, EntityType<?> entity);
+
+        /**
+         * Start the from clause of a sub query with a join of an attribute of an alias of the enclosing query.
+         * The correlation is added to the conditions of the sub query.
+         * @param select The sub query
+         * @param outer The alias of the enclosing query
+         * @param attribute The joined attribute
+         * @return The alias of the join
+         */
+        abstract Alias correlate(Select select, Alias outer, String attribute);
+
+        /**
+         * Make a new join of a collection of an alias
+         * @param from The alias
+         * @param attribute The joined attribute
+         * @return The alias of the join
+         */
+        abstract Alias join(Alias from, String attribute);
+
+        /**
+         * Join a to-one association of an alias, sharing the join with the other terms of the query, or navigate to
+         * an embeddable of the alias
+         * @param from The alias
+         * @param attribute The association or embedded attribute
+         * @return The alias of the join or embeddable
+         */
+        abstract Alias single(Alias from, Attribute<?, ?> attribute);
+
+        /**
+         * Render the alias itself as a path
+         * @param alias The alias
+         * @return The path
+         */
+        abstract Ref path(Alias alias);
+
+        /**
+         * Render a route, sharing joins with the other terms of the query
+         * @param from The alias to start from
+         * @param route The route
+         * @param key The key of the term
+         * @param independent True to make new joins
+         * @return The path
+         */
+        abstract Ref path(Alias from, Paths.Route route, String key, boolean independent);
+
+        /**
+         * @return True if the language compares tuples, (a, b) in (select ...)
+         */
+        boolean hasTuples() {
+            return false;
+        }
+
+        /**
+         * @return The case insensitivity strategy of attributes without a registered strategy
+         */
+        CaseInsensitivity caseInsensitivity() {
+            return CaseInsensitivity.DEFAULT;
+        }
+
+        /**
+         * Render the condition of an operator, JPQL by default
+         */
+        String condition(OperatorTranslator translator, String left, String right, boolean field) {
+            return translator.toJpql(left, right, field);
+        }
+
+        /**
+         * Render a function, JPQL by default
+         */
+        String function(FunctionTranslator translator, String argument) {
+            return translator.toJpql(argument);
+        }
+
+        /**
+         * @param n The number of the parameter starting with 1
+         * @return The parameter reference
+         */
+        abstract String parameter(int n);
+    }
+
+    /**
+     * Renders JPQL
+     */
+    static final class EntityContext extends Context {
+        EntityContext(boolean flatten) {
+            super(flatten);
+        }
+
+        @Override
+        Alias root(Select select, EntityType<?> entity) {
+            Alias alias = new Alias(alias(), entity, entity.getJavaType(), null, false, select);
+            select.from.append(entity.getName()).append(' ').append(alias.name);
+            select.identity = alias.name;
+            return alias;
+        }
+
+        @Override
+        Alias correlate(Select select, Alias outer, String attribute) {
+            if (!(outer.type instanceof EntityType))
+                throw new BadQueryException(String.format("Cannot query %s in a sub query, it is not an entity"
+                        , outer.javaType.getSimpleName()));
+            Alias root = root(select, (EntityType<?>) outer.type);
+            select.conditions.add(root.name + " = " + outer.name);
+            return join(root, attribute);
+        }
+
+        @Override
+        Alias join(Alias from, String attribute) {
+            Attribute<?, ?> a;
+            try {
+                a = from.type.getAttribute(attribute);
+            } catch (IllegalArgumentException e) {
+                throw new BadQueryException(String.format("Invalid attribute: %s of %s"
+                        , attribute, from.javaType.getSimpleName()));
+            }
+            Bindable<?> bindable = (Bindable<?>) a;
+            return new Alias(join(from.select, from.name, attribute, false)
+                    , Paths.managedType(bindable)
+                    , bindable.getBindableJavaType()
+                    , attribute
+                    , a.isCollection()
+                    , from.select);
+        }
+
+        @Override
+        Alias single(Alias from, Attribute<?, ?> attribute) {
+            String name = attribute.getName();
+            boolean left = joins.isOptional();
+            String path = Tables.isToOne(attribute)
+                    ? joins.single(from.name, name, () -> join(from.select, from.name, name, left))
+                    : from.name + '.' + name;
+            Bindable<?> bindable = (Bindable<?>) attribute;
+            return new Alias(path, Paths.managedType(bindable), bindable.getBindableJavaType(), name, false, from.select);
+        }
+
+        @Override
+        Ref path(Alias alias) {
+            return new Ref(alias.name, alias.javaType);
+        }
+
+        @Override
+        Ref path(Alias from, Paths.Route route, String key, boolean independent) {
+            String path = from.name;
+            for (int i = 0; i < route.size(); i++) {
+                String name = route.name(i);
+                switch (route.step(i)) {
+                    case get:
+                        path = path + '.' + name;
+                        break;
+                    case joinOne:
+                        String owner = path;
+                        boolean left = joins.isOptional();
+                        path = joins.single(owner, name, () -> join(from.select, owner, name, left));
+                        break;
+                    case join:
+                    case joinMap:
+                        String parent = path;
+                        path = independent
+                                ? join(from.select, parent, name, false)
+                                : joins.join(parent, name, key, () -> join(from.select, parent, name, false));
+                        break;
+                    case key:
+                        path = "key(" + path + ')';
+                        break;
+                    case value:
+                        // the alias of a map join is its value, some providers render value() as a sub query
+                        break;
+                }
+            }
+            return new Ref(path, route.javaType);
+        }
+
+        @Override
+        String parameter(int n) {
+            return ":p" + n;
+        }
+
+        private String join(Select select, String from, String attribute, boolean left) {
+            String alias = alias();
+            select.from.append(left ? " left join " : " join ").append(from).append('.').append(attribute).append(' ').append(alias);
+            return alias;
+        }
+    }
+
+    /**
+     * The from clause of a select being rendered
+     */
+    static final class Select {
+        final StringBuilder from = new StringBuilder();
+        // conditions correlating the select with the enclosing query
+        final List<String> conditions = new ArrayList<>();
+        // what the select is grouped by when it has a having clause, the root entity
+        String identity;
+
+        /**
+         * Render the select, the same way {@link DSL#parsePredicates} fills in a criteria query
+         * @param select The select clause
+         * @param clauses The clauses of the query
+         * @param groups The group by clause replacing the grouping of the clauses, may be null
+         * @return The select statement
+         */
+        String render(String select, Clauses clauses, List<String> groups) {
+            StringBuilder sb = new StringBuilder(select).append(" from ").append(from);
+            List<String> where = new ArrayList<>(conditions);
+            if (clauses.where != null)
+                where.add(clauses.where);
+            if (!where.isEmpty())
+                sb.append(" where ").append(String.join(" and ", where));
+            if (clauses.having != null) {
+                Set<String> grouping = new LinkedHashSet<>(clauses.grouping);
+                grouping.add(identity);
+                sb.append(" group by ").append(String.join(", ", groups == null ? grouping : groups));
+                sb.append(" having ").append(clauses.having);
+            } else if (groups != null) {
+                sb.append(" group by ").append(String.join(", ", groups));
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * An identification variable of the query
+     */
+    static final class Alias {
+        final String name;
+        // the managed type of the alias, null for basic values
+        final ManagedType<?> type;
+        final Class<?> javaType;
+        // the joined attribute, null for roots
+        final String attribute;
+        // true if the alias joins a collection
+        final boolean plural;
+        // the select which declares the alias
+        final Select select;
+
+        Alias(String name, ManagedType<?> type, Class<?> javaType, String attribute, boolean plural, Select select) {
+            this.name = name;
+            this.type = type;
+            this.javaType = javaType;
+            this.attribute = attribute;
+            this.plural = plural;
+            this.select = select;
+        }
+    }
+
+    /**
+     * A rendered path expression and its type
+     */
+    static final class Ref {
+        final String path;
+        final Class<?> javaType;
+        // how the values of an enum column are stored, null if the path is not an enum column of a table
+        final EnumType enumType;
+
+        Ref(String path, Class<?> javaType) {
+            this(path, javaType, null);
+        }
+
+        Ref(String path, Class<?> javaType, EnumType enumType) {
+            this.path = path;
+            this.javaType = javaType;
+            this.enumType = enumType;
+        }
+    }
+
+    /**
+     * The where and having conditions of a node and the paths grouped by its aggregates
+     */
+    static final class Clauses {
+        String where;
+        String having;
+        final List<String> grouping = new ArrayList<>();
+    }
+
+    /**
+     * A rendered statement. Queries of the same shape bind the values of their own expressions to its parameters.
+     */
+    static final class Template {
+        final String query;
+        // the index of the expression providing the value of each parameter, in parameter order
+        private final int[] terms;
+        private final Class<?>[] types;
+        // the most values of one in list of the statement
+        private final int inLimit;
+
+        Template(String query
+                , List<Expression<?>> terms
+                , List<Expression<?>> expressions
+                , List<Class<?>> types
+                , int inLimit) {
+            Map<Expression<?>, Integer> indexes = new IdentityHashMap<>();
+            for (int i = 0; i < terms.size(); i++)
+                indexes.put(terms.get(i), i);
+
+            this.query = query;
+            this.terms = new int[expressions.size()];
+            this.types = types.toArray(new Class<?>[0]);
+            this.inLimit = inLimit;
+            for (int i = 0; i < expressions.size(); i++)
+                this.terms[i] = indexes.get(expressions.get(i));
+        }
+
+        /**
+         * Get the parameter values for the expressions of a query of this shape
+         * @param terms The expressions of the query in query order
+         * @param variables The values bound to variables, may be null
+         * @return The values by parameter name
+         */
+        Map<String, Object> parameters(List<Expression<?>> terms, Map<String, ?> variables) {
+            Map<String, Object> parameters = new LinkedHashMap<>();
+            List<Object> values = values(terms, variables);
+            for (int i = 0; i < values.size(); i++)
+                parameters.put("p" + (i + 1), values.get(i));
+            return parameters;
+        }
+
+        /**
+         * Get the parameter values for the expressions of a query of this shape
+         * @param terms The expressions of the query in query order
+         * @param variables The values bound to variables, may be null
+         * @return The values in parameter order
+         */
+        List<Object> values(List<Expression<?>> terms, Map<String, ?> variables) {
+            List<Object> values = new ArrayList<>(this.terms.length);
+            for (int i = 0; i < this.terms.length; i++)
+                values.add(terms.get(this.terms[i]).argument(types[i], variables, inLimit));
+            return values;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A query compiled to a JPQL statement and the values of its named parameters. Queries of the same shape produce the
+ * same statement, so the provider plans the statement once and only the parameter values change.
+ * @param <T> The entity type
+ */
+public final class JpqlQuery<T> {
+    private final Class<T> type;
+    private final String query;
+    private final Map<String, Object> parameters;
+
+    JpqlQuery(Class<T> type, String query, Map<String, Object> parameters) {
+        this.type = type;
+        this.query = query;
+        this.parameters = Collections.unmodifiableMap(parameters);
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return The JPQL statement
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return The values of the named parameters of the statement
+     */
+    public Map<String, Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Create a typed query for the statement with all parameters bound
+     * @param entityManager The entity manager used to create the query
+     * @return The typed query
+     */
+    public TypedQuery<T> typedQuery(EntityManager entityManager) {
+        TypedQuery<T> typedQuery = entityManager.createQuery(query, type);
+        for (Map.Entry<String, Object> parameter : parameters.entrySet())
+            typedQuery.setParameter(parameter.getKey(), parameter.getValue());
+        return typedQuery;
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+}
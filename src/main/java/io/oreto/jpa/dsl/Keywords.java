@@ -0,0 +1,79 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Open addressing table of keywords, enum constants or other values named by their string form, which can be
+ * searched with a slice of any character sequence, so looking up a keyword never allocates a string and takes
+ * constant time.
+ * @param <E> The keyword type
+ */
+final class Keywords<E> {
+    private final Object[] table;
+    private final int mask;
+
+    Keywords(E[] values) {
+        this(Arrays.asList(values));
+    }
+
+    Keywords(Collection<E> values) {
+        int size = Integer.highestOneBit(Math.max(values.size(), 1) * 4);
+        this.table = new Object[size];
+        this.mask = size - 1;
+        for (E value : values) {
+            String name = value.toString();
+            int i = hash(name, 0, name.length()) & mask;
+            while (table[i] != null)
+                i = (i + 1) & mask;
+            table[i] = value;
+        }
+    }
+
+    /**
+     * Find the keyword named by a slice of the sequence
+     * @param s The character sequence
+     * @param start The start index, inclusive
+     * @param end The end index, exclusive
+     * @return The keyword or null if no keyword has that name
+     */
+    @SuppressWarnings("unchecked")
+    E get(CharSequence s, int start, int end) {
+        for (int i = hash(s, start, end) & mask; table[i] != null; i = (i + 1) & mask) {
+            E value = (E) table[i];
+            if (matches(value.toString(), s, start, end))
+                return value;
+        }
+        return null;
+    }
+
+    /**
+     * Find the keyword with the name
+     * @param s The name
+     * @return The keyword or null if no keyword has that name
+     */
+    E get(CharSequence s) {
+        return s == null ? null : get(s, 0, s.length());
+    }
+
+    boolean contains(CharSequence s) {
+        return get(s) != null;
+    }
+
+    private static int hash(CharSequence s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++)
+            h = 31 * h + s.charAt(i);
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String name, CharSequence s, int start, int end) {
+        if (name.length() != end - start)
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != s.charAt(start + i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,332 @@
+package io.oreto.jpa.dsl;
+
+/**
+ * Splits a query into typed tokens. Tokens are never materialized, the lexer only records the type of the
+ * current token and its start and end offsets in the query. The parser decides which kind of token is
+ * expected: structure and keys with {@link #next()}, values with {@link #value()}, list items with
+ * {@link #item()} and the bounds of ranges with {@link #bound()}.
+ */
+class Lexer {
+    /**
+     * Types of tokens
+     */
+    enum Token {
+        WORD            // name, attributes.value, icontains, count, and
+        , LITERAL       // a value: ross, 2022-01-01T10:00:00, 1.5
+        , QUOTED        // 'Ross Sea', start and end exclude the quotes
+        , FIELD_REF     // @make, start and end exclude the @
+        , PARENT_REF    // ^make, start and end exclude the ^
+        , VARIABLE      // $since, start and end exclude the $
+        , METHOD_REF    // ::
+        , COLON         // :
+        , COMMA         // ,
+        , OPEN_PAREN    // (
+        , CLOSE_PAREN   // )
+        , OPEN_BRACE    // {
+        , CLOSE_BRACE   // }
+        , OPEN_BRACKET  // [
+        , CLOSE_BRACKET // ]
+        , END
+    }
+
+    static final char QUOTE = '\'';
+    static final char ESCAPE = '\\';
+
+    private final CharSequence q;
+    private final int length;
+
+    // the position of the next character to read
+    private int position;
+
+    Token token;
+    int start;
+    int end;
+    // true if the current token contains escaped characters
+    boolean escaped;
+
+    Lexer(CharSequence q) {
+        this.q = q;
+        this.length = q.length();
+    }
+
+    /**
+     * Read the next structural token, words end at whitespace, colons and structural characters
+     * @return The token type
+     */
+    Token next() {
+        skipWhitespace();
+        escaped = false;
+        start = position;
+        if (position >= length)
+            return token(Token.END, position);
+
+        char c = q.charAt(position);
+        switch (c) {
+            case '(': return token(Token.OPEN_PAREN, position + 1);
+            case ')': return token(Token.CLOSE_PAREN, position + 1);
+            case '{': return token(Token.OPEN_BRACE, position + 1);
+            case '}': return token(Token.CLOSE_BRACE, position + 1);
+            case '[': return token(Token.OPEN_BRACKET, position + 1);
+            case ']': return token(Token.CLOSE_BRACKET, position + 1);
+            case ',': return token(Token.COMMA, position + 1);
+            case ':':
+                return position + 1 < length && q.charAt(position + 1) == ':'
+                        ? token(Token.METHOD_REF, position + 2)
+                        : token(Token.COLON, position + 1);
+            case QUOTE:
+                return quoted();
+            default:
+                int i = position;
+                while (i < length && !isWordEnd(q.charAt(i)))
+                    i++;
+                return token(Token.WORD, i);
+        }
+    }
+
+    /**
+     * Peek at the next structural token without consuming it
+     * @return The type of the next token
+     */
+    Token peek() {
+        Token token = this.token;
+        int start = this.start, end = this.end, position = this.position;
+        boolean escaped = this.escaped;
+        Token next = next();
+        this.token = token;
+        this.start = start;
+        this.end = end;
+        this.position = position;
+        this.escaped = escaped;
+        return next;
+    }
+
+    /**
+     * Read a value. Values end at whitespace, parentheses and braces and may contain colons and commas.
+     * An empty literal is returned when there is no value, in which case nothing is consumed.
+     * @return The token type
+     */
+    Token value() {
+        escaped = false;
+        start = position;
+        if (position >= length)
+            return token(Token.LITERAL, position);
+
+        char c = q.charAt(position);
+        switch (c) {
+            case QUOTE:
+                return quoted();
+            case '[':
+                return token(Token.OPEN_BRACKET, position + 1);
+            case '@':
+                start = position + 1;
+                return token(Token.FIELD_REF, wordEnd(start));
+            case '^':
+                start = position + 1;
+                return token(Token.PARENT_REF, wordEnd(start));
+            case '$':
+                start = position + 1;
+                return token(Token.VARIABLE, wordEnd(start));
+            default:
+                int i = position;
+                while (i < length && !isValueEnd(c = q.charAt(i))) {
+                    if (c == ESCAPE) {
+                        escaped = true;
+                        i++;
+                    }
+                    i++;
+                }
+                end = Math.min(i, length);
+                position = end;
+                token = Token.LITERAL;
+                return token;
+        }
+    }
+
+    /**
+     * Read a list item, items end at commas and the closing bracket and may contain whitespace
+     * which is trimmed
+     * @return The token type
+     */
+    Token item() {
+        skipWhitespace();
+        escaped = false;
+        start = position;
+        if (position >= length)
+            return token(Token.END, position);
+
+        char c = q.charAt(position);
+        switch (c) {
+            case ',': return token(Token.COMMA, position + 1);
+            case ']': return token(Token.CLOSE_BRACKET, position + 1);
+            case QUOTE: return quoted();
+            default:
+                int i = position;
+                int last = position;
+                while (i < length && (c = q.charAt(i)) != ',' && c != ']') {
+                    if (c == ESCAPE) {
+                        escaped = true;
+                        i++;
+                    }
+                    if (!Character.isWhitespace(c))
+                        last = i + 1;
+                    i++;
+                }
+                position = Math.min(i, length);
+                end = Math.min(last, length);
+                token = Token.LITERAL;
+                return token;
+        }
+    }
+
+    /**
+     * Read a bound of a range, bounds end at commas, closing brackets and closing parentheses and may contain
+     * whitespace which is trimmed
+     * @return The token type
+     */
+    Token bound() {
+        skipWhitespace();
+        escaped = false;
+        start = position;
+        if (position >= length)
+            return token(Token.END, position);
+
+        char c = q.charAt(position);
+        switch (c) {
+            case ',': return token(Token.COMMA, position + 1);
+            case ']': return token(Token.CLOSE_BRACKET, position + 1);
+            case ')': return token(Token.CLOSE_PAREN, position + 1);
+            case QUOTE: return quoted();
+            case '$':
+                start = position + 1;
+                return token(Token.VARIABLE, wordEnd(start));
+            default:
+                int i = position;
+                int last = position;
+                while (i < length && (c = q.charAt(i)) != ',' && c != ']' && c != ')') {
+                    if (c == ESCAPE) {
+                        escaped = true;
+                        i++;
+                    }
+                    if (!Character.isWhitespace(c))
+                        last = i + 1;
+                    i++;
+                }
+                position = Math.min(i, length);
+                end = Math.min(last, length);
+                token = Token.LITERAL;
+                return token;
+        }
+    }
+
+    /**
+     * @return The text of the current token with any escape characters removed
+     */
+    String text() {
+        if (!escaped)
+            return q.subSequence(start, end).toString();
+        StringBuilder sb = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = q.charAt(i);
+            if (c == ESCAPE && i + 1 < end)
+                c = q.charAt(++i);
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Look up the current token in a keyword table
+     * @param keywords The keywords
+     * @param <E> The keyword type
+     * @return The keyword or null if the token is not one of the keywords
+     */
+    <E> E keyword(Keywords<E> keywords) {
+        return keyword(keywords, 0);
+    }
+
+    /**
+     * Look up the current token, less a prefix, in a keyword table
+     * @param keywords The keywords
+     * @param skip The number of characters to skip at the start of the token
+     * @param <E> The keyword type
+     * @return The keyword or null if the token is not one of the keywords
+     */
+    <E> E keyword(Keywords<E> keywords, int skip) {
+        return start + skip > end ? null : keywords.get(q, start + skip, end);
+    }
+
+    /**
+     * Determine if the current token starts with the prefix
+     * @param prefix The prefix
+     * @return True if the token starts with prefix
+     */
+    boolean startsWith(String prefix) {
+        int length = prefix.length();
+        if (end - start < length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (q.charAt(start + i) != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    boolean isEmpty() {
+        return start == end;
+    }
+
+    private Token quoted() {
+        int i = position + 1;
+        char c;
+        while (i < length && (c = q.charAt(i)) != QUOTE) {
+            if (c == ESCAPE) {
+                escaped = true;
+                i++;
+            }
+            i++;
+        }
+        if (i >= length)
+            throw new BadQueryException("no matching closing quote", position);
+        start = position + 1;
+        end = i;
+        position = i + 1;
+        token = Token.QUOTED;
+        return token;
+    }
+
+    private Token token(Token token, int end) {
+        this.token = token;
+        this.end = end;
+        this.position = end;
+        return token;
+    }
+
+    private int wordEnd(int i) {
+        while (i < length && !isWordEnd(q.charAt(i)))
+            i++;
+        return i;
+    }
+
+    private void skipWhitespace() {
+        while (position < length && Character.isWhitespace(q.charAt(position)))
+            position++;
+    }
+
+    private static boolean isWordEnd(char c) {
+        switch (c) {
+            case ':': case ',': case '(': case ')': case '{': case '}': case '[': case ']': case QUOTE:
+                return true;
+            default:
+                return Character.isWhitespace(c);
+        }
+    }
+
+    private static boolean isValueEnd(char c) {
+        switch (c) {
+            case '(': case ')': case '{': case '}':
+                return true;
+            default:
+                return Character.isWhitespace(c);
+        }
+    }
+}
@@ -2,20 +2,16 @@ package io.oreto.jpa.dsl;
 
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.Predicate;
-import java.util.Stack;
 
 public class Logical {
     public enum Operator {
         and, or, not
     }
 
+    static final Keywords<Operator> keywords = new Keywords<>(Operator.values());
+
     public static boolean isValid(String op) {
-        for (Operator operator : Operator.values()) {
-            if (operator.name().equals(op)) {
-                return true;
-            }
-        }
-        return false;
+        return keywords.contains(op);
     }
 
     static Predicate apply(Operator operator, CriteriaBuilder builder, Predicate... predicates) {
@@ -36,14 +32,4 @@ public class Logical {
         }
         return predicate;
     }
-
-    static Predicate apply(String operator, CriteriaBuilder builder, Predicate... predicates) {
-        return apply(Operator.valueOf(operator), builder, predicates);
-    }
-
-    static Predicate apply(Predicate predicate, Stack<String> operator, CriteriaBuilder builder, Predicate p) {
-        return operator.isEmpty() || predicate == null
-                ? p
-                : Logical.apply(operator.pop(), builder, predicate, p);
-    }
 }
@@ -0,0 +1,37 @@
+package io.oreto.jpa.dsl;
+
+import java.util.Locale;
+
+/**
+ * Turns the logical names of tables and columns, the names given by mapping annotations or derived from entity and
+ * attribute names, into the physical names of the database. It must match the physical naming strategy of the
+ * persistence provider for the native SQL backend to find the tables and columns created by the provider.
+ */
+@FunctionalInterface
+public interface Naming {
+    /**
+     * Use the logical names as they are
+     */
+    Naming IDENTITY = name -> name;
+
+    /**
+     * The naming of Spring Boot, purchasedOn is purchased_on and P_ORDER is p_order
+     */
+    Naming SNAKE_CASE = name -> {
+        StringBuilder sb = new StringBuilder(name.replace('.', '_'));
+        for (int i = 1; i < sb.length() - 1; i++) {
+            if (Character.isLowerCase(sb.charAt(i - 1))
+                    && Character.isUpperCase(sb.charAt(i))
+                    && Character.isLowerCase(sb.charAt(i + 1)))
+                sb.insert(i++, '_');
+        }
+        return sb.toString().toLowerCase(Locale.ROOT);
+    };
+
+    /**
+     * Get the physical name
+     * @param name The logical name of a table or column
+     * @return The physical name
+     */
+    String physical(String name);
+}
@@ -0,0 +1,471 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.ManagedType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable node of a compiled query. A tree of nodes is parsed once and then bound to any number of
+ * criteria queries without touching the query string again.
+ */
+abstract class Node {
+    // position in the query string, used to report errors
+    final int at;
+
+    Node(int at) {
+        this.at = at;
+    }
+
+    /**
+     * Bind this node to a translation scope
+     * @param dsl The scope holding the root, query and criteria builder
+     * @return The where and having predicates represented by this node
+     */
+    abstract Predicates bind(DSL<?> dsl);
+
+    /**
+     * Render this node as JPQL
+     * @param jpql The scope holding the root and the parameters
+     * @return The where and having conditions represented by this node
+     */
+    abstract Jpql.Clauses render(Jpql jpql);
+
+    /**
+     * Add the expressions of this node and its children in query order
+     * @param terms Receives the expressions
+     */
+    abstract void terms(List<Expression<?>> terms);
+
+    /**
+     * Write the shape of this node, the node with all literal values left out
+     * @param sb Receives the shape
+     */
+    abstract void shape(StringBuilder sb);
+
+    /**
+     * Determine if this node adds a having condition to its scope
+     * @return True if the node has aggregate terms outside of sub queries
+     */
+    boolean isAggregate() {
+        return false;
+    }
+
+    /**
+     * Determine if this node references the enclosing scope, ^field
+     * @return True if the node has terms comparing with the parent path outside of sub queries
+     */
+    boolean isCorrelated() {
+        return false;
+    }
+
+    /**
+     * Determine if this node joins a collection of the root of its scope, which repeats the root once per element
+     * @param type The managed type of the root
+     * @return True if terms outside of sub queries navigate a collection
+     */
+    boolean isPlural(ManagedType<?> type) {
+        return false;
+    }
+
+    /**
+     * Logical combination of nodes: and, or, not
+     */
+    static class Junction extends Node {
+        final Logical.Operator operator;
+        final List<Node> nodes;
+
+        Junction(Logical.Operator operator, int at, Node... nodes) {
+            super(at);
+            this.operator = operator;
+            this.nodes = Collections.unmodifiableList(Arrays.asList(nodes));
+        }
+
+        @Override
+        Predicates bind(DSL<?> dsl) {
+            CriteriaBuilder cb = dsl.criteriaBuilder;
+            Predicates predicates = new Predicates();
+            List<Predicate> where = new ArrayList<>();
+            List<Predicate> having = new ArrayList<>();
+            // the alternatives of a disjunction may share joins with each other
+            int mark = dsl.joins.mark();
+            List<Joins.Claim> claims = new ArrayList<>();
+            dsl.joins.enter(operator);
+            for (Node node : nodes) {
+                Predicates p = node.bind(dsl);
+                if (operator == Logical.Operator.or)
+                    claims.addAll(dsl.joins.release(mark));
+                if (Objects.nonNull(p.where))
+                    where.add(p.where);
+                if (Objects.nonNull(p.having))
+                    having.add(p.having);
+                predicates.grouping.addAll(p.grouping);
+            }
+            dsl.joins.exit(operator);
+            dsl.joins.claim(claims);
+            if (operator == Logical.Operator.or && !where.isEmpty() && !having.isEmpty())
+                throw new BadQueryException("Cannot use OR between aggregate and normal expressions. Use collector operator instead", at);
+
+            predicates.where = combine(where, cb);
+            predicates.having = combine(having, cb);
+            return predicates;
+        }
+
+        @Override
+        Jpql.Clauses render(Jpql jpql) {
+            Jpql.Clauses clauses = new Jpql.Clauses();
+            List<String> where = new ArrayList<>();
+            List<String> having = new ArrayList<>();
+            int mark = jpql.joins().mark();
+            List<Joins.Claim> claims = new ArrayList<>();
+            jpql.joins().enter(operator);
+            for (Node node : nodes) {
+                Jpql.Clauses c = node.render(jpql);
+                if (operator == Logical.Operator.or)
+                    claims.addAll(jpql.joins().release(mark));
+                if (Objects.nonNull(c.where))
+                    where.add(c.where);
+                if (Objects.nonNull(c.having))
+                    having.add(c.having);
+                clauses.grouping.addAll(c.grouping);
+            }
+            jpql.joins().exit(operator);
+            jpql.joins().claim(claims);
+            if (operator == Logical.Operator.or && !where.isEmpty() && !having.isEmpty())
+                throw new BadQueryException("Cannot use OR between aggregate and normal expressions. Use collector operator instead", at);
+
+            clauses.where = combine(where);
+            clauses.having = combine(having);
+            return clauses;
+        }
+
+        @Override
+        void terms(List<Expression<?>> terms) {
+            for (Node node : nodes)
+                node.terms(terms);
+        }
+
+        @Override
+        boolean isAggregate() {
+            for (Node node : nodes) {
+                if (node.isAggregate())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean isCorrelated() {
+            for (Node node : nodes) {
+                if (node.isCorrelated())
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean isPlural(ManagedType<?> type) {
+            for (Node node : nodes) {
+                if (node.isPlural(type))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        void shape(StringBuilder sb) {
+            sb.append(operator).append('(');
+            for (int i = 0; i < nodes.size(); i++) {
+                if (i > 0)
+                    sb.append(',');
+                nodes.get(i).shape(sb);
+            }
+            sb.append(')');
+        }
+
+        private String combine(List<String> conditions) {
+            if (conditions.isEmpty())
+                return null;
+            if (operator == Logical.Operator.not)
+                return "not (" + conditions.get(0) + ')';
+            if (conditions.size() == 1)
+                return conditions.get(0);
+            return '(' + String.join(" " + operator + " ", conditions) + ')';
+        }
+
+        private Predicate combine(List<Predicate> predicates, CriteriaBuilder cb) {
+            if (predicates.isEmpty())
+                return null;
+            if (predicates.size() == 1 && operator != Logical.Operator.not)
+                return predicates.get(0);
+            return Logical.apply(operator, cb, predicates.toArray(new Predicate[0]));
+        }
+    }
+
+    /**
+     * A single expression such as name::icontains:ross
+     */
+    static class Term extends Node {
+        final Expression<?> expression;
+
+        Term(Expression<?> expression, int at) {
+            super(at);
+            this.expression = expression;
+        }
+
+        @Override
+        Predicates bind(DSL<?> dsl) {
+            Predicates predicates = new Predicates();
+            Predicate predicate = expression.apply(dsl, predicates);
+            if (expression.isAggregate())
+                predicates.having = predicate;
+            else
+                predicates.where = predicate;
+            return predicates;
+        }
+
+        @Override
+        Jpql.Clauses render(Jpql jpql) {
+            Jpql.Clauses clauses = new Jpql.Clauses();
+            String condition = expression.render(jpql, clauses);
+            if (expression.isAggregate())
+                clauses.having = condition;
+            else
+                clauses.where = condition;
+            return clauses;
+        }
+
+        @Override
+        void terms(List<Expression<?>> terms) {
+            expression.terms(terms);
+        }
+
+        @Override
+        boolean isAggregate() {
+            return expression.isAggregate();
+        }
+
+        @Override
+        boolean isCorrelated() {
+            return expression.prop && expression.parent;
+        }
+
+        @Override
+        boolean isPlural(ManagedType<?> type) {
+            return expression.isPlural(type);
+        }
+
+        @Override
+        void shape(StringBuilder sb) {
+            expression.shape(sb);
+        }
+    }
+
+    /**
+     * An exists sub query over a joined attribute, such as orders{ ... }. A block over a to-one association or an
+     * embeddable, address{ ... }, is a join of the enclosing query instead.
+     * <p>
+     * A top block, orders::last(purchasedOn){ ... } or orders::first(purchasedOn,3){ ... }, only matches the latest or
+     * earliest elements of the collection of each row. The elements are restricted by a correlated sub query,
+     * purchasedOn = (select max(purchasedOn) ...) for a single element, otherwise the count of the elements ordered
+     * before them must be under the limit. Ties are all kept.
+     */
+    static class SubQuery extends Node {
+        // nested blocks which are the only condition of their block share one sub query unless
+        // scout.flatten.blocks=false, the default of CompiledQuery#flatten
+        static final boolean FLATTEN = Boolean.parseBoolean(System.getProperty("scout.flatten.blocks", "true"));
+
+        final String attribute;
+        final Node node;
+        // the key the elements of a top block are ordered by, null if the block is not a top block
+        final String order;
+        // true to keep the latest elements, the ones with the greatest order, false to keep the earliest
+        final boolean last;
+        // the number of elements kept by a top block
+        final int limit;
+
+        SubQuery(String attribute, Node node, int at) {
+            this(attribute, node, null, false, 0, at);
+        }
+
+        SubQuery(String attribute, Node node, String order, boolean last, int limit, int at) {
+            super(at);
+            this.attribute = attribute;
+            this.node = node;
+            this.order = order;
+            this.last = last;
+            this.limit = limit;
+        }
+
+        /**
+         * @param body The new body of the block
+         * @return A block like this one with another body
+         */
+        SubQuery body(Node body) {
+            return new SubQuery(attribute, body, order, last, limit, at);
+        }
+
+        /**
+         * @return True if the block only matches the first or last elements of the collection
+         */
+        boolean isTop() {
+            return order != null;
+        }
+
+        @Override
+        Predicates bind(DSL<?> dsl) {
+            Predicates predicates = new Predicates();
+            predicates.where = !isTop() && dsl.isJoin(attribute, node)
+                    ? dsl.join(attribute, node)
+                    : dsl.subQuery(this);
+            return predicates;
+        }
+
+        @Override
+        Jpql.Clauses render(Jpql jpql) {
+            Jpql.Clauses clauses = new Jpql.Clauses();
+            clauses.where = !isTop() && jpql.isJoin(attribute, node)
+                    ? jpql.join(attribute, node)
+                    : jpql.subQuery(this);
+            return clauses;
+        }
+
+        @Override
+        boolean isPlural(ManagedType<?> type) {
+            // the body of a block over a to-one association is joined to the scope
+            Attribute<?, ?> single = Paths.single(type, attribute);
+            return single != null && node != null && node.isPlural(Paths.managedType((Bindable<?>) single));
+        }
+
+        /**
+         * Get the block which can be joined in the sub query of this block instead of being a sub query of its
+         * own. orders{ items{ name:x } } is exists (select 1 ... join orders o join o.items i where i.name = x)
+         * because the inner block is the only condition of the outer one. Aggregates need the grouping of their
+         * own sub query, top blocks are correlated with their own parent, and the backends keep sub queries over
+         * to-one associations as joins.
+         * @return The nested block or null if the body of this block is not a single block without aggregates
+         */
+        SubQuery nested() {
+            if (!(node instanceof SubQuery))
+                return null;
+            SubQuery nested = (SubQuery) node;
+            return !nested.isTop() && (nested.node == null || !nested.node.isAggregate()) ? nested : null;
+        }
+
+        @Override
+        void terms(List<Expression<?>> terms) {
+            if (node != null)
+                node.terms(terms);
+        }
+
+        @Override
+        void shape(StringBuilder sb) {
+            sb.append(attribute);
+            if (isTop())
+                sb.append(last ? "::last(" : "::first(").append(order).append(',').append(limit).append(')');
+            sb.append('{');
+            if (node != null)
+                node.shape(sb);
+            sb.append('}');
+        }
+    }
+
+    /**
+     * A grouping sub query over one or more keys, such as amount::collect{ ... }. A collector which does not
+     * reference the enclosing row is an uncorrelated amount in (select amount ... group by amount having ...),
+     * which the database runs once instead of once per row.
+     */
+    static class Collector extends Node {
+        final List<String> keys;
+        final Node node;
+
+        Collector(List<String> keys, Node node, int at) {
+            super(at);
+            this.keys = Collections.unmodifiableList(keys);
+            this.node = node;
+        }
+
+        @Override
+        Predicates bind(DSL<?> dsl) {
+            Predicates predicates = new Predicates();
+            if (dsl.isCorrelatedCollector())
+                predicates.where = dsl.collectorSubQueryJoin(keys, node);
+            else if (node != null && node.isCorrelated())
+                predicates.where = dsl.collectorSubQuery(keys, node);
+            else
+                predicates.where = dsl.collectorIn(keys, node);
+            return predicates;
+        }
+
+        @Override
+        Jpql.Clauses render(Jpql jpql) {
+            Jpql.Clauses clauses = new Jpql.Clauses();
+            if (jpql.isCorrelatedCollector())
+                clauses.where = jpql.collectorSubQueryJoin(keys, node);
+            else if (node != null && node.isCorrelated())
+                clauses.where = jpql.collectorSubQuery(keys, node);
+            else
+                clauses.where = jpql.collectorIn(keys, node);
+            return clauses;
+        }
+
+        @Override
+        void terms(List<Expression<?>> terms) {
+            if (node != null)
+                node.terms(terms);
+        }
+
+        @Override
+        void shape(StringBuilder sb) {
+            sb.append(String.join(",", keys)).append("::").append(Expression.Operator.collect).append('{');
+            if (node != null)
+                node.shape(sb);
+            sb.append('}');
+        }
+    }
+
+    /**
+     * A condition which is always true or always false, left by the optimizer when it folds a branch such as
+     * name::in:[] which can never match
+     */
+    static class Constant extends Node {
+        static final Constant TRUE = new Constant(true);
+        static final Constant FALSE = new Constant(false);
+
+        final boolean value;
+
+        private Constant(boolean value) {
+            super(0);
+            this.value = value;
+        }
+
+        @Override
+        Predicates bind(DSL<?> dsl) {
+            Predicates predicates = new Predicates();
+            predicates.where = value ? dsl.criteriaBuilder.conjunction() : dsl.criteriaBuilder.disjunction();
+            return predicates;
+        }
+
+        @Override
+        Jpql.Clauses render(Jpql jpql) {
+            Jpql.Clauses clauses = new Jpql.Clauses();
+            clauses.where = value ? "1 = 1" : "1 = 0";
+            return clauses;
+        }
+
+        @Override
+        void terms(List<Expression<?>> terms) {
+        }
+
+        @Override
+        void shape(StringBuilder sb) {
+            sb.append(value);
+        }
+    }
+}
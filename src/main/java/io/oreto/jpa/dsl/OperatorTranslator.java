@@ -0,0 +1,84 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import java.util.Collection;
+
+/**
+ * Translates the condition of an operator, key::operator:value, for each backend. The built in operators are
+ * translators as well, applications register their own with {@link io.oreto.jpa.dsl.Expression.Operator#register}
+ * to push work down to the database, such as array containment or trigram similarity.
+ * <p>
+ * The left side is the key with its function applied. The right side is either the value, a literal or a parameter,
+ * or a field of the query, such as name::eq:@nickName, and is null if the expression has no value.
+ */
+public interface OperatorTranslator {
+    /**
+     * Build the criteria predicate
+     * @param cb The criteria builder
+     * @param left The left side
+     * @param right The right side, null if the expression has no value
+     * @param field True if the right side is a field rather than a value
+     * @return The predicate
+     */
+    Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field);
+
+    /**
+     * Build the criteria predicate for a list of values which are literals rather than a parameter,
+     * name::in:[a,b] in a specification
+     * @param cb The criteria builder
+     * @param left The left side
+     * @param values The values
+     * @return The predicate
+     * @throws BadQueryException if the operator does not compare lists
+     */
+    default Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Collection<?> values) {
+        throw new BadQueryException("Unexpected list of values");
+    }
+
+    /**
+     * Render the JPQL condition
+     * @param left The left side
+     * @param right The right side, null if the expression has no value
+     * @param field True if the right side is a field rather than a value
+     * @return The condition
+     */
+    String toJpql(String left, String right, boolean field);
+
+    /**
+     * Render the native SQL condition, the JPQL condition by default
+     * @param left The left side
+     * @param right The right side, null if the expression has no value
+     * @param field True if the right side is a field rather than a value
+     * @return The condition
+     */
+    default String toSql(String left, String right, boolean field) {
+        return toJpql(left, right, field);
+    }
+
+    /**
+     * @return False if the operator ignores the value, such as isnull
+     */
+    default boolean hasValue() {
+        return true;
+    }
+
+    /**
+     * @param type The type of the left side
+     * @return The type literals are converted to and bound values must have, which is also the type of the
+     * argument, the type of the left side by default
+     */
+    default Class<?> valueType(Class<?> type) {
+        return type;
+    }
+
+    /**
+     * Prepare a value before it is bound to the statement, such as turning it into a like pattern
+     * @param value The value converted to the value type, null for an empty literal
+     * @return The argument, the value by default
+     */
+    default Object argument(Object value) {
+        return value;
+    }
+}
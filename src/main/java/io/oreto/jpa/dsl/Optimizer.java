@@ -0,0 +1,261 @@
+package io.oreto.jpa.dsl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rewrites a parsed query into an equivalent, smaller tree before it is bound or rendered:
+ * <ul>
+ *     <li>nested and/or junctions are flattened into one n-ary junction and double negations removed</li>
+ *     <li>duplicate terms of a junction are removed</li>
+ *     <li>equality terms of the same key in a disjunction are folded into one in term,
+ *     status:x or status:y is status::in:[x, y]</li>
+ *     <li>negated comparisons become the opposite comparison, amount::not_gt:5 is amount::lte:5. Both are unknown
+ *     when the attribute is null, so null values are excluded either way.</li>
+ *     <li>branches which are always true or false, such as name::in:[], are folded into their junctions</li>
+ * </ul>
+ * The rewrite happens once when a query is compiled. Long in lists are split when the query is bound, see
+ * {@link #split(Node, Map, int)}.
+ */
+final class Optimizer {
+
+    private Optimizer() {}
+
+    /**
+     * Optimize a parsed query
+     * @param node The root node, may be null
+     * @return The optimized node, null if the query matches everything
+     */
+    static Node optimize(Node node) {
+        if (node == null)
+            return null;
+        Node optimized = rewrite(node);
+        return optimized == Node.Constant.TRUE ? null : optimized;
+    }
+
+    /**
+     * Split the in lists with more values than one in list may have into in lists of at most the limit joined by or,
+     * or joined by and for not_in. This rewrite happens when a query is bound, once the values of its variables and
+     * the dialect are known, and a split query has a shape of its own for each number of lists.
+     * @param node The root node, may be null
+     * @param variables The values bound to variables, null to only split literal lists
+     * @param limit The most values of one in list
+     * @return The node itself if no in list is split
+     */
+    static Node split(Node node, Map<String, ?> variables, int limit) {
+        if (node instanceof Node.Term)
+            return split((Node.Term) node, variables, limit);
+        if (node instanceof Node.Junction) {
+            Node.Junction junction = (Node.Junction) node;
+            Node[] nodes = new Node[junction.nodes.size()];
+            boolean split = false;
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = split(junction.nodes.get(i), variables, limit);
+                split |= nodes[i] != junction.nodes.get(i);
+            }
+            return split ? new Node.Junction(junction.operator, junction.at, nodes) : node;
+        }
+        if (node instanceof Node.SubQuery) {
+            Node.SubQuery subQuery = (Node.SubQuery) node;
+            Node body = split(subQuery.node, variables, limit);
+            return body == subQuery.node ? node : subQuery.body(body);
+        }
+        if (node instanceof Node.Collector) {
+            Node.Collector collector = (Node.Collector) node;
+            Node body = split(collector.node, variables, limit);
+            return body == collector.node ? node : new Node.Collector(collector.keys, body, node.at);
+        }
+        return node;
+    }
+
+    private static Node split(Node.Term term, Map<String, ?> variables, int limit) {
+        Expression<?> expression = term.expression;
+        if (expression.operator != Expression.Operator.in || expression.prop)
+            return term;
+        Object value = expression.variable == null
+                ? expression.value
+                : variables == null ? null : variables.get(expression.variable);
+        if (!(value instanceof Collection) || ((Collection<?>) value).size() <= limit)
+            return term;
+        // bound values become literal lists, which are converted like the values of the variable
+        List<?> values = new ArrayList<>((Collection<?>) value);
+        List<Node> lists = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += limit) {
+            lists.add(new Node.Term(new Expression<>(expression.key
+                    , expression.f1
+                    , Expression.Operator.in
+                    , expression.negate
+                    , new ArrayList<>(values.subList(i, Math.min(i + limit, values.size())))), term.at));
+        }
+        return new Node.Junction(expression.negate ? Logical.Operator.and : Logical.Operator.or
+                , term.at
+                , lists.toArray(new Node[0]));
+    }
+
+    private static Node rewrite(Node node) {
+        if (node instanceof Node.Term)
+            return term(((Node.Term) node).expression, node.at);
+        if (node instanceof Node.Junction)
+            return junction((Node.Junction) node);
+        if (node instanceof Node.SubQuery) {
+            Node.SubQuery subQuery = (Node.SubQuery) node;
+            Node body = subQuery.node == null ? null : rewrite(subQuery.node);
+            if (body == Node.Constant.FALSE)
+                return body;
+            return body == subQuery.node
+                    ? node
+                    : subQuery.body(body == Node.Constant.TRUE ? null : body);
+        }
+        if (node instanceof Node.Collector) {
+            Node.Collector collector = (Node.Collector) node;
+            Node body = collector.node == null ? null : rewrite(collector.node);
+            if (body == Node.Constant.FALSE)
+                return body;
+            return body == collector.node
+                    ? node
+                    : new Node.Collector(collector.keys, body == Node.Constant.TRUE ? null : body, node.at);
+        }
+        return node;
+    }
+
+    private static Node term(Expression<?> expression, int at) {
+        if (expression.operator == Expression.Operator.in
+                && expression.variable == null
+                && expression.value instanceof Collection
+                && ((Collection<?>) expression.value).isEmpty())
+            return expression.negate ? Node.Constant.TRUE : Node.Constant.FALSE;
+        if (expression.negate) {
+            OperatorTranslator opposite = opposite(expression.operator);
+            if (opposite != null)
+                return new Node.Term(expression.with(opposite, false), at);
+        }
+        return new Node.Term(expression, at);
+    }
+
+    private static OperatorTranslator opposite(OperatorTranslator operator) {
+        if (operator == Expression.Operator.gt)
+            return Expression.Operator.lte;
+        if (operator == Expression.Operator.gte)
+            return Expression.Operator.lt;
+        if (operator == Expression.Operator.lt)
+            return Expression.Operator.gte;
+        if (operator == Expression.Operator.lte)
+            return Expression.Operator.gt;
+        return null;
+    }
+
+    private static Node junction(Node.Junction junction) {
+        if (junction.operator == Logical.Operator.not)
+            return not(rewrite(junction.nodes.get(0)), junction.at);
+
+        boolean and = junction.operator == Logical.Operator.and;
+        Node.Constant identity = and ? Node.Constant.TRUE : Node.Constant.FALSE;
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : junction.nodes) {
+            Node n = rewrite(node);
+            if (n == identity)
+                continue;
+            if (n instanceof Node.Constant)
+                return n;
+            if (n instanceof Node.Junction && ((Node.Junction) n).operator == junction.operator)
+                nodes.addAll(((Node.Junction) n).nodes);
+            else
+                nodes.add(n);
+        }
+
+        // remove duplicates, keeping the first occurrence
+        Map<String, Node> unique = new LinkedHashMap<>();
+        for (Node node : nodes)
+            unique.putIfAbsent(signature(node), node);
+        nodes = new ArrayList<>(unique.values());
+        if (!and)
+            nodes = foldIn(nodes);
+
+        if (nodes.isEmpty())
+            return identity;
+        if (nodes.size() == 1)
+            return nodes.get(0);
+        return new Node.Junction(junction.operator, junction.at, nodes.toArray(new Node[0]));
+    }
+
+    private static Node not(Node node, int at) {
+        if (node instanceof Node.Constant)
+            return node == Node.Constant.TRUE ? Node.Constant.FALSE : Node.Constant.TRUE;
+        if (node instanceof Node.Junction && ((Node.Junction) node).operator == Logical.Operator.not)
+            return ((Node.Junction) node).nodes.get(0);
+        if (node instanceof Node.Term) {
+            Expression<?> expression = ((Node.Term) node).expression;
+            return term(expression.with(expression.operator, !expression.negate), node.at);
+        }
+        return new Node.Junction(Logical.Operator.not, at, node);
+    }
+
+    /**
+     * Fold the equality and in terms of the same key in a disjunction into one in term
+     */
+    private static List<Node> foldIn(List<Node> nodes) {
+        Map<String, List<Node.Term>> byKey = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            if (isFoldable(node))
+                byKey.computeIfAbsent(((Node.Term) node).expression.key, k -> new ArrayList<>()).add((Node.Term) node);
+        }
+        List<Node> folded = new ArrayList<>();
+        for (Node node : nodes) {
+            if (!isFoldable(node)) {
+                folded.add(node);
+                continue;
+            }
+            List<Node.Term> terms = byKey.get(((Node.Term) node).expression.key);
+            if (terms.size() == 1) {
+                folded.add(node);
+            } else if (terms.get(0) == node) {
+                Set<Object> values = new LinkedHashSet<>();
+                for (Node.Term term : terms) {
+                    if (term.expression.value instanceof Collection)
+                        values.addAll((Collection<?>) term.expression.value);
+                    else
+                        values.add(term.expression.value);
+                }
+                folded.add(new Node.Term(new Expression<>(((Node.Term) node).expression.key
+                        , null
+                        , Expression.Operator.in
+                        , false
+                        , new ArrayList<>(values)), node.at));
+            }
+        }
+        return folded;
+    }
+
+    private static boolean isFoldable(Node node) {
+        if (!(node instanceof Node.Term))
+            return false;
+        Expression<?> expression = ((Node.Term) node).expression;
+        if (expression.prop
+                || expression.negate
+                || expression.f1 != null
+                || expression.variable != null
+                || expression.isRelative())
+            return false;
+        return expression.operator == Expression.Operator.eq
+                ? expression.value instanceof String && !Str.EMPTY.equals(expression.s)
+                : expression.operator == Expression.Operator.in && expression.value instanceof Collection;
+    }
+
+    /**
+     * The shape of a node followed by its literal values, equal for nodes which are the same condition
+     */
+    private static String signature(Node node) {
+        StringBuilder sb = new StringBuilder();
+        node.shape(sb);
+        List<Expression<?>> terms = new ArrayList<>();
+        node.terms(terms);
+        for (Expression<?> term : terms)
+            sb.append('\u0000').append(term.prop || term.variable != null ? "" : term.value);
+        return sb.toString();
+    }
+}
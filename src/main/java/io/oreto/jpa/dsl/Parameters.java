@@ -0,0 +1,47 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.ParameterExpression;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Collects the parameters created for literal values while a query is translated
+ */
+class Parameters {
+    private final List<Slot> slots = new ArrayList<>();
+
+    /**
+     * Create a parameter for a literal value
+     * @param cb The criteria builder
+     * @param expression The expression the value belongs to
+     * @param type The type of the attribute the value is compared with
+     * @param value The value
+     * @return The parameter expression
+     */
+    ParameterExpression<?> add(CriteriaBuilder cb, Expression<?> expression, Class<?> type, Object value) {
+        ParameterExpression<?> parameter = cb.parameter(expression.parameterType(type, value));
+        slots.add(new Slot(expression, type, parameter));
+        return parameter;
+    }
+
+    List<Slot> slots() {
+        return Collections.unmodifiableList(slots);
+    }
+
+    /**
+     * A parameter and the expression which provides its value
+     */
+    static class Slot {
+        final Expression<?> expression;
+        final Class<?> type;
+        final ParameterExpression<?> parameter;
+
+        Slot(Expression<?> expression, Class<?> type, ParameterExpression<?> parameter) {
+            this.expression = expression;
+            this.type = type;
+            this.parameter = parameter;
+        }
+    }
+}
@@ -0,0 +1,467 @@
+package io.oreto.jpa.dsl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static io.oreto.jpa.dsl.Lexer.Token;
+
+/**
+ * Parses a query string into an immutable tree of nodes
+ */
+class Parser {
+    // The deepest nesting of groups and sub query blocks allowed by default
+    static final int DEFAULT_MAX_DEPTH = Integer.getInteger("scout.max.depth", 32);
+
+    /**
+     * Parse the query
+     * @param q The query string
+     * @return The root node of the query or null if the query is empty
+     * @throws BadQueryException if the query is malformed
+     */
+    static Node parse(String q) {
+        return parse(q, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Parse the query
+     * @param q The query string
+     * @param maxDepth The deepest nesting of groups and sub query blocks allowed
+     * @return The root node of the query or null if the query is empty
+     * @throws BadQueryException if the query is malformed or nested deeper than maxDepth
+     */
+    static Node parse(String q, int maxDepth) {
+        if (Str.isBlank(q))
+            return null;
+        return new Parser(q, maxDepth).parse();
+    }
+
+    private final Lexer lexer;
+    private final int maxDepth;
+    // the enclosing groups of the group being parsed
+    private final Deque<Frame> stack = new ArrayDeque<>();
+
+    private Parser(CharSequence q, int maxDepth) {
+        this.lexer = new Lexer(q);
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Parse the whole query in a single loop. Nested groups and blocks are kept on an explicit stack
+     * rather than the thread stack, so input nesting is limited only by the max depth.
+     * @return The root node
+     */
+    private Node parse() {
+        Frame frame = new Frame(null, lexer.start, null, null);
+        while (true) {
+            Token token = lexer.next();
+            switch (token) {
+                case END:
+                    while (!stack.isEmpty()) {
+                        if (frame.close == Token.CLOSE_PAREN)
+                            throw new BadQueryException("no matching closing paren ')'", lexer.start);
+                        frame = close(frame);
+                    }
+                    if (frame.close == Token.CLOSE_PAREN)
+                        throw new BadQueryException("no matching closing paren ')'", lexer.start);
+                    return frame.group.node();
+                case CLOSE_BRACE:
+                    if (frame.close == Token.CLOSE_PAREN)
+                        throw new BadQueryException("no matching closing paren ')'", lexer.start);
+                    if (stack.isEmpty())
+                        return frame.group.node();
+                    frame = close(frame);
+                    break;
+                case CLOSE_PAREN:
+                    if (frame.close != Token.CLOSE_PAREN)
+                        throw new BadQueryException("no matching opening paren '('", lexer.start);
+                    frame = close(frame);
+                    break;
+                case OPEN_PAREN:
+                    frame = open(frame, new Frame(Token.CLOSE_PAREN, lexer.start, null, null));
+                    break;
+                case WORD:
+                    Logical.Operator logical = lexer.keyword(Logical.keywords);
+                    if (logical != null && !isKeyAhead())
+                        frame.group.logical(logical);
+                    else
+                        frame = term(frame);
+                    break;
+                default:
+                    throw unexpected();
+            }
+        }
+    }
+
+    /**
+     * Start parsing a nested group
+     * @param frame The current group
+     * @param nested The nested group
+     * @return The nested group
+     * @throws BadQueryException if the nesting is deeper than the max depth
+     */
+    private Frame open(Frame frame, Frame nested) {
+        if (stack.size() >= maxDepth)
+            throw new BadQueryException(String.format("query is nested deeper than %d levels", maxDepth), nested.at);
+        stack.push(frame);
+        return nested;
+    }
+
+    /**
+     * Finish parsing a nested group and add it to the enclosing group
+     * @param frame The nested group
+     * @return The enclosing group
+     */
+    private Frame close(Frame frame) {
+        Frame parent = stack.pop();
+        parent.group.add(frame.node(), frame.at);
+        return parent;
+    }
+
+    /**
+     * Parse a term which starts with the current word, either an expression or the start of a sub query block
+     * @param frame The current group
+     * @return The current group when an expression was added, the new group when a block was opened
+     */
+    private Frame term(Frame frame) {
+        int at = lexer.start;
+        FunctionTranslator f1 = null;
+        String key;
+        if (lexer.peek() == Token.OPEN_PAREN && (f1 = lexer.keyword(Expression.Function.keywords)) != null) {
+            lexer.next();
+            Token token = lexer.next();
+            if (token == Token.CLOSE_PAREN) {
+                key = Str.EMPTY;
+            } else if (token == Token.WORD) {
+                key = lexer.text();
+                expect(Token.CLOSE_PAREN);
+            } else {
+                throw unexpected();
+            }
+        } else {
+            key = lexer.text();
+        }
+
+        switch (lexer.peek()) {
+            case OPEN_BRACE:
+                lexer.next();
+                if (f1 != null)
+                    throw unexpected();
+                return open(frame, new Frame(Token.CLOSE_BRACE, at, key, null));
+            case COMMA:
+                return open(frame, new Frame(Token.CLOSE_BRACE, at, null, collector(key)));
+            case COLON:
+                lexer.next();
+                return frame.add(new Node.Term(expression(key, f1, Expression.Operator.eq, false), at));
+            case METHOD_REF:
+                lexer.next();
+                expect(Token.WORD);
+                boolean negate = lexer.startsWith(Expression.NOT);
+                OperatorTranslator operator = lexer.keyword(Expression.Operator.keywords
+                        , negate ? Expression.NOT.length() : 0);
+                if (operator == null)
+                    throw new BadQueryException("Unexpected operator: " + lexer.text(), lexer.start);
+                if (operator == Expression.Operator.collect) {
+                    List<String> keys = new ArrayList<>();
+                    keys.add(key);
+                    expect(Token.OPEN_BRACE);
+                    return open(frame, new Frame(Token.CLOSE_BRACE, at, null, keys));
+                }
+                if (operator == Expression.Operator.first || operator == Expression.Operator.last) {
+                    if (negate || f1 != null)
+                        throw new BadQueryException("Unexpected operator: " + lexer.text(), lexer.start);
+                    return open(frame, top(key, operator == Expression.Operator.last, at));
+                }
+                if (lexer.peek() == Token.COLON) {
+                    lexer.next();
+                    return frame.add(new Node.Term(expression(key, f1, operator, negate), at));
+                }
+                return frame.add(new Node.Term(new Expression<>(key, f1, operator, negate, Str.EMPTY), at));
+            default:
+                return frame.add(new Node.Term(new Expression<>(key, f1, Expression.Operator.eq, false, true), at));
+        }
+    }
+
+    /**
+     * Parse the keys of a collector up to the opening brace, a,b::collect{
+     * @param key The first key
+     * @return The keys
+     */
+    private List<String> collector(String key) {
+        List<String> keys = new ArrayList<>();
+        keys.add(key);
+        while (lexer.peek() == Token.COMMA) {
+            lexer.next();
+            expect(Token.WORD);
+            keys.add(lexer.text());
+        }
+        expect(Token.METHOD_REF);
+        expect(Token.WORD);
+        if (lexer.keyword(Expression.Operator.keywords) != Expression.Operator.collect)
+            throw new BadQueryException("Expected collect operator after multiple keys", lexer.start);
+        expect(Token.OPEN_BRACE);
+        return keys;
+    }
+
+    /**
+     * Parse the ordering of a top block up to the opening brace, orders::last(purchasedOn,3){
+     * @param key The attribute of the block
+     * @param last True to keep the latest elements
+     * @param at The position of the block
+     * @return The group of the block
+     */
+    private Frame top(String key, boolean last, int at) {
+        expect(Token.OPEN_PAREN);
+        expect(Token.WORD);
+        String order = lexer.text();
+        int limit = 1;
+        if (lexer.peek() == Token.COMMA) {
+            lexer.next();
+            expect(Token.WORD);
+            int start = lexer.start;
+            limit = Str.toInteger(lexer.text())
+                    .filter(i -> i > 0)
+                    .orElseThrow(() -> new BadQueryException("Expected a positive limit", start));
+        }
+        expect(Token.CLOSE_PAREN);
+        expect(Token.OPEN_BRACE);
+        return new Frame(Token.CLOSE_BRACE, at, key, null, order, last, limit);
+    }
+
+    /**
+     * Parse the value of an expression
+     * @return The expression
+     */
+    private Expression<?> expression(String key
+            , FunctionTranslator f1
+            , OperatorTranslator operator
+            , boolean negate) {
+        if (operator == Expression.Operator.range)
+            return range(key, f1, negate);
+        switch (lexer.value()) {
+            case QUOTED:
+                return new Expression<>(key, f1, operator, negate, lexer.text());
+            case OPEN_BRACKET:
+                return new Expression<>(key, f1, operator, negate, list());
+            case FIELD_REF:
+                return new Expression<>(key, f1, operator, negate, null, lexer.text(), false);
+            case PARENT_REF:
+                return new Expression<>(key, f1, operator, negate, null, lexer.text(), true);
+            case VARIABLE:
+                if (lexer.isEmpty())
+                    throw new BadQueryException("Expected variable name after '$'", lexer.start - 1);
+                return new Expression<>(key, f1, operator, negate, lexer.text(), lexer.text());
+            default:
+                FunctionTranslator f2;
+                if (!lexer.isEmpty()
+                        && lexer.peek() == Token.OPEN_PAREN
+                        && (f2 = lexer.keyword(Expression.Function.keywords)) != null) {
+                    lexer.next();
+                    Token token = lexer.value();
+                    if (token != Token.FIELD_REF && token != Token.PARENT_REF && token != Token.LITERAL)
+                        throw unexpected();
+                    String ref = lexer.text();
+                    expect(Token.CLOSE_PAREN);
+                    return new Expression<>(key, f1, operator, negate, f2, ref, token == Token.PARENT_REF);
+                }
+                return new Expression<>(key, f1, operator, negate, lexer.text());
+        }
+    }
+
+    /**
+     * Parse the bounds of a range, [a,b] includes both bounds, (a,b) excludes both and either bound may be left
+     * out to leave that side open, [a,)
+     * @return The expression
+     */
+    private Expression<?> range(String key, FunctionTranslator f1, boolean negate) {
+        Token open = lexer.next();
+        int at = lexer.start;
+        if (open != Token.OPEN_BRACKET && open != Token.OPEN_PAREN)
+            throw new BadQueryException("Expected '[' or '(' to open a range", lexer.start);
+        Token token = lexer.bound();
+        Expression<?> lower = bound(key, f1, open == Token.OPEN_BRACKET
+                ? Expression.Operator.gte
+                : Expression.Operator.gt, token);
+        if (lower != null || token == Token.LITERAL)
+            token = lexer.bound();
+        if (token != Token.COMMA)
+            throw unexpected();
+
+        token = lexer.bound();
+        String text = lexer.text();
+        Token kind = token;
+        if (token == Token.QUOTED || token == Token.VARIABLE || token == Token.LITERAL)
+            token = lexer.bound();
+        if (token != Token.CLOSE_BRACKET && token != Token.CLOSE_PAREN)
+            throw new BadQueryException("Expected ']' or ')' to close a range", lexer.start);
+        Expression<?> upper = bound(key, f1, token == Token.CLOSE_BRACKET
+                ? Expression.Operator.lte
+                : Expression.Operator.lt, kind, text);
+        if (lower == null && upper == null)
+            throw new BadQueryException(String.format("%s::range requires a bound", key), at);
+        return new Expression<>(key, f1, negate, lower, upper);
+    }
+
+    /**
+     * Create the expression of a range bound from the current token
+     * @return The expression or null if the bound is left out
+     */
+    private Expression<?> bound(String key, FunctionTranslator f1, OperatorTranslator operator, Token token) {
+        return token == Token.COMMA ? null : bound(key, f1, operator, token, lexer.text());
+    }
+
+    private Expression<?> bound(String key
+            , FunctionTranslator f1
+            , OperatorTranslator operator
+            , Token token
+            , String text) {
+        switch (token) {
+            case QUOTED:
+                return new Expression<>(key, f1, operator, false, text);
+            case VARIABLE:
+                if (text.isEmpty())
+                    throw new BadQueryException("Expected variable name after '$'", lexer.start - 1);
+                return new Expression<>(key, f1, operator, false, text, text);
+            case LITERAL:
+                return text.isEmpty() ? null : new Expression<>(key, f1, operator, false, text);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parse the items of a list up to the closing bracket
+     * @return The items
+     */
+    private List<Object> list() {
+        List<Object> list = new ArrayList<>();
+        while (true) {
+            switch (lexer.item()) {
+                case QUOTED:
+                    list.add(lexer.text());
+                    break;
+                case LITERAL:
+                    // kept as text and converted once to the type of the attribute, see Expression#toValue
+                    list.add(lexer.text());
+                    break;
+                case COMMA:
+                    break;
+                case CLOSE_BRACKET:
+                    return list;
+                default:
+                    throw new BadQueryException("no matching closing bracket ']'", lexer.start);
+            }
+        }
+    }
+
+    /**
+     * Determine if the current word is used as a key rather than as a keyword
+     * @return True if the word is followed by a colon, method ref or brace
+     */
+    private boolean isKeyAhead() {
+        Token next = lexer.peek();
+        return next == Token.COLON || next == Token.METHOD_REF || next == Token.OPEN_BRACE;
+    }
+
+    private void expect(Token token) {
+        if (lexer.next() != token)
+            throw unexpected();
+    }
+
+    private BadQueryException unexpected() {
+        return lexer.token == Token.END
+                ? new BadQueryException("Unexpected end of query", lexer.start)
+                : new BadQueryException(String.format("Unexpected %s: %s", lexer.token, lexer.text()), lexer.start);
+    }
+
+    /**
+     * A group being parsed: the top level, a parenthesized group or a sub query block
+     */
+    private static class Frame {
+        final Token close;
+        final int at;
+        final String attribute;
+        final List<String> keys;
+        // the ordering of a top block, see Node.SubQuery
+        final String order;
+        final boolean last;
+        final int limit;
+        final Group group = new Group();
+
+        Frame(Token close, int at, String attribute, List<String> keys) {
+            this(close, at, attribute, keys, null, false, 0);
+        }
+
+        Frame(Token close, int at, String attribute, List<String> keys, String order, boolean last, int limit) {
+            this.close = close;
+            this.at = at;
+            this.attribute = attribute;
+            this.keys = keys;
+            this.order = order;
+            this.last = last;
+            this.limit = limit;
+        }
+
+        Frame add(Node node) {
+            group.add(node, node.at);
+            return this;
+        }
+
+        Node node() {
+            if (keys != null)
+                return new Node.Collector(keys, group.node(), at);
+            if (attribute != null)
+                return new Node.SubQuery(attribute, group.node(), order, last, limit, at);
+            return group.node();
+        }
+    }
+
+    /**
+     * Accumulates the nodes of a group. Consecutive nodes joined by the same logical operator are kept in one
+     * junction, a different operator makes the junction so far the first node of a new junction.
+     */
+    private static class Group {
+        private final List<Node> nodes = new ArrayList<>();
+        private Logical.Operator junction;
+        private int at;
+        private Logical.Operator operator;
+        private boolean not;
+
+        void logical(Logical.Operator operator) {
+            if (operator == Logical.Operator.not)
+                not = !not;
+            else
+                this.operator = operator;
+        }
+
+        void add(Node next, int at) {
+            if (next == null)
+                return;
+            if (not) {
+                next = new Node.Junction(Logical.Operator.not, next.at, next);
+                not = false;
+            }
+            Logical.Operator operator = this.operator == null ? Logical.Operator.and : this.operator;
+            this.operator = null;
+            if (nodes.size() > 1 && operator != junction) {
+                Node node = node();
+                nodes.clear();
+                nodes.add(node);
+            }
+            if (nodes.size() == 1) {
+                junction = operator;
+                this.at = at;
+            }
+            nodes.add(next);
+        }
+
+        Node node() {
+            if (nodes.isEmpty())
+                return null;
+            return nodes.size() == 1
+                    ? nodes.get(0)
+                    : new Node.Junction(junction, at, nodes.toArray(new Node[0]));
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.From;
+import javax.persistence.criteria.Join;
+import javax.persistence.criteria.JoinType;
+import javax.persistence.criteria.MapJoin;
+import javax.persistence.criteria.Path;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.MapAttribute;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Resolves dotted attribute paths such as orders.items.attributes.value with the JPA metamodel. How a path is
+ * reached from a managed type is worked out once and cached as a route, navigating a path is then a cache lookup
+ * followed by one get or join per step.
+ */
+final class Paths {
+    // Routes keyed by managed type and dotted path
+    static final Cache<List<Object>, Route> routes = new Cache<>(Cache.DEFAULT_SIZE);
+
+    private Paths() {}
+
+    /**
+     * Navigate a dotted path from a path of the query
+     * @param from The path to start from
+     * @param key The dotted path of the attribute, an empty path is the start path itself
+     * @return The path of the attribute
+     * @throws BadQueryException if the path is not an attribute of the start path
+     */
+    static Path<?> get(Path<?> from, String key) {
+        return get(from, key, null);
+    }
+
+    /**
+     * Navigate a dotted path from a path of the query, reusing the joins of earlier terms
+     * @param from The path to start from
+     * @param key The dotted path of the attribute, prefixed with + to make new joins
+     * @param joins The joins of the query being translated, null to always make new joins
+     * @return The path of the attribute
+     * @throws BadQueryException if the path is not an attribute of the start path
+     */
+    static Path<?> get(Path<?> from, String key, Joins joins) {
+        if (Str.isEmpty(key))
+            return from;
+        boolean independent = key.charAt(0) == Joins.INDEPENDENT;
+        String path = independent ? key.substring(1) : key;
+        return route(from, path).apply(from, joins, path, independent);
+    }
+
+    /**
+     * Join a to-one association, sharing the join with the other terms of the query. The join is a left join
+     * when the term is inside a disjunction or negation.
+     * @param from The path to start from, an embedded path is navigated without a join
+     * @param attribute The name of the association
+     * @param joins The joins of the query being translated, null to make a new inner join
+     * @return The join
+     */
+    static Path<?> join(Path<?> from, String attribute, Joins joins) {
+        if (!(from instanceof From))
+            return from.get(attribute);
+        From<?, ?> parent = (From<?, ?>) from;
+        JoinType type = joins != null && joins.isOptional() ? JoinType.LEFT : JoinType.INNER;
+        Supplier<Join<?, ?>> join = () -> parent.join(attribute, type);
+        return joins == null ? join.get() : joins.single(parent, attribute, join);
+    }
+
+    /**
+     * Get a to-one association or embedded attribute of a managed type, the attributes whose blocks are joined
+     * rather than queried in a sub query
+     * @param type The managed type
+     * @param name The attribute name
+     * @return The attribute or null if the type has no such singular attribute
+     */
+    static Attribute<?, ?> single(ManagedType<?> type, String name) {
+        Attribute<?, ?> attribute;
+        try {
+            attribute = type.getAttribute(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return Tables.isToOne(attribute)
+                || attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.EMBEDDED
+                ? attribute
+                : null;
+    }
+
+    /**
+     * Get the cached route of a dotted path
+     * @param from The path to start from
+     * @param key The dotted path of the attribute
+     * @return The route
+     * @throws BadQueryException if the path is not an attribute of the start path
+     */
+    static Route route(Path<?> from, String key) {
+        ManagedType<?> type = managedType(from.getModel());
+        if (type == null)
+            throw new BadQueryException(String.format("Invalid attribute: %s has no attribute %s", from.getJavaType(), key));
+        return route(type, key);
+    }
+
+    /**
+     * Get the cached route of a dotted path
+     * @param type The managed type to start from
+     * @param key The dotted path of the attribute
+     * @return The route
+     * @throws BadQueryException if the path is not an attribute of the managed type
+     */
+    static Route route(ManagedType<?> type, String key) {
+        return routes.get(Arrays.asList(type, key), k -> new Route(type, key));
+    }
+
+    /**
+     * Determine if a path is a join over a collection
+     * @param path The path
+     * @return True if the path joins a plural attribute
+     */
+    static boolean isPlural(Path<?> path) {
+        return path instanceof Join && ((Join<?, ?>) path).getAttribute().isCollection();
+    }
+
+    /**
+     * The managed type reached through a bindable: an entity or embeddable itself, the element type of a plural
+     * attribute or the type of a singular attribute
+     * @param bindable The bindable
+     * @return The managed type or null if the bindable is of a basic type
+     */
+    static ManagedType<?> managedType(Bindable<?> bindable) {
+        if (bindable instanceof ManagedType)
+            return (ManagedType<?>) bindable;
+        if (bindable instanceof PluralAttribute)
+            return managedType(((PluralAttribute<?, ?, ?>) bindable).getElementType());
+        if (bindable instanceof SingularAttribute)
+            return managedType(((SingularAttribute<?, ?>) bindable).getType());
+        return null;
+    }
+
+    /**
+     * Split a dotted path into the names of its attributes
+     * @param key The dotted path
+     * @return The names
+     * @throws BadQueryException if the path has an empty name, such as a.b. or a..b
+     */
+    static String[] names(String key) {
+        String[] names = key.split("\\.", -1);
+        for (String name : names) {
+            if (name.isEmpty())
+                throw new BadQueryException(String.format("Invalid attribute: %s", key));
+        }
+        return names;
+    }
+
+    /**
+     * The type of the attribute at the end of a dotted path, resolved from the fields or getters of the classes
+     * rather than the metamodel, so it is known when a query is compiled without an entity manager. The type of
+     * a collection is the type of its elements, the type of a map the type of its values, or of its keys when the
+     * path ends with key.
+     * @param type The class to start from
+     * @param key The dotted path, an empty path is the class itself
+     * @return The type or null if the path does not resolve to a class, such as an attribute typed by a type variable
+     */
+    static Class<?> javaType(Class<?> type, String key) {
+        if (!key.isEmpty() && key.charAt(0) == Joins.INDEPENDENT)
+            key = key.substring(1);
+        if (key.isEmpty())
+            return type;
+        Class<?> current = type;
+        // the map reached by the previous name, whose key or value may be named next
+        java.lang.reflect.Type map = null;
+        for (String name : key.split("\\.", -1)) {
+            if (map != null && (name.equals("key") || name.equals("value"))) {
+                current = argument(map, name.equals("key") ? 0 : 1);
+                map = null;
+                continue;
+            }
+            java.lang.reflect.Type declared = current == null || name.isEmpty() ? null : declaredType(current, name);
+            Class<?> raw = raw(declared);
+            if (raw == null)
+                return null;
+            map = null;
+            if (Collection.class.isAssignableFrom(raw)) {
+                current = argument(declared, 0);
+            } else if (Map.class.isAssignableFrom(raw)) {
+                map = declared;
+                current = argument(declared, 1);
+            } else {
+                current = raw;
+            }
+        }
+        return current;
+    }
+
+    private static java.lang.reflect.Type declaredType(Class<?> type, String name) {
+        for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(name).getGenericType();
+            } catch (NoSuchFieldException ignored) {
+            }
+        }
+        String property = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        for (String prefix : Arrays.asList("get", "is")) {
+            try {
+                return type.getMethod(prefix + property).getGenericReturnType();
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return null;
+    }
+
+    private static Class<?> raw(java.lang.reflect.Type type) {
+        if (type instanceof Class)
+            return (Class<?>) type;
+        if (type instanceof java.lang.reflect.ParameterizedType)
+            return raw(((java.lang.reflect.ParameterizedType) type).getRawType());
+        return null;
+    }
+
+    private static Class<?> argument(java.lang.reflect.Type type, int i) {
+        if (!(type instanceof java.lang.reflect.ParameterizedType))
+            return null;
+        java.lang.reflect.Type[] arguments = ((java.lang.reflect.ParameterizedType) type).getActualTypeArguments();
+        return i < arguments.length ? raw(arguments[i]) : null;
+    }
+
+    /**
+     * The managed type reached through a dotted path of associations and embeddables
+     * @param type The managed type to start from
+     * @param key The dotted path
+     * @return The managed type or null if the path ends with a basic attribute
+     * @throws BadQueryException if the path is not an attribute of the managed type
+     */
+    static ManagedType<?> managedType(ManagedType<?> type, String key) {
+        ManagedType<?> current = type;
+        for (String name : names(key)) {
+            if (current == null)
+                throw new BadQueryException(String.format("Invalid attribute: %s", key));
+            try {
+                current = managedType((Bindable<?>) current.getAttribute(name));
+            } catch (IllegalArgumentException e) {
+                throw new BadQueryException(String.format("Invalid attribute: %s of %s"
+                        , name, current.getJavaType().getSimpleName()));
+            }
+        }
+        return current;
+    }
+
+    private static ManagedType<?> managedType(Type<?> type) {
+        return type instanceof ManagedType ? (ManagedType<?>) type : null;
+    }
+
+    /**
+     * How an attribute is reached from its parent path
+     */
+    enum Step {
+        get         // singular attribute, embedded or embedded id
+        , joinOne   // to-one association navigated further, the association is joined
+        , join      // collection of entities, embeddables or basic values
+        , joinMap   // map, the join itself is the map value
+        , key       // key of a map join
+        , value     // value of a map join
+    }
+
+    /**
+     * The steps navigating a dotted path from a managed type
+     */
+    static final class Route {
+        private final String[] names;
+        private final Step[] steps;
+        // the step of the last attribute, when it is a join the path is plural
+        final Step last;
+        // the type of the attribute at the end of the route, the element type of a collection
+        final Class<?> javaType;
+        // the class of the managed type the attribute at the end of the route belongs to
+        final Class<?> owner;
+
+        Route(ManagedType<?> type, String key) {
+            List<String> names = new ArrayList<>();
+            List<Step> steps = new ArrayList<>();
+            ManagedType<?> current = type;
+            MapAttribute<?, ?, ?> map = null;
+            Class<?> javaType = type.getJavaType();
+            Class<?> owner = javaType;
+            for (String name : names(key)) {
+                if (map != null && (Step.key.name().equals(name) || Step.value.name().equals(name))) {
+                    boolean isKey = Step.key.name().equals(name);
+                    steps.add(isKey ? Step.key : Step.value);
+                    names.add(name);
+                    current = managedType(isKey ? map.getKeyType() : map.getElementType());
+                    javaType = isKey ? map.getKeyJavaType() : map.getElementType().getJavaType();
+                    map = null;
+                    continue;
+                }
+                map = null;
+                if (current == null)
+                    throw new BadQueryException(String.format("Invalid attribute: %s", key));
+                owner = current.getJavaType();
+                Attribute<?, ?> attribute;
+                try {
+                    attribute = current.getAttribute(name);
+                } catch (IllegalArgumentException e) {
+                    throw new BadQueryException(String.format("Invalid attribute: %s of %s"
+                            , name, current.getJavaType().getSimpleName()));
+                }
+                names.add(name);
+                if (attribute instanceof MapAttribute) {
+                    map = (MapAttribute<?, ?, ?>) attribute;
+                    steps.add(Step.joinMap);
+                } else if (attribute.isCollection()) {
+                    steps.add(Step.join);
+                } else {
+                    steps.add(Tables.isToOne(attribute) ? Step.joinOne : Step.get);
+                }
+                current = managedType((Bindable<?>) attribute);
+                javaType = ((Bindable<?>) attribute).getBindableJavaType();
+            }
+            // an association at the end of the route is compared by its foreign key without a join
+            if (steps.get(steps.size() - 1) == Step.joinOne)
+                steps.set(steps.size() - 1, Step.get);
+            this.names = names.toArray(new String[0]);
+            this.steps = steps.toArray(new Step[0]);
+            this.last = this.steps[this.steps.length - 1];
+            this.javaType = javaType;
+            this.owner = owner;
+        }
+
+        int size() {
+            return steps.length;
+        }
+
+        String name(int i) {
+            return names[i];
+        }
+
+        Step step(int i) {
+            return steps[i];
+        }
+
+        /**
+         * @return True if the route joins a collection, so one row of the start path may become several rows
+         */
+        boolean isPlural() {
+            for (Step step : steps) {
+                if (step == Step.join || step == Step.joinMap)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * Navigate the route
+         * @param from The path to start from, which must have the managed type of the route
+         * @param joins The joins of the query being translated, null to make new joins
+         * @param key The key of the term navigating the route
+         * @param independent True to make new joins of collections
+         * @return The path of the attribute
+         */
+        Path<?> apply(Path<?> from, Joins joins, String key, boolean independent) {
+            Path<?> path = from;
+            for (int i = 0; i < steps.length; i++) {
+                switch (steps[i]) {
+                    case get:
+                        path = path.get(names[i]);
+                        break;
+                    case joinOne:
+                        path = join(path, names[i], joins);
+                        break;
+                    case join:
+                    case joinMap:
+                        String name = names[i];
+                        From<?, ?> parent = from(path, name);
+                        Supplier<Join<?, ?>> join = steps[i] == Step.joinMap
+                                ? () -> parent.joinMap(name)
+                                : () -> parent.join(name);
+                        path = joins == null || independent ? join.get() : joins.join(parent, name, key, join);
+                        break;
+                    case key:
+                        path = ((MapJoin<?, ?, ?>) path).key();
+                        break;
+                    case value:
+                        path = ((MapJoin<?, ?, ?>) path).value();
+                        break;
+                }
+            }
+            return path;
+        }
+
+        private static From<?, ?> from(Path<?> path, String name) {
+            if (path instanceof From)
+                return (From<?, ?>) path;
+            throw new BadQueryException(String.format("Cannot join %s from %s", name, path.getJavaType().getSimpleName()));
+        }
+    }
+}
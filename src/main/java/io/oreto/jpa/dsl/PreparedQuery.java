@@ -0,0 +1,184 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compiled query with values bound to its variables. Prepared queries are immutable, binding a value returns
+ * a new prepared query, so one instance can be shared between threads and bound differently for each request.
+ * <pre>
+ * PreparedQuery&lt;Person&gt; query = DSL.prepare(Person.class, "orders{ purchasedOn::gt:$since } and name::istartswith:$prefix");
+ * query.bind("since", since).bind("prefix", "ro").typedQuery(entityManager).getResultList();
+ * </pre>
+ * @param <T> The entity type
+ */
+public final class PreparedQuery<T> {
+    private final CompiledQuery<T> query;
+    private final Map<String, Object> variables;
+
+    PreparedQuery(CompiledQuery<T> query) {
+        this(query, Collections.emptyMap());
+    }
+
+    private PreparedQuery(CompiledQuery<T> query, Map<String, Object> variables) {
+        this.query = query;
+        this.variables = variables;
+    }
+
+    /**
+     * Bind a value to a variable. The value must have the type of the attribute it is compared with, a collection
+     * of such values for the in operator or a string for the like operators. Texts and numbers are converted to the
+     * type of the attribute, so a date or an id can be bound as it was received.
+     * @param name The name of the variable without the leading $
+     * @param value The value
+     * @return A new prepared query with the value bound
+     * @throws BadQueryException if the query has no variable with the name or the value is not a valid value of
+     * the attribute
+     */
+    public PreparedQuery<T> bind(String name, Object value) {
+        Map<String, Object> variables = new HashMap<>(this.variables);
+        variables.put(name, query.bind(name, value));
+        return new PreparedQuery<>(query, Collections.unmodifiableMap(variables));
+    }
+
+    /**
+     * Choose how the aggregate terms of the top level of the query filter the entities
+     * @param grouping The grouping strategy
+     * @return A new prepared query with the strategy and the values bound so far
+     * @see CompiledQuery#grouping(Grouping)
+     */
+    public PreparedQuery<T> grouping(Grouping grouping) {
+        return new PreparedQuery<>(query.grouping(grouping), variables);
+    }
+
+    /**
+     * Expand a top level disjunction into one query per branch when the query is listed
+     * @param branches The most branches a disjunction may have to be expanded, 0 to never expand
+     * @return A new prepared query with the expansion and the values bound so far
+     * @see CompiledQuery#expand(int)
+     */
+    public PreparedQuery<T> expand(int branches) {
+        return new PreparedQuery<>(query.expand(branches), variables);
+    }
+
+    /**
+     * Choose whether a block which is the only condition of its block is joined in the sub query of the outer block
+     * @param flatten True to join nested blocks in one sub query, false to nest a sub query for each block
+     * @return A new prepared query with the choice and the values bound so far
+     * @see CompiledQuery#flatten(boolean)
+     */
+    public PreparedQuery<T> flatten(boolean flatten) {
+        return new PreparedQuery<>(query.flatten(flatten), variables);
+    }
+
+    public CompiledQuery<T> getQuery() {
+        return query;
+    }
+
+    /**
+     * @return The names of the variables of the query
+     */
+    public Set<String> getVariables() {
+        return query.getVariables();
+    }
+
+    /**
+     * @return The values bound so far by variable name
+     */
+    public Map<String, Object> getValues() {
+        return variables;
+    }
+
+    /**
+     * Bind the query to a criteria query, the bound values are used as literals
+     * @param root The root of the query
+     * @param query The criteria query
+     * @param criteriaBuilder The criteria builder
+     * @param fetch Attributes to fetch
+     * @return The restriction of the query or null if the query is empty
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public Predicate predicate(Root<T> root, CriteriaQuery<?> query, CriteriaBuilder criteriaBuilder, String... fetch) {
+        return this.query.predicate(root, query, criteriaBuilder, variables, fetch);
+    }
+
+    /**
+     * Create a criteria query for the entity, the bound values are used as literals
+     * @param entityManager The entity manager used to create the query
+     * @param fetch Attributes to fetch
+     * @return The criteria query
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public CriteriaQuery<T> toCriteria(EntityManager entityManager, String... fetch) {
+        return query.criteriaQuery(entityManager, variables, fetch);
+    }
+
+    /**
+     * Create a typed query from the cached criteria query of this query shape, the bound values and the literals
+     * of the query are bound to parameters
+     * @param entityManager The entity manager used to create the query
+     * @param fetch Attributes to fetch
+     * @return The typed query with all parameters bound
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public TypedQuery<T> typedQuery(EntityManager entityManager, String... fetch) {
+        return query.typedQuery(entityManager, variables, fetch);
+    }
+
+    /**
+     * Run the query, see {@link CompiledQuery#list(EntityManager, String...)}
+     * @param entityManager The entity manager used to run the query
+     * @param fetch Attributes to fetch
+     * @return The matching entities
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public List<T> list(EntityManager entityManager, String... fetch) {
+        return query.list(entityManager, variables, fetch);
+    }
+
+    /**
+     * Create a runner of the query with the values bound so far, which sets the hints of the statements it runs
+     * @param entityManager The entity manager used to run the query
+     * @return The runner
+     */
+    public QueryRunner<T> runner(EntityManager entityManager) {
+        return new QueryRunner<>(entityManager, this);
+    }
+
+    /**
+     * Compile the query to a JPQL statement, the bound values and the literals of the query are named parameters
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param fetch Attributes to fetch
+     * @return The statement and its parameter values
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public JpqlQuery<T> jpql(EntityManager entityManager, String... fetch) {
+        return query.jpql(entityManager, variables, fetch);
+    }
+
+    /**
+     * Compile the query to a native SQL statement, the bound values and the literals of the query are parameters
+     * @param entityManager The entity manager whose metamodel resolves the attributes of the query
+     * @param dialect The dialect of the database
+     * @param select Attributes to select instead of the primary key
+     * @return The statement and its parameter values
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public SqlQuery<T> sql(EntityManager entityManager, Dialect dialect, String... select) {
+        return query.sql(entityManager, dialect, variables, select);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s", query, variables);
+    }
+}
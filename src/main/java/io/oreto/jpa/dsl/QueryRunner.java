@@ -0,0 +1,179 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Runs a query with the hints of the statements it runs, so read paths can skip the work a query does by default.
+ * <pre>
+ * List&lt;Person&gt; people = DSL.query(entityManager, Person.class, "orders{ amount::gt:100 }")
+ *         .readOnly()
+ *         .fetchSize(500)
+ *         .timeout(Duration.ofSeconds(5))
+ *         .list();
+ * </pre>
+ * A read only query is flushed on commit rather than before it runs, and the provider neither keeps a snapshot of
+ * the entities it loads nor checks them for changes. The hints are set with their standard name where JPA has one
+ * and with the names of Hibernate and EclipseLink otherwise, a provider ignores the hints it does not know.
+ * <p>
+ * The settings registered for an entity with {@link #defaults(Class, Consumer)} are applied to each new runner of
+ * the entity first. A runner is bound to its entity manager and, like the entity manager, is not meant to be shared
+ * between threads.
+ * @param <T> The entity type
+ */
+public final class QueryRunner<T> {
+    // the settings of each new runner keyed by entity class
+    private static final Map<Class<?>, Consumer<QueryRunner<?>>> defaults = new ConcurrentHashMap<>();
+
+    /**
+     * Register the settings applied to each new runner of an entity, or of its subclasses unless they have their own,
+     * replacing the settings already registered for it
+     * @param type The entity class
+     * @param settings The settings, such as runner -&gt; runner.readOnly().fetchSize(500), null to remove them
+     */
+    public static void defaults(Class<?> type, Consumer<QueryRunner<?>> settings) {
+        if (settings == null)
+            defaults.remove(type);
+        else
+            defaults.put(type, settings);
+    }
+
+    private final EntityManager entityManager;
+    private PreparedQuery<T> query;
+    private FlushModeType flushMode;
+    private final Map<String, Object> hints = new LinkedHashMap<>();
+
+    QueryRunner(EntityManager entityManager, PreparedQuery<T> query) {
+        this.entityManager = entityManager;
+        this.query = query;
+        for (Class<?> type = query.getQuery().getType(); type != null; type = type.getSuperclass()) {
+            Consumer<QueryRunner<?>> settings = defaults.get(type);
+            if (settings != null) {
+                settings.accept(this);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Bind a value to a variable of the query, see {@link PreparedQuery#bind(String, Object)}
+     * @param name The name of the variable without the leading $
+     * @param value The value
+     * @return This runner
+     */
+    public QueryRunner<T> bind(String name, Object value) {
+        query = query.bind(name, value);
+        return this;
+    }
+
+    /**
+     * Load the entities read only, they are not snapshot or checked for changes, and flush on commit only
+     * @return This runner
+     */
+    public QueryRunner<T> readOnly() {
+        hints.put("org.hibernate.readOnly", true);
+        hints.put("eclipselink.read-only", true);
+        return flushMode(FlushModeType.COMMIT);
+    }
+
+    /**
+     * @param flushMode When pending changes are flushed, FlushModeType.COMMIT to not flush before the query runs
+     * @return This runner
+     */
+    public QueryRunner<T> flushMode(FlushModeType flushMode) {
+        this.flushMode = flushMode;
+        return this;
+    }
+
+    /**
+     * @param rows The number of rows the JDBC driver fetches in each round trip
+     * @return This runner
+     */
+    public QueryRunner<T> fetchSize(int rows) {
+        if (rows <= 0)
+            throw new IllegalArgumentException("fetch size must be positive");
+        hints.put("org.hibernate.fetchSize", rows);
+        hints.put("eclipselink.jdbc.fetch-size", rows);
+        return this;
+    }
+
+    /**
+     * @param timeout How long each statement may run before it is cancelled, javax.persistence.query.timeout
+     * @return This runner
+     */
+    public QueryRunner<T> timeout(Duration timeout) {
+        if (timeout.isNegative())
+            throw new IllegalArgumentException("timeout must not be negative");
+        hints.put("javax.persistence.query.timeout", (int) Math.min(timeout.toMillis(), Integer.MAX_VALUE));
+        return this;
+    }
+
+    /**
+     * Set any other hint of the statements
+     * @param name The name of the hint
+     * @param value The value of the hint
+     * @return This runner
+     */
+    public QueryRunner<T> hint(String name, Object value) {
+        hints.put(name, value);
+        return this;
+    }
+
+    /**
+     * @return The flush mode of the statements, null for the flush mode of the entity manager
+     */
+    public FlushModeType getFlushMode() {
+        return flushMode;
+    }
+
+    /**
+     * @return The hints of the statements by name
+     */
+    public Map<String, Object> getHints() {
+        return Collections.unmodifiableMap(hints);
+    }
+
+    /**
+     * Run the query, see {@link CompiledQuery#list(EntityManager, String...)}. The hints are applied to each
+     * statement the query runs, a query expanded into branches runs several.
+     * @param fetch Attributes to fetch
+     * @return The matching entities
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public List<T> list(String... fetch) {
+        return query.getQuery().list(entityManager, query.getValues(), this::apply, fetch);
+    }
+
+    /**
+     * Create the typed query of the query with the hints applied, for callers which page or stream the results
+     * @param fetch Attributes to fetch
+     * @return The typed query with all parameters bound
+     * @throws BadQueryException if a variable has no value or a value of the wrong type
+     */
+    public TypedQuery<T> typedQuery(String... fetch) {
+        TypedQuery<T> typedQuery = query.typedQuery(entityManager, fetch);
+        apply(typedQuery);
+        return typedQuery;
+    }
+
+    private void apply(Query statement) {
+        if (flushMode != null)
+            statement.setFlushMode(flushMode);
+        for (Map.Entry<String, Object> hint : hints.entrySet())
+            statement.setHint(hint.getKey(), hint.getValue());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s %s", query, flushMode, hints);
+    }
+}
@@ -0,0 +1,148 @@
+package io.oreto.jpa.dsl;
+
+import java.sql.Timestamp;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A temporal literal relative to the clock of {@link Converters#getClock()}, such as now-7d or startOfDay-1d.
+ * The literal is resolved each time a value is bound, so the text of a query filtering a time window stays
+ * the same across requests and keeps hitting the caches keyed by it.
+ * <p>
+ * A literal is an anchor, now, today or startOfDay, startOfWeek, startOfMonth or startOfYear, followed by any
+ * number of offsets, a sign, a number and a unit: s, m, h, d, w, M or y.
+ */
+final class Relative {
+    private enum Anchor {
+        now, today, startOfDay, startOfWeek, startOfMonth, startOfYear
+    }
+
+    private static final Keywords<Anchor> anchors = new Keywords<>(Anchor.values());
+
+    private final Anchor anchor;
+    private final List<Long> amounts;
+    private final List<ChronoUnit> units;
+
+    private Relative(Anchor anchor, List<Long> amounts, List<ChronoUnit> units) {
+        this.anchor = anchor;
+        this.amounts = amounts;
+        this.units = units;
+    }
+
+    /**
+     * Parse a relative temporal literal
+     * @param s The text of the literal
+     * @return The literal or null if the text is not a relative temporal literal
+     */
+    static Relative parse(String s) {
+        if (s == null || s.isEmpty())
+            return null;
+        int i = 0;
+        while (i < s.length() && Character.isLetter(s.charAt(i)))
+            i++;
+        Anchor anchor = anchors.get(s, 0, i);
+        if (anchor == null)
+            return null;
+
+        List<Long> amounts = new ArrayList<>();
+        List<ChronoUnit> units = new ArrayList<>();
+        while (i < s.length()) {
+            char sign = s.charAt(i++);
+            if (sign != '+' && sign != '-')
+                return null;
+            int start = i;
+            while (i < s.length() && Character.isDigit(s.charAt(i)))
+                i++;
+            if (i == start || i == s.length() || i - start > 9)
+                return null;
+            ChronoUnit unit = unit(s.charAt(i++));
+            if (unit == null)
+                return null;
+            long amount = Long.parseLong(s.substring(start, i - 1));
+            amounts.add(sign == '-' ? -amount : amount);
+            units.add(unit);
+        }
+        return new Relative(anchor, amounts, units);
+    }
+
+    private static ChronoUnit unit(char c) {
+        switch (c) {
+            case 's': return ChronoUnit.SECONDS;
+            case 'm': return ChronoUnit.MINUTES;
+            case 'h': return ChronoUnit.HOURS;
+            case 'd': return ChronoUnit.DAYS;
+            case 'w': return ChronoUnit.WEEKS;
+            case 'M': return ChronoUnit.MONTHS;
+            case 'y': return ChronoUnit.YEARS;
+            default: return null;
+        }
+    }
+
+    /**
+     * Resolve the literal against the current time of the clock
+     * @param type The type of the attribute the value is compared with
+     * @return The value or null if the type is not a temporal type
+     */
+    Object resolve(Class<?> type) {
+        if (!isTemporal(type))
+            return null;
+        ZonedDateTime time = ZonedDateTime.now(Converters.getClock());
+        switch (anchor) {
+            case now:
+                break;
+            case startOfWeek:
+                time = time.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)).truncatedTo(ChronoUnit.DAYS);
+                break;
+            case startOfMonth:
+                time = time.with(TemporalAdjusters.firstDayOfMonth()).truncatedTo(ChronoUnit.DAYS);
+                break;
+            case startOfYear:
+                time = time.with(TemporalAdjusters.firstDayOfYear()).truncatedTo(ChronoUnit.DAYS);
+                break;
+            default:
+                time = time.truncatedTo(ChronoUnit.DAYS);
+        }
+        for (int i = 0; i < amounts.size(); i++)
+            time = time.plus(amounts.get(i), units.get(i));
+
+        if (type == LocalDateTime.class)
+            return time.toLocalDateTime();
+        if (type == LocalDate.class)
+            return time.toLocalDate();
+        if (type == LocalTime.class)
+            return time.toLocalTime();
+        if (type == Instant.class)
+            return time.toInstant();
+        if (type == OffsetDateTime.class)
+            return time.toOffsetDateTime();
+        if (type == ZonedDateTime.class)
+            return time;
+        if (type == Timestamp.class)
+            return Timestamp.from(time.toInstant());
+        if (type == java.sql.Date.class)
+            return java.sql.Date.valueOf(time.toLocalDate());
+        return Date.from(time.toInstant());
+    }
+
+    private static boolean isTemporal(Class<?> type) {
+        return type == LocalDateTime.class
+                || type == LocalDate.class
+                || type == LocalTime.class
+                || type == Instant.class
+                || type == OffsetDateTime.class
+                || type == ZonedDateTime.class
+                || type == Timestamp.class
+                || type == java.sql.Date.class
+                || type == Date.class;
+    }
+}
@@ -0,0 +1,376 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EnumType;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.ManagedType;
+import javax.persistence.metamodel.Metamodel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The native SQL backend. Queries are rendered by the nodes like JPQL statements, with a context which maps
+ * entities and attributes to tables and columns, so the statement goes to the database without being translated
+ * by the provider. Sub queries start from the joined table of the enclosing query and correlate with a foreign key,
+ * exists (select 1 from p_order e1 where e1.person_id = e0.id and ...).
+ */
+final class Sql {
+    // the parameter references of a rendered statement, ?1 ?2 ...
+    private static final Pattern references = Pattern.compile("\\?(\\d+)");
+
+    private Sql() {}
+
+    /**
+     * Render a compiled query
+     * @param metamodel The metamodel of the persistence unit
+     * @param dialect The dialect of the database
+     * @param type The entity class
+     * @param node The root node of the query, may be null
+     * @param terms The expressions of the query in query order
+     * @param subQuery True to filter aggregates in a sub query
+     * @param flatten True to join nested blocks in the sub query of their block
+     * @param select The attributes selected, the primary key of the entity if there are none
+     * @return The SQL statement and the expressions providing its parameters
+     */
+    static Template render(Metamodel metamodel
+            , Dialect dialect
+            , Class<?> type
+            , Node node
+            , List<Expression<?>> terms
+            , boolean subQuery
+            , boolean flatten
+            , String... select) {
+        TableContext context = new TableContext(new Tables(dialect), flatten);
+        Jpql.Select from = new Jpql.Select();
+        EntityType<?> entity = metamodel.entity(type);
+        Jpql.Alias root = context.root(from, entity);
+        Jpql scope = new Jpql(context, root, null);
+        Jpql.Clauses clauses = Jpql.restrict(context, root, node, subQuery);
+
+        List<Jpql.Ref> columns = new ArrayList<>();
+        if (select.length == 0) {
+            List<String> ids = context.tables.ids(entity);
+            Class<?> idType = ids.size() == 1 ? entity.getIdType().getJavaType() : null;
+            for (String id : ids)
+                columns.add(new Jpql.Ref(root.name + '.' + id, idType));
+        } else {
+            for (String s : select)
+                columns.add(scope.path(root, s));
+        }
+        List<String> paths = new ArrayList<>();
+        Class<?>[] types = new Class<?>[columns.size()];
+        for (int i = 0; i < types.length; i++) {
+            paths.add(columns.get(i).path);
+            types[i] = columns.get(i).javaType;
+        }
+        if (clauses.having != null)
+            clauses.grouping.addAll(paths);
+        String query = from.render("select " + String.join(", ", paths), clauses, null);
+        return new Template(new Jpql.Template(query, terms, context.expressions, context.types, dialect.inLimit())
+                , context.enumTypes
+                , types);
+    }
+
+    /**
+     * Renders SQL over the tables of the entities
+     */
+    static final class TableContext extends Jpql.Context {
+        final Tables tables;
+        // the links and attributes of joined aliases
+        private final Map<Jpql.Alias, Tables.Link> links = new IdentityHashMap<>();
+        private final Map<Jpql.Alias, Attribute<?, ?>> attributes = new IdentityHashMap<>();
+
+        TableContext(Tables tables, boolean flatten) {
+            super(flatten);
+            this.tables = tables;
+        }
+
+        @Override
+        Jpql.Alias root(Jpql.Select select, EntityType<?> entity) {
+            Jpql.Alias alias = new Jpql.Alias(alias(), entity, entity.getJavaType(), null, false, select);
+            select.from.append(tables.table(entity)).append(' ').append(alias.name);
+            select.identity = columns(alias.name, tables.ids(entity));
+            return alias;
+        }
+
+        @Override
+        Jpql.Alias correlate(Jpql.Select select, Jpql.Alias outer, String attribute) {
+            Attribute<?, ?> a = attribute(outer.type, attribute);
+            Tables.Link link = tables.link(entity(outer, attribute), a);
+            Tables.Hop hop = link.hops[0];
+            String name = alias();
+            select.from.append(hop.table).append(' ').append(name);
+            select.conditions.add(on(outer.name, name, hop));
+            // the correlated columns identify the enclosing row
+            select.identity = columns(name, hop.to);
+            return join(select, name, link, 1, a, false);
+        }
+
+        @Override
+        Jpql.Alias join(Jpql.Alias from, String attribute) {
+            Attribute<?, ?> a = attribute(from.type, attribute);
+            return join(from.select, from.name, tables.link(entity(from, attribute), a), 0, a, false);
+        }
+
+        @Override
+        Jpql.Alias single(Jpql.Alias from, Attribute<?, ?> attribute) {
+            if (!Tables.isToOne(attribute)) {
+                // the columns of an embeddable are in the table of its owner
+                Bindable<?> bindable = (Bindable<?>) attribute;
+                return new Jpql.Alias(from.name
+                        , Paths.managedType(bindable)
+                        , bindable.getBindableJavaType()
+                        , attribute.getName()
+                        , false
+                        , from.select);
+            }
+            return join(from, attribute);
+        }
+
+        @Override
+        Jpql.Ref path(Jpql.Alias alias) {
+            if (alias.type instanceof EntityType) {
+                EntityType<?> entity = (EntityType<?>) alias.type;
+                List<String> ids = tables.ids(entity);
+                return new Jpql.Ref(alias.name + '.' + ids.get(0), ids.size() == 1 ? entity.getIdType().getJavaType() : null);
+            }
+            Tables.Link link = links.get(alias);
+            if (link == null || link.value == null)
+                throw new BadQueryException(String.format("Cannot compare %s, it is not a value", alias.javaType.getSimpleName()));
+            return new Jpql.Ref(alias.name + '.' + link.value, alias.javaType, Tables.enumType(attributes.get(alias)));
+        }
+
+        @Override
+        Jpql.Ref path(Jpql.Alias from, Paths.Route route, String key, boolean independent) {
+            Jpql.Alias alias = from;
+            ManagedType<?> type = from.type;
+            // the last attribute navigated inside the table of the alias
+            Attribute<?, ?> attribute = null;
+            for (int i = 0; i < route.size(); i++) {
+                String name = route.name(i);
+                Paths.Step step = route.step(i);
+                if (step == Paths.Step.key) {
+                    Tables.Link link = links.get(alias);
+                    if (link == null || link.key == null)
+                        throw new BadQueryException(String.format("Cannot compare the keys of %s", key));
+                    return new Jpql.Ref(alias.name + '.' + link.key, route.javaType);
+                }
+                if (step == Paths.Step.value)
+                    continue;
+                Attribute<?, ?> a = attribute(type, name);
+                if (step == Paths.Step.get) {
+                    attribute = a;
+                    type = Paths.managedType((Bindable<?>) a);
+                    continue;
+                }
+                if (step == Paths.Step.joinOne) {
+                    alias = join(alias, a);
+                    type = alias.type;
+                    attribute = null;
+                    continue;
+                }
+                Jpql.Alias parent = alias;
+                Tables.Link link = tables.link(entity(parent, name), a);
+                Supplier<Jpql.Alias> join = () -> join(parent.select, parent.name, link, 0, a, false);
+                alias = independent ? join.get() : joins.join(parent.name, name, key, join);
+                type = alias.type;
+                attribute = null;
+            }
+            if (attribute == null)
+                return path(alias);
+            if (Tables.isToOne(attribute))
+                return new Jpql.Ref(alias.name + '.' + tables.foreignKey(entity(alias, key), attribute).get(0)
+                        , route.javaType);
+            if (type != null)
+                throw new BadQueryException(String.format("Cannot compare %s, it is not a value", key));
+            return new Jpql.Ref(alias.name + '.' + tables.column(attribute), route.javaType, Tables.enumType(attribute));
+        }
+
+        @Override
+        boolean hasTuples() {
+            return true;
+        }
+
+        @Override
+        CaseInsensitivity caseInsensitivity() {
+            return tables.dialect.caseInsensitivity();
+        }
+
+        @Override
+        String condition(OperatorTranslator translator, String left, String right, boolean field) {
+            return translator.toSql(left, right, field);
+        }
+
+        @Override
+        String function(FunctionTranslator translator, String argument) {
+            return translator.toSql(argument);
+        }
+
+        @Override
+        String parameter(int n) {
+            return "?" + n;
+        }
+
+        /**
+         * Join a to-one association, sharing the join with the other terms of the query
+         * @param from The alias the association belongs to
+         * @param attribute The association
+         * @return The alias of the associated table
+         */
+        private Jpql.Alias join(Jpql.Alias from, Attribute<?, ?> attribute) {
+            Tables.Link link = tables.link(entity(from, attribute.getName()), attribute);
+            boolean left = joins.isOptional();
+            return joins.single(from.name, attribute.getName()
+                    , () -> join(from.select, from.name, link, 0, attribute, left));
+        }
+
+        /**
+         * Join the hops of a link
+         * @param select The select receiving the joins
+         * @param from The alias of the table the first hop starts from
+         * @param link The link
+         * @param start The first hop joined, earlier hops are already in the from clause
+         * @param attribute The joined attribute
+         * @param left True to left join the hops
+         * @return The alias of the last hop
+         */
+        private Jpql.Alias join(Jpql.Select select
+                , String from
+                , Tables.Link link
+                , int start
+                , Attribute<?, ?> attribute
+                , boolean left) {
+            String name = from;
+            for (int i = start; i < link.hops.length; i++) {
+                String previous = name;
+                name = alias();
+                select.from.append(left ? " left join " : " join ").append(link.hops[i].table).append(' ').append(name)
+                        .append(" on ").append(on(previous, name, link.hops[i]));
+            }
+            return alias(select, name, link, attribute);
+        }
+
+        private Jpql.Alias alias(Jpql.Select select, String name, Tables.Link link, Attribute<?, ?> attribute) {
+            Bindable<?> bindable = (Bindable<?>) attribute;
+            Jpql.Alias alias = new Jpql.Alias(name
+                    , Paths.managedType(bindable)
+                    , bindable.getBindableJavaType()
+                    , attribute.getName()
+                    , attribute.isCollection()
+                    , select);
+            links.put(alias, link);
+            attributes.put(alias, attribute);
+            return alias;
+        }
+
+        private static String on(String from, String to, Tables.Hop hop) {
+            List<String> conditions = new ArrayList<>();
+            for (int i = 0; i < hop.to.size(); i++)
+                conditions.add(to + '.' + hop.to.get(i) + " = " + from + '.' + hop.from.get(i));
+            return String.join(" and ", conditions);
+        }
+
+        private static String columns(String alias, List<String> columns) {
+            List<String> list = new ArrayList<>();
+            for (String column : columns)
+                list.add(alias + '.' + column);
+            return String.join(", ", list);
+        }
+
+        private static Attribute<?, ?> attribute(ManagedType<?> type, String name) {
+            try {
+                return type.getAttribute(name);
+            } catch (IllegalArgumentException | NullPointerException e) {
+                throw new BadQueryException(String.format("Invalid attribute: %s", name));
+            }
+        }
+
+        private static EntityType<?> entity(Jpql.Alias alias, String attribute) {
+            if (alias.type instanceof EntityType)
+                return (EntityType<?>) alias.type;
+            throw new BadQueryException(String.format("Cannot join %s from %s, it is not an entity"
+                    , attribute, alias.javaType.getSimpleName()));
+        }
+    }
+
+    /**
+     * A rendered statement. The parameter references are replaced by JDBC parameters when the values are bound,
+     * a collection of values expands to one parameter per value.
+     */
+    static final class Template {
+        private final Jpql.Template statement;
+        // the statement split around its parameter references, one more segment than references
+        private final String[] segments;
+        // the number of the parameter referenced after each segment
+        private final int[] references;
+        private final EnumType[] enumTypes;
+        // the types of the selected columns, null when unknown
+        final Class<?>[] columns;
+
+        Template(Jpql.Template statement, List<EnumType> enumTypes, Class<?>[] columns) {
+            List<String> segments = new ArrayList<>();
+            List<Integer> references = new ArrayList<>();
+            Matcher matcher = Sql.references.matcher(statement.query);
+            int start = 0;
+            while (matcher.find()) {
+                segments.add(statement.query.substring(start, matcher.start()));
+                references.add(Integer.parseInt(matcher.group(1)));
+                start = matcher.end();
+            }
+            segments.add(statement.query.substring(start));
+
+            this.statement = statement;
+            this.segments = segments.toArray(new String[0]);
+            this.references = references.stream().mapToInt(Integer::intValue).toArray();
+            this.enumTypes = enumTypes.toArray(new EnumType[0]);
+            this.columns = columns;
+        }
+
+        /**
+         * Bind the parameter values for the expressions of a query of this shape
+         * @param type The entity type
+         * @param terms The expressions of the query in query order
+         * @param variables The values bound to variables, may be null
+         * @param <T> The entity type
+         * @return The query
+         */
+        <T> SqlQuery<T> bind(Class<T> type, List<Expression<?>> terms, Map<String, ?> variables) {
+            List<Object> values = statement.values(terms, variables);
+            List<Object> parameters = new ArrayList<>();
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < references.length; i++) {
+                sb.append(segments[i]);
+                Object value = values.get(references[i] - 1);
+                EnumType enumType = enumTypes[references[i] - 1];
+                if (value instanceof Collection) {
+                    Collection<?> collection = (Collection<?>) value;
+                    if (collection.isEmpty())
+                        sb.append("null");
+                    int n = 0;
+                    for (Object item : collection) {
+                        sb.append(n++ == 0 ? "?" : ", ?");
+                        parameters.add(value(item, enumType));
+                    }
+                } else {
+                    sb.append('?');
+                    parameters.add(value(value, enumType));
+                }
+            }
+            sb.append(segments[segments.length - 1]);
+            return new SqlQuery<>(type, sb.toString(), parameters, columns);
+        }
+
+        private static Object value(Object value, EnumType enumType) {
+            if (value instanceof Enum)
+                return enumType == EnumType.STRING ? ((Enum<?>) value).name() : ((Enum<?>) value).ordinal();
+            return value;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A query compiled to a native SQL statement and the values of its JDBC parameters. The statement selects the
+ * primary key of the entity or the selected attributes, it can be run with
+ * {@link EntityManager#createNativeQuery(String)} or directly on a JDBC connection.
+ * @param <T> The entity type
+ */
+public final class SqlQuery<T> {
+    private final Class<T> type;
+    private final String query;
+    private final List<Object> parameters;
+    private final Class<?>[] columns;
+
+    SqlQuery(Class<T> type, String query, List<Object> parameters, Class<?>[] columns) {
+        this.type = type;
+        this.query = query;
+        this.parameters = Collections.unmodifiableList(parameters);
+        this.columns = columns;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * @return The SQL statement with ? parameters
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * @return The values of the parameters of the statement in order
+     */
+    public List<Object> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Create a native query for the statement with all parameters bound
+     * @param entityManager The entity manager used to create the query
+     * @return The native query
+     */
+    public Query nativeQuery(EntityManager entityManager) {
+        Query nativeQuery = entityManager.createNativeQuery(query);
+        for (int i = 0; i < parameters.size(); i++)
+            nativeQuery.setParameter(i + 1, parameters.get(i));
+        return nativeQuery;
+    }
+
+    /**
+     * Run the statement. Column values are converted to the types of the selected attributes where the database
+     * returns another type, such as a BigInteger for a Long id.
+     * @param entityManager The entity manager used to run the statement
+     * @return The value of each row when one column is selected, otherwise an Object[] for each row
+     */
+    public List<Object> list(EntityManager entityManager) {
+        List<?> rows = nativeQuery(entityManager).getResultList();
+        List<Object> list = new ArrayList<>(rows.size());
+        for (Object row : rows) {
+            if (row instanceof Object[]) {
+                Object[] values = (Object[]) row;
+                for (int i = 0; i < values.length && i < columns.length; i++)
+                    values[i] = coerce(values[i], columns[i]);
+                list.add(values);
+            } else {
+                list.add(coerce(row, columns[0]));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object coerce(Object value, Class<?> type) {
+        if (value == null || type == null || type.isInstance(value))
+            return value;
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (type == Long.class || type == long.class)
+                return number.longValue();
+            if (type == Integer.class || type == int.class)
+                return number.intValue();
+            if (type == Short.class || type == short.class)
+                return number.shortValue();
+            if (type == Byte.class || type == byte.class)
+                return number.byteValue();
+            if (type == Double.class || type == double.class)
+                return number.doubleValue();
+            if (type == Float.class || type == float.class)
+                return number.floatValue();
+            if (type == BigInteger.class)
+                return new BigInteger(number.toString());
+            if (type == BigDecimal.class)
+                return new BigDecimal(number.toString());
+            if (type == Boolean.class || type == boolean.class)
+                return number.intValue() != 0;
+            if (type.isEnum())
+                return type.getEnumConstants()[number.intValue()];
+        }
+        if (value instanceof String && type.isEnum())
+            return Enum.valueOf((Class<Enum>) type, (String) value);
+        if (value instanceof String && (type == Character.class || type == char.class) && ((String) value).length() == 1)
+            return ((String) value).charAt(0);
+        if (value instanceof Timestamp && type == LocalDateTime.class)
+            return ((Timestamp) value).toLocalDateTime();
+        if (value instanceof java.sql.Date && type == LocalDate.class)
+            return ((java.sql.Date) value).toLocalDate();
+        if (value instanceof Time && type == LocalTime.class)
+            return ((Time) value).toLocalTime();
+        return value;
+    }
+}
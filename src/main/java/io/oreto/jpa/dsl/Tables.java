@@ -0,0 +1,323 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.JoinColumn;
+import javax.persistence.JoinColumns;
+import javax.persistence.JoinTable;
+import javax.persistence.ManyToMany;
+import javax.persistence.MapKeyColumn;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.Table;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.Bindable;
+import javax.persistence.metamodel.EmbeddableType;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.MapAttribute;
+import javax.persistence.metamodel.PluralAttribute;
+import javax.persistence.metamodel.SingularAttribute;
+import javax.persistence.metamodel.Type;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * Maps entities and attributes to the tables and columns of the native SQL backend. The mapping is read from the
+ * metamodel and the mapping annotations, names which are not given by an annotation follow the implicit naming
+ * of JPA and are then turned into physical names by the naming of the dialect.
+ * <p>
+ * Only what queries navigate is mapped: tables, basic and embedded columns, primary and foreign keys, join tables
+ * and collection tables. Attribute overrides, secondary tables and inheritance other than a single table are not.
+ */
+final class Tables {
+    // Mappings keyed by dialect, kind of mapping, managed type and attribute name
+    private static final Cache<List<Object>, Object> mappings = new Cache<>(Cache.DEFAULT_SIZE);
+
+    final Dialect dialect;
+
+    Tables(Dialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * @param entity The entity
+     * @return The table of the entity
+     */
+    String table(EntityType<?> entity) {
+        return cached(Arrays.asList(dialect, "table", entity), () -> name(logicalTable(entity)));
+    }
+
+    /**
+     * @param entity The entity
+     * @return The primary key columns of the entity
+     */
+    List<String> ids(EntityType<?> entity) {
+        return cached(Arrays.asList(dialect, "ids", entity), () -> names(logicalIds(entity)));
+    }
+
+    /**
+     * @param attribute A basic attribute of an entity or embeddable
+     * @return The column of the attribute
+     */
+    String column(Attribute<?, ?> attribute) {
+        return name(logicalColumn(attribute));
+    }
+
+    /**
+     * @param owner The entity which owns the association
+     * @param attribute A many to one or one to one attribute owning the association
+     * @return The foreign key columns of the association in the table of the owner
+     */
+    List<String> foreignKey(EntityType<?> owner, Attribute<?, ?> attribute) {
+        return cached(Arrays.asList(dialect, "foreignKey", owner, attribute.getName())
+                , () -> names(logicalForeignKey(attribute)));
+    }
+
+    /**
+     * Get how an association or element collection is joined
+     * @param owner The entity the join starts from
+     * @param attribute The attribute joined
+     * @return The link
+     * @throws BadQueryException if the attribute is not an association or an element collection
+     */
+    Link link(EntityType<?> owner, Attribute<?, ?> attribute) {
+        return cached(Arrays.asList(dialect, "link", owner, attribute.getName()), () -> newLink(owner, attribute));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <V> V cached(List<Object> key, Supplier<V> compute) {
+        return (V) mappings.get(key, k -> compute.get());
+    }
+
+    private String name(String logical) {
+        return dialect.quote(dialect.naming().physical(logical));
+    }
+
+    private List<String> names(List<String> logical) {
+        return Collections.unmodifiableList(logical.stream().map(this::name).collect(Collectors.toList()));
+    }
+
+    private Link newLink(EntityType<?> owner, Attribute<?, ?> attribute) {
+        switch (attribute.getPersistentAttributeType()) {
+            case MANY_TO_ONE:
+            case ONE_TO_ONE:
+                EntityType<?> target = entity(((SingularAttribute<?, ?>) attribute).getType(), attribute);
+                OneToOne oneToOne = annotation(attribute, OneToOne.class);
+                if (oneToOne != null && !oneToOne.mappedBy().isEmpty())
+                    return new Link(new Hop(table(target), ids(owner)
+                            , foreignKey(target, target.getAttribute(oneToOne.mappedBy()))));
+                return new Link(new Hop(table(target), foreignKey(owner, attribute), ids(target)));
+            case ELEMENT_COLLECTION:
+                return elementCollection(owner, (PluralAttribute<?, ?, ?>) attribute);
+            case ONE_TO_MANY:
+                target = entity(((PluralAttribute<?, ?, ?>) attribute).getElementType(), attribute);
+                OneToMany oneToMany = annotation(attribute, OneToMany.class);
+                if (oneToMany != null && !oneToMany.mappedBy().isEmpty())
+                    return new Link(new Hop(table(target), ids(owner)
+                            , foreignKey(target, target.getAttribute(oneToMany.mappedBy()))));
+                List<String> joinColumns = joinColumns(attribute);
+                if (!joinColumns.isEmpty())
+                    return new Link(new Hop(table(target), ids(owner), names(joinColumns)));
+                return joinTable(owner, attribute, target, null);
+            case MANY_TO_MANY:
+                target = entity(((PluralAttribute<?, ?, ?>) attribute).getElementType(), attribute);
+                ManyToMany manyToMany = annotation(attribute, ManyToMany.class);
+                if (manyToMany != null && !manyToMany.mappedBy().isEmpty()) {
+                    Link inverse = link(target, target.getAttribute(manyToMany.mappedBy()));
+                    return new Link(new Hop(inverse.hops[0].table, ids(owner), inverse.hops[1].from)
+                            , new Hop(table(target), inverse.hops[0].to, ids(target)));
+                }
+                return joinTable(owner, attribute, target, inverseName(target, attribute));
+            default:
+                throw new BadQueryException(String.format("Cannot join %s of %s"
+                        , attribute.getName(), owner.getJavaType().getSimpleName()));
+        }
+    }
+
+    private Link elementCollection(EntityType<?> owner, PluralAttribute<?, ?, ?> attribute) {
+        CollectionTable collectionTable = annotation(attribute, CollectionTable.class);
+        String table = collectionTable == null || collectionTable.name().isEmpty()
+                ? owner.getName() + '_' + attribute.getName()
+                : collectionTable.name();
+        List<String> joinColumns = new ArrayList<>();
+        if (collectionTable != null)
+            for (JoinColumn joinColumn : collectionTable.joinColumns())
+                joinColumns.add(joinColumn.name());
+        if (joinColumns.isEmpty())
+            for (String id : logicalIds(owner))
+                joinColumns.add(owner.getName() + '_' + id);
+
+        String value = attribute.getElementType() instanceof EmbeddableType ? null : name(logicalColumn(attribute));
+        String key = null;
+        if (attribute instanceof MapAttribute
+                && ((MapAttribute<?, ?, ?>) attribute).getKeyType().getPersistenceType() == Type.PersistenceType.BASIC) {
+            MapKeyColumn keyColumn = annotation(attribute, MapKeyColumn.class);
+            key = name(keyColumn == null || keyColumn.name().isEmpty() ? attribute.getName() + "_KEY" : keyColumn.name());
+        }
+        return new Link(new Hop[] { new Hop(name(table), ids(owner), names(joinColumns)) }, value, key);
+    }
+
+    private Link joinTable(EntityType<?> owner, Attribute<?, ?> attribute, EntityType<?> target, String inverseName) {
+        JoinTable joinTable = annotation(attribute, JoinTable.class);
+        String table = joinTable == null || joinTable.name().isEmpty()
+                ? logicalTable(owner) + '_' + attribute.getName()
+                : joinTable.name();
+        List<String> joinColumns = new ArrayList<>();
+        List<String> inverseColumns = new ArrayList<>();
+        if (joinTable != null) {
+            for (JoinColumn joinColumn : joinTable.joinColumns())
+                joinColumns.add(joinColumn.name());
+            for (JoinColumn joinColumn : joinTable.inverseJoinColumns())
+                inverseColumns.add(joinColumn.name());
+        }
+        if (joinColumns.isEmpty())
+            for (String id : logicalIds(owner))
+                joinColumns.add((inverseName == null ? owner.getName() : inverseName) + '_' + id);
+        if (inverseColumns.isEmpty())
+            for (String id : logicalIds(target))
+                inverseColumns.add(attribute.getName() + '_' + id);
+        return new Link(new Hop(name(table), ids(owner), names(joinColumns))
+                , new Hop(table(target), names(inverseColumns), ids(target)));
+    }
+
+    /**
+     * The attribute of the target mapped by a many to many attribute, whose name prefixes the join columns
+     */
+    private static String inverseName(EntityType<?> target, Attribute<?, ?> attribute) {
+        for (Attribute<?, ?> a : target.getAttributes()) {
+            ManyToMany manyToMany = annotation(a, ManyToMany.class);
+            if (manyToMany != null && manyToMany.mappedBy().equals(attribute.getName()))
+                return a.getName();
+        }
+        return null;
+    }
+
+    private static String logicalTable(EntityType<?> entity) {
+        Table table = entity.getJavaType().getAnnotation(Table.class);
+        return table == null || table.name().isEmpty() ? entity.getName() : table.name();
+    }
+
+    private static List<String> logicalIds(EntityType<?> entity) {
+        List<Attribute<?, ?>> attributes = new ArrayList<>();
+        if (entity.hasSingleIdAttribute()) {
+            SingularAttribute<?, ?> id = entity.getId(entity.getIdType().getJavaType());
+            if (id.getType() instanceof EmbeddableType)
+                attributes.addAll(((EmbeddableType<?>) id.getType()).getAttributes());
+            else
+                attributes.add(id);
+        } else {
+            attributes.addAll(entity.getIdClassAttributes());
+        }
+        // composite keys are ordered by attribute name so that foreign keys list their columns in the same order
+        attributes.sort(Comparator.comparing(Attribute::getName));
+        return attributes.stream().map(Tables::logicalColumn).collect(Collectors.toList());
+    }
+
+    private static String logicalColumn(Attribute<?, ?> attribute) {
+        Column column = annotation(attribute, Column.class);
+        return column == null || column.name().isEmpty() ? attribute.getName() : column.name();
+    }
+
+    private static List<String> logicalForeignKey(Attribute<?, ?> attribute) {
+        OneToOne oneToOne = annotation(attribute, OneToOne.class);
+        if (oneToOne != null && !oneToOne.mappedBy().isEmpty())
+            throw new BadQueryException(String.format("%s has no foreign key, it is the inverse side of %s"
+                    , attribute.getName(), oneToOne.mappedBy()));
+        List<String> columns = joinColumns(attribute);
+        if (columns.isEmpty())
+            for (String id : logicalIds(entity(((SingularAttribute<?, ?>) attribute).getType(), attribute)))
+                columns.add(attribute.getName() + '_' + id);
+        return columns;
+    }
+
+    private static List<String> joinColumns(Attribute<?, ?> attribute) {
+        List<String> columns = new ArrayList<>();
+        JoinColumn joinColumn = annotation(attribute, JoinColumn.class);
+        JoinColumns joinColumns = annotation(attribute, JoinColumns.class);
+        if (joinColumn != null && !joinColumn.name().isEmpty())
+            columns.add(joinColumn.name());
+        if (joinColumns != null)
+            for (JoinColumn c : joinColumns.value())
+                columns.add(c.name());
+        return columns;
+    }
+
+    private static EntityType<?> entity(Type<?> type, Attribute<?, ?> attribute) {
+        if (type instanceof EntityType)
+            return (EntityType<?>) type;
+        throw new BadQueryException(String.format("Cannot join %s, it is not an entity", attribute.getName()));
+    }
+
+    private static <A extends Annotation> A annotation(Attribute<?, ?> attribute, Class<A> annotation) {
+        return attribute.getJavaMember() instanceof AnnotatedElement
+                ? ((AnnotatedElement) attribute.getJavaMember()).getAnnotation(annotation)
+                : null;
+    }
+
+    /**
+     * Determine if an attribute is a many to one or one to one association
+     * @param attribute The attribute
+     * @return True if the attribute references one entity
+     */
+    static boolean isToOne(Attribute<?, ?> attribute) {
+        return attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.MANY_TO_ONE
+                || attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.ONE_TO_ONE;
+    }
+
+    /**
+     * @param attribute A basic attribute or element collection
+     * @return How the enum values of the attribute are stored, null if the attribute is not an enum
+     */
+    static EnumType enumType(Attribute<?, ?> attribute) {
+        if (!((Bindable<?>) attribute).getBindableJavaType().isEnum())
+            return null;
+        Enumerated enumerated = annotation(attribute, Enumerated.class);
+        return enumerated == null ? EnumType.ORDINAL : enumerated.value();
+    }
+
+    /**
+     * How a join reaches an association or element collection, through one table or a join table and the
+     * target table. For element collections the link also names the columns of the elements and map keys.
+     */
+    static final class Link {
+        final Hop[] hops;
+        // the column of basic elements, null for entities and embeddables
+        final String value;
+        // the column of basic map keys, null if the attribute is not such a map
+        final String key;
+
+        Link(Hop... hops) {
+            this(hops, null, null);
+        }
+
+        Link(Hop[] hops, String value, String key) {
+            this.hops = hops;
+            this.value = value;
+            this.key = key;
+        }
+    }
+
+    /**
+     * One joined table, joined on to[i] = from[i] where from are the columns of the previous table
+     */
+    static final class Hop {
+        final String table;
+        final List<String> from;
+        final List<String> to;
+
+        Hop(String table, List<String> from, List<String> to) {
+            this.table = table;
+            this.from = from;
+            this.to = to;
+        }
+    }
+}
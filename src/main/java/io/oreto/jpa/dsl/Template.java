@@ -0,0 +1,59 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Parameter;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.ParameterExpression;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A criteria query built once for a query shape, in which every literal is a parameter. Any compiled query of
+ * the same shape creates its typed queries from the template by binding its own literal values.
+ * @param <T> The entity type
+ */
+final class Template<T> {
+    private final CriteriaQuery<T> query;
+    // the index of the expression providing the value of each parameter, in query order
+    private final int[] terms;
+    private final Class<?>[] types;
+    private final ParameterExpression<?>[] parameters;
+
+    Template(CriteriaQuery<T> query, List<Expression<?>> terms, List<Parameters.Slot> slots) {
+        Map<Expression<?>, Integer> indexes = new IdentityHashMap<>();
+        for (int i = 0; i < terms.size(); i++)
+            indexes.put(terms.get(i), i);
+
+        this.query = query;
+        this.terms = new int[slots.size()];
+        this.types = new Class<?>[slots.size()];
+        this.parameters = new ParameterExpression<?>[slots.size()];
+        for (int i = 0; i < slots.size(); i++) {
+            Parameters.Slot slot = slots.get(i);
+            this.terms[i] = indexes.get(slot.expression);
+            this.types[i] = slot.type;
+            this.parameters[i] = slot.parameter;
+        }
+    }
+
+    /**
+     * Create a typed query and bind the literals of a compiled query with the shape of this template
+     * @param entityManager The entity manager
+     * @param terms The expressions of the compiled query in query order
+     * @param variables The values bound to variables, may be null
+     * @return The typed query
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    TypedQuery<T> typedQuery(EntityManager entityManager, List<Expression<?>> terms, Map<String, ?> variables) {
+        TypedQuery<T> typedQuery = entityManager.createQuery(query);
+        for (int i = 0; i < parameters.length; i++)
+            typedQuery.setParameter((Parameter) parameters[i], terms.get(this.terms[i]).argument(types[i], variables));
+        return typedQuery;
+    }
+
+    int size() {
+        return parameters.length;
+    }
+}
@@ -0,0 +1,308 @@
+package io.oreto.jpa.dsl;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import java.util.Collection;
+
+/**
+ * The translators of the built in operators and functions
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+final class Translators {
+    private Translators() {}
+
+    static final OperatorTranslator EQ = new OperatorTranslator() {
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            return right == null ? cb.isNull(left) : cb.equal(left, right);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            return right == null ? left + " is null" : left + " = " + right;
+        }
+    };
+
+    static final OperatorTranslator ISNULL = new OperatorTranslator() {
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            return cb.isNull(left);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            return left + " is null";
+        }
+
+        @Override
+        public boolean hasValue() {
+            return false;
+        }
+    };
+
+    static final OperatorTranslator GT = new Comparison(">");
+    static final OperatorTranslator LT = new Comparison("<");
+    static final OperatorTranslator GTE = new Comparison(">=");
+    static final OperatorTranslator LTE = new Comparison("<=");
+
+    static final OperatorTranslator IN = new OperatorTranslator() {
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            return left.in(right);
+        }
+
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Collection<?> values) {
+            return left.in(values);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            return left + " in (" + right + ')';
+        }
+    };
+
+    // a search compares the id of the entity with the ids found by the full text index of the attribute, see FullText
+    static final OperatorTranslator SEARCH = IN;
+
+    static final OperatorTranslator CONTAINS = new Like(true, true, false);
+    static final OperatorTranslator ICONTAINS = new Like(true, true, true);
+    static final OperatorTranslator STARTSWITH = new Like(false, true, false);
+    static final OperatorTranslator ISTARTSWITH = new Like(false, true, true);
+    static final OperatorTranslator ENDSWITH = new Like(true, false, false);
+    static final OperatorTranslator IENDSWITH = new Like(true, false, true);
+
+    // a range is translated by the comparisons of its bounds or as between, see Expression
+    static final OperatorTranslator RANGE = new Unexpected("range");
+
+    // collect opens a collector block and first and last open a top block, they are never translated as conditions
+    static final OperatorTranslator COLLECT = new Unexpected("collect");
+    static final OperatorTranslator FIRST = new Unexpected("first");
+    static final OperatorTranslator LAST = new Unexpected("last");
+
+    static final FunctionTranslator COUNT = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.count(argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "count(" + argument + ')';
+        }
+
+        @Override
+        public Class<?> resultType(Class<?> type) {
+            return Long.class;
+        }
+    };
+
+    static final FunctionTranslator AVG = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.avg((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "avg(" + argument + ')';
+        }
+
+        @Override
+        public Class<?> resultType(Class<?> type) {
+            return Double.class;
+        }
+    };
+
+    static final FunctionTranslator SUM = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.sum((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "sum(" + argument + ')';
+        }
+    };
+
+    static final FunctionTranslator MAX = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.max((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "max(" + argument + ')';
+        }
+    };
+
+    static final FunctionTranslator MIN = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.min((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "min(" + argument + ')';
+        }
+    };
+
+    // the greatest and least of criteria also accept values which are not numbers, such as dates
+    static final FunctionTranslator GREATEST = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.greatest((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "max(" + argument + ')';
+        }
+    };
+
+    static final FunctionTranslator LEAST = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.least((Expression) argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "min(" + argument + ')';
+        }
+    };
+
+    static final FunctionTranslator COUNT_DISTINCT = new FunctionTranslator() {
+        @Override
+        public Expression<?> toExpression(CriteriaBuilder cb, Expression<?> argument) {
+            return cb.countDistinct(argument);
+        }
+
+        @Override
+        public String toJpql(String argument) {
+            return "count(distinct " + argument + ')';
+        }
+
+        @Override
+        public Class<?> resultType(Class<?> type) {
+            return Long.class;
+        }
+    };
+
+    /**
+     * @return The predicate of a closed range, left between low and high
+     */
+    static Predicate between(CriteriaBuilder cb, Expression<?> left, Expression<?> low, Expression<?> high) {
+        return cb.between((Expression) left, (Expression) low, (Expression) high);
+    }
+
+    /**
+     * An operator which is part of the syntax of the query rather than a condition
+     */
+    private static final class Unexpected implements OperatorTranslator {
+        private final String name;
+
+        Unexpected(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            throw new BadQueryException("Unexpected operator: " + name);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            throw new BadQueryException("Unexpected operator: " + name);
+        }
+    }
+
+    /**
+     * The ordering comparisons, gt, lt, gte and lte
+     */
+    private static final class Comparison implements OperatorTranslator {
+        private final String symbol;
+
+        Comparison(String symbol) {
+            this.symbol = symbol;
+        }
+
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            Expression l = left;
+            Expression r = right;
+            switch (symbol) {
+                case ">":
+                    return cb.greaterThan(l, r);
+                case "<":
+                    return cb.lessThan(l, r);
+                case ">=":
+                    return cb.greaterThanOrEqualTo(l, r);
+                default:
+                    return cb.lessThanOrEqualTo(l, r);
+            }
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            return left + ' ' + symbol + ' ' + right;
+        }
+    }
+
+    /**
+     * The like operators. A value is turned into a pattern before it is bound, a field is concatenated with
+     * the wildcards. The case insensitive operators upper case the value, the left side is upper cased by
+     * the {@link CaseInsensitivity} of the attribute.
+     */
+    private static final class Like implements OperatorTranslator {
+        private final boolean before;
+        private final boolean after;
+        private final boolean upper;
+
+        Like(boolean before, boolean after, boolean upper) {
+            this.before = before;
+            this.after = after;
+            this.upper = upper;
+        }
+
+        @Override
+        public Predicate toPredicate(CriteriaBuilder cb, Expression<?> left, Expression<?> right, boolean field) {
+            Expression<String> pattern = (Expression<String>) right;
+            if (field) {
+                if (after)
+                    pattern = cb.concat(pattern, "%");
+                if (before)
+                    pattern = cb.concat("%", pattern);
+            }
+            return cb.like((Expression<String>) left, pattern);
+        }
+
+        @Override
+        public String toJpql(String left, String right, boolean field) {
+            if (!field)
+                return left + " like " + right;
+            if (before && after)
+                return left + " like concat('%', " + right + ", '%')";
+            return before
+                    ? left + " like concat('%', " + right + ')'
+                    : left + " like concat(" + right + ", '%')";
+        }
+
+        @Override
+        public Class<?> valueType(Class<?> type) {
+            return String.class;
+        }
+
+        @Override
+        public Object argument(Object value) {
+            String s = value == null ? Str.EMPTY : value.toString();
+            if (upper)
+                s = s.toUpperCase();
+            return (before ? "%" : Str.EMPTY) + s + (after ? "%" : Str.EMPTY);
+        }
+    }
+}
@@ -1,12 +1,32 @@
 package io.oreto.jpa.dsl.test;
 
+import io.oreto.jpa.dsl.BadQueryException;
+import io.oreto.jpa.dsl.CaseInsensitivity;
+import io.oreto.jpa.dsl.CompiledQuery;
+import io.oreto.jpa.dsl.Converters;
 import io.oreto.jpa.dsl.DSL;
+import io.oreto.jpa.dsl.Dialect;
+import io.oreto.jpa.dsl.Expression;
+import io.oreto.jpa.dsl.FunctionTranslator;
+import io.oreto.jpa.dsl.Grouping;
+import io.oreto.jpa.dsl.H2Dialect;
+import io.oreto.jpa.dsl.H2FullText;
+import io.oreto.jpa.dsl.JpqlQuery;
+import io.oreto.jpa.dsl.Naming;
+import io.oreto.jpa.dsl.OperatorTranslator;
+import io.oreto.jpa.dsl.PreparedQuery;
+import io.oreto.jpa.dsl.QueryRunner;
+import io.oreto.jpa.dsl.SqlQuery;
 import io.oreto.jpa.dsl.test.entities.*;
+import org.hibernate.Session;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
 import org.springframework.test.annotation.DirtiesContext;
 import org.springframework.test.context.ContextConfiguration;
@@ -16,13 +36,39 @@ import javax.annotation.Resource;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
+import javax.persistence.FlushModeType;
+import javax.persistence.TypedQuery;
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.sql.DataSource;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @DataJpaTest(showSql = true)
@@ -35,6 +81,8 @@ public class DslTests {
 
     @Resource
     private EntityManagerFactory entityManagerFactory;
+    @Resource
+    private DataSource dataSource;
     private EntityManager em;
 
     @Autowired PersonRepo personRepo;
@@ -147,6 +195,7 @@ public class DslTests {
     public void searchPastOrders() {
         assertEquals(personRepo.count()
                 , personRepo.queryAll(String.format("orders{ purchasedOn::lt:%s }", LocalDateTime.now())).size());
+        assertEquals(personRepo.count(), personRepo.queryAll("orders{ purchasedOn::lt:now }").size());
     }
 
     @Test
@@ -210,4 +259,767 @@ public class DslTests {
         assertEquals("Otto Octavius"
                 , personRepo.queryOne("orders{ sum(shipping)::gt:sum(@amount) }").map(Person::getName).orElse(null));
     }
+
+    @Test
+    public void compiledQueries() {
+        String q = "name::icontains:ross or name::icontains:Bilbo";
+        CompiledQuery<Person> compiled = DSL.compile(Person.class, q);
+        assertSame(compiled, DSL.compile(Person.class, q));
+        assertEquals(2, em.createQuery(compiled.criteriaQuery(em)).getResultList().size());
+        assertEquals(2, em.createQuery(compiled.criteriaQuery(em)).getResultList().size());
+        assertEquals(2, personRepo.queryAll(q).size());
+    }
+
+    @Test
+    public void quotesAndEscapes() {
+        assertEquals(1, personRepo.queryAll("nickNames:Ross\\ Sea").size());
+        assertEquals(1, personRepo.queryAll("name:'Harry Potter' and nickNames:'The boy who lived'").size());
+        assertEquals(6, personRepo.queryAll("not name::icontains:ross").size());
+    }
+
+    @Test
+    public void badQueries() {
+        assertEquals(10, assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "(name:Ross")).at());
+        assertEquals(9, assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "name:Ross)")).at());
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "name::like:Ross"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "nickNames::in:['Ross Sea'"));
+    }
+
+    @Test
+    public void nestingDepth() {
+        String deep = String.join("", Collections.nCopies(10000, "("));
+        assertEquals(32, assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, deep)).at());
+        String blocks = String.join("", Collections.nCopies(10000, "orders{"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, blocks));
+
+        String nested = String.join("", Collections.nCopies(20, "("))
+                + "name:Ross"
+                + String.join("", Collections.nCopies(20, ")"));
+        assertEquals(1, personRepo.queryAll(nested).size());
+    }
+
+    @Test
+    public void parameterizedQueries() {
+        assertEquals(DSL.compile(Person.class, "name::icontains:ross").getShape()
+                , DSL.compile(Person.class, "name::icontains:bilbo").getShape());
+        assertEquals("Ross", DSL.typedQuery(em, Person.class, "name::icontains:ross").getSingleResult().getName());
+        assertEquals("Bilbo", DSL.typedQuery(em, Person.class, "name::icontains:bilbo").getSingleResult().getName());
+        assertEquals(3, DSL.typedQuery(em, Person.class
+                , "nickNames::in:['Doc Ock', 'The Half Blood Prince', 'Voldamort']").getResultList().size());
+        assertEquals(2, DSL.typedQuery(em, Person.class, "orders{ sum(shipping)::gt:100 }").getResultList().size());
+        assertEquals("Harry Potter"
+                , DSL.typedQuery(em, Person.class, "orders{ items { name:'Hedwig' }}").getSingleResult().getName());
+        assertEquals(2, DSL.typedQuery(em, Order.class, "amount::collect{ count()::gt:1 }").getResultList().size());
+        assertEquals("Snape", DSL.typedQuery(em, Person.class
+                , "address{ line::icontains:hogwarts } and count(orders)::gt:1").getSingleResult().getName());
+    }
+
+    @Test
+    public void preparedQueries() {
+        PreparedQuery<Person> query = DSL.prepare(Person.class
+                , "orders{ purchasedOn::lt:$before } and name::istartswith:$prefix");
+        assertEquals(new HashSet<>(Arrays.asList("before", "prefix")), query.getVariables());
+
+        PreparedQuery<Person> ross = query.bind("before", LocalDateTime.now()).bind("prefix", "ross");
+        assertEquals("Ross", ross.typedQuery(em).getSingleResult().getName());
+        assertEquals("Ross", em.createQuery(ross.toCriteria(em)).getSingleResult().getName());
+        assertEquals("Snape", query.bind("before", LocalDateTime.now()).bind("prefix", "sn")
+                .typedQuery(em).getSingleResult().getName());
+        assertTrue(query.getValues().isEmpty());
+
+        assertEquals(3, DSL.prepare(Person.class, "name::in:$names")
+                .bind("names", Arrays.asList("Bilbo", "Ross", "Snape")).typedQuery(em).getResultList().size());
+        assertEquals(DSL.typedQuery(em, Person.class, "orders{ count(items)::gt:2 }").getResultList()
+                , DSL.prepare(Person.class, "orders{ count(items)::gt:$count }")
+                        .bind("count", 2L).typedQuery(em).getResultList());
+
+        assertThrows(BadQueryException.class, () -> query.bind("after", LocalDateTime.now()));
+        assertThrows(BadQueryException.class, () -> query.bind("prefix", "ross").typedQuery(em));
+        // values are checked against the attribute when they are bound, texts and numbers are converted
+        assertEquals("Ross", query.bind("before", LocalDateTime.now().plusDays(1).toString()).bind("prefix", "ross")
+                .typedQuery(em).getSingleResult().getName());
+        assertEquals(LocalDateTime.class, query.bind("before", "2022-01-01T00:00").getValues().get("before").getClass());
+        assertEquals(Collections.singletonList(2L)
+                , DSL.prepare(Person.class, "id::in:$ids").bind("ids", Collections.singletonList("2")).getValues().get("ids"));
+        assertThrows(BadQueryException.class, () -> query.bind("before", "yesterday"));
+        assertThrows(BadQueryException.class, () -> query.bind("before", true));
+        assertThrows(BadQueryException.class, () -> DSL.prepare(Person.class, "id::in:$ids").bind("ids", 2L));
+    }
+
+    @Test
+    public void deepPaths() {
+        assertEquals(new HashSet<>(orderRepo.queryAll("items{ attributes.value:forged }"))
+                , new HashSet<>(orderRepo.queryAll("items.attributes.value:forged")));
+        assertEquals(new HashSet<>(personRepo.queryAll("orders{ items{ name:Hedwig } }"))
+                , new HashSet<>(personRepo.queryAll("orders.items.name:Hedwig")));
+        assertEquals("Hedwig", itemRepo.queryAll("attributes.key:species").get(0).getName());
+        assertEquals(3, itemRepo.queryAll("attributes.value:forged").size());
+        assertThrows(BadQueryException.class, () -> personRepo.queryAll("orders.items.color:red"));
+        for (String q : Arrays.asList(".:red", "name.:red", "orders..amount:1", ".name:red")) {
+            assertThrows(BadQueryException.class, () -> personRepo.queryAll(q), q);
+            assertThrows(BadQueryException.class, () -> DSL.jpql(em, Person.class, q), q);
+        }
+    }
+
+    @Test
+    public void joinReuse() {
+        // collections are joined in a semi join sub query, the query itself selects each person once
+        CriteriaQuery<Person> or = DSL.criteriaQuery(em, Person.class, "nickNames:'Ross Sea' or nickNames:'Ron'");
+        assertEquals(0, or.getRoots().iterator().next().getJoins().size());
+        assertEquals(1, joins(DSL.jpql(em, Person.class, "nickNames:'Ross Sea' or nickNames:'Ron'").getQuery()));
+        assertEquals(2, em.createQuery(or).getResultList().size());
+
+        CriteriaQuery<Person> and = DSL.criteriaQuery(em, Person.class, "nickNames:'Ross Sea' and nickNames:'Ross Sauce'");
+        assertEquals(2, joins(DSL.jpql(em, Person.class, "nickNames:'Ross Sea' and nickNames:'Ross Sauce'").getQuery()));
+        assertEquals("Ross", em.createQuery(and).getSingleResult().getName());
+
+        CriteriaQuery<Item> map = DSL.criteriaQuery(em, Item.class, "attributes.key:type and attributes.value:forged");
+        assertEquals(1, joins(DSL.jpql(em, Item.class, "attributes.key:type and attributes.value:forged").getQuery()));
+        assertEquals(3, em.createQuery(map).getResultList().size());
+        assertEquals(0, itemRepo.queryAll("attributes.key:species and attributes.value:forged").size());
+        assertEquals(2, joins(DSL.jpql(em, Item.class, "attributes.key:type and +attributes.value:forged").getQuery()));
+    }
+
+    private static int joins(String query) {
+        return query.split(" join ").length - 1;
+    }
+
+    @Test
+    public void converters() {
+        assertEquals(personRepo.queryAll(String.format("orders{ purchasedOn::lt:%s }", LocalDate.now().plusDays(1)))
+                , personRepo.queryAll(String.format("orders{ purchasedOn::lt:%s }", LocalDate.now().plusDays(1).atStartOfDay())));
+        assertThrows(BadQueryException.class, () -> orderRepo.queryAll("amount::gt:lots"));
+        assertThrows(BadQueryException.class, () -> orderRepo.queryAll("purchasedOn::gt:yesterday"));
+        // literals are converted when the query is compiled, in blocks and ranges as well
+        assertThrows(BadQueryException.class, () -> DSL.compile(Order.class, "amount::gt:lots"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "orders{ items{ id::in:[1,two] } }"));
+        assertThrows(BadQueryException.class, () -> DSL.prepare(Order.class, "id:$id and amount::range:[1,x]"));
+        assertTrue(!DSL.compile(Item.class, "attributes.key:color and count(orders)::gt:1").isEmpty());
+
+        assertEquals(TimeUnit.DAYS, Converters.get(TimeUnit.class).convert("DAYS"));
+        assertEquals(new BigDecimal("1.50"), Converters.get(BigDecimal.class).convert("1.50"));
+        Converters.register(Locale.class, Locale::forLanguageTag);
+        assertEquals(Locale.FRANCE, Converters.get(Locale.class).convert("fr-FR"));
+    }
+
+    @Test
+    public void jpqlQueries() {
+        JpqlQuery<Person> ross = DSL.jpql(em, Person.class, "name::icontains:ross");
+        JpqlQuery<Person> bilbo = DSL.jpql(em, Person.class, "name::icontains:bilbo");
+        assertEquals(ross.getQuery(), bilbo.getQuery());
+        assertEquals(Collections.singletonMap("p1", "%ROSS%"), ross.getParameters());
+        assertEquals("Bilbo", bilbo.typedQuery(em).getSingleResult().getName());
+
+        for (String q : Arrays.asList("address{ line::icontains:hogwarts } and count(orders)::gt:1"
+                , "orders{ sum(shipping)::gt:sum(@amount) }"
+                , "orders{ items { name::collect{ count()::gt:1 } }}"
+                , "address { line::collect{ count()::gt:1 } }"
+                , "nickNames:'Ross Sea' or not name::istartswith:r")) {
+            assertEquals(new HashSet<>(em.createQuery(DSL.criteriaQuery(em, Person.class, q)).getResultList())
+                    , new HashSet<>(DSL.jpql(em, Person.class, q).typedQuery(em).getResultList()));
+        }
+        assertEquals("Snape", DSL.prepare(Person.class, "name::startswith:$prefix")
+                .bind("prefix", "Sn").jpql(em).typedQuery(em).getSingleResult().getName());
+    }
+
+    @Test
+    public void nativeQueries() {
+        Dialect h2 = new H2Dialect();
+        SqlQuery<Person> ross = DSL.sql(em, h2, Person.class, "name::icontains:ross");
+        SqlQuery<Person> bilbo = DSL.sql(em, h2, Person.class, "name::icontains:bilbo");
+        assertEquals(ross.getQuery(), bilbo.getQuery());
+        assertEquals(Collections.singletonList("%BILBO%"), bilbo.getParameters());
+        assertEquals(Collections.singletonList(personRepo.queryOne("name:Bilbo").get().getId()), bilbo.list(em));
+        assertEquals(h2, new H2Dialect());
+        assertEquals(h2.hashCode(), new H2Dialect().hashCode());
+        assertTrue(!h2.equals(new H2Dialect(Naming.IDENTITY)));
+        assertEquals(ross.getQuery(), DSL.sql(em, new H2Dialect(), Person.class, "name::icontains:ross").getQuery());
+
+        for (String q : Arrays.asList("address{ line::icontains:hogwarts } and count(orders)::gt:1"
+                , "address.line::icontains:hogwarts and orders.amount::gt:500"
+                , "orders{ sum(shipping)::gt:sum(@amount) }"
+                , "orders{ items { name::collect{ count()::gt:1 } }}"
+                , "address { line::collect{ count()::gt:1 } }"
+                , "orders{ items{ attributes.key:type and attributes.value:forged } }"
+                , "orders{ items{ attributes:glows or attributes:cpu } }"
+                , "count_distinct(orders.items.name)::gte:4 and nickNames::icontains:o"
+                , "nickNames:'Ross Sea' or not name::istartswith:r"
+                , "nickNames::in:['Ron', 'Doc Ock'] and orders{ count(items)::lt:2 }")) {
+            assertEquals(em.createQuery(DSL.criteriaQuery(em, Person.class, q)).getResultList().stream()
+                            .map(Person::getId).collect(Collectors.toSet())
+                    , new HashSet<>(DSL.sql(em, h2, Person.class, q).list(em)), q);
+        }
+        for (String q : Arrays.asList("orders{ person.name:Snape }", "not orders.amount::lt:100")) {
+            assertEquals(em.createQuery(DSL.criteriaQuery(em, Item.class, q)).getResultList().stream()
+                            .map(Item::getId).collect(Collectors.toSet())
+                    , new HashSet<>(DSL.sql(em, h2, Item.class, q).list(em)), q);
+        }
+        List<Object> tires = DSL.sql(em, h2, Vehicle.class, "tire.id.size::gt:15", "model", "tire.id.make").list(em);
+        assertEquals(1, tires.size());
+        assertEquals(Arrays.asList("Outlander", "Goodyear"), Arrays.asList((Object[]) tires.get(0)));
+
+        assertEquals(Collections.singletonList("Snape")
+                , DSL.prepare(Person.class, "name::startswith:$prefix").bind("prefix", "Sn").sql(em, h2, "name").list(em));
+    }
+
+    @Test
+    public void optimizer() {
+        assertEquals("name::in:[?]", DSL.compile(Person.class, "name:Ross or name:Bilbo or (name:Snape or name:Ross)").getShape());
+        assertEquals(3, personRepo.queryAll("name:Ross or name:Bilbo or (name:Snape or name:Ross)").size());
+        assertEquals("and(name::eq:?,address.line::icontains:?)"
+                , DSL.compile(Person.class, "name:Ross and (address.line::icontains:ave and name:Ross)").getShape());
+        assertEquals(3, orderRepo.queryAll("amount:324.33 or amount:30.02").size());
+
+        // negated comparisons exclude null values just like the comparison they are rewritten to
+        assertEquals("shipping::lte:?", DSL.compile(Order.class, "shipping::not_gt:60").getShape());
+        assertEquals("shipping::gt:?", DSL.compile(Order.class, "not shipping::lte:60").getShape());
+        assertEquals(2, orderRepo.queryAll("shipping::not_gt:60").size());
+        assertEquals(orderRepo.queryAll("not shipping::gt:60").size(), orderRepo.queryAll("shipping::lte:60").size());
+
+        assertEquals("false", DSL.compile(Person.class, "name::in:[] and orders{ amount::gt:100 }").getShape());
+        assertEquals(0, personRepo.queryAll("name::in:[] and orders{ amount::gt:100 }").size());
+        assertEquals(1, personRepo.queryAll("name:Bilbo or orders{ items::in:[] }").size());
+        assertEquals(1, personRepo.queryAll("name::not_in:[] and name:Bilbo").size());
+        assertEquals("", DSL.compile(Person.class, "not name::in:[]").getShape());
+    }
+
+    @Test
+    public void toOneJoins() {
+        JpqlQuery<Person> block = DSL.jpql(em, Person.class, "address{ line::icontains:hogwarts }");
+        assertEquals(DSL.jpql(em, Person.class, "address.line::icontains:hogwarts").getQuery(), block.getQuery());
+        assertTrue(!block.getQuery().contains("exists"), block.getQuery());
+
+        EntityTransaction transaction = em.getTransaction();
+        transaction.begin();
+        em.persist(new Person().withName("Nobody"));
+        transaction.commit();
+
+        Dialect h2 = new H2Dialect();
+        for (String q : Arrays.asList("address{ line::icontains:hogwarts }"
+                , "name:Nobody or address{ line::icontains:hogwarts }"
+                , "name:Nobody or address.line::icontains:hogwarts"
+                , "name:Nobody or address{ line::collect{ count()::gt:1 } }"
+                , "not address{ line::icontains:hogwarts }"
+                , "address{} and name::istartswith:r")) {
+            List<Long> ids = em.createQuery(DSL.criteriaQuery(em, Person.class, q)).getResultList().stream()
+                    .map(Person::getId).sorted().collect(Collectors.toList());
+            assertEquals(ids, DSL.jpql(em, Person.class, q).typedQuery(em).getResultList().stream()
+                    .map(Person::getId).sorted().collect(Collectors.toList()), q);
+            assertEquals(new HashSet<>(ids), new HashSet<>(DSL.sql(em, h2, Person.class, q).list(em)), q);
+        }
+        assertEquals(5, personRepo.queryAll("name:Nobody or address{ line::icontains:hogwarts }").size());
+        assertEquals(5, personRepo.queryAll("name:Nobody or address.line::icontains:hogwarts").size());
+        assertEquals(4, personRepo.queryAll("not address{ line::icontains:hogwarts }").size());
+        assertEquals(1, vehicleRepo.queryAll("tire{ id.make:Goodyear } or model:Nothing").size());
+    }
+
+    @Test
+    public void flattenedBlocks() {
+        String q = "orders{ items{ attributes.value:forged } }";
+        String jpql = DSL.jpql(em, Person.class, q).getQuery();
+        assertEquals(1, jpql.split("exists").length - 1, jpql);
+        String nested = DSL.jpql(em, Person.class, "orders{ items{ count(attributes)::gt:1 } }").getQuery();
+        assertEquals(2, nested.split("exists").length - 1, nested);
+
+        Dialect h2 = new H2Dialect();
+        for (String s : Arrays.asList(q
+                , "orders{ items{ name:Hedwig } }"
+                , "orders{ items{ count(attributes)::gt:1 } }"
+                , "orders{ items{ name:Hedwig } and amount::gt:0 }"
+                , "orders{ items{ name::collect{ count()::gt:1 } } }"
+                , "orders{ items{ id::gt:^id } }")) {
+            Set<Long> ids = em.createQuery(DSL.criteriaQuery(em, Person.class, s)).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet());
+            assertEquals(ids, DSL.jpql(em, Person.class, s).typedQuery(em).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()), s);
+            assertEquals(ids, new HashSet<>(DSL.sql(em, h2, Person.class, s).list(em)), s);
+        }
+        assertEquals(new HashSet<>(personRepo.queryAll(q)), new HashSet<>(personRepo.queryAll("orders.items.attributes.value:forged")));
+
+        // each block keeps a sub query of its own when the query is not flattened
+        CompiledQuery<Person> unflattened = DSL.compile(Person.class, q).flatten(false);
+        assertTrue(DSL.compile(Person.class, q).isFlattened() && !unflattened.isFlattened());
+        jpql = unflattened.jpql(em).getQuery();
+        assertEquals(2, jpql.split("exists").length - 1, jpql);
+        Set<Long> ids = personRepo.queryAll(q).stream().map(Person::getId).collect(Collectors.toSet());
+        assertEquals(ids, em.createQuery(unflattened.criteriaQuery(em)).getResultList().stream()
+                .map(Person::getId).collect(Collectors.toSet()));
+        assertEquals(ids, unflattened.list(em).stream().map(Person::getId).collect(Collectors.toSet()));
+        assertEquals(ids, unflattened.jpql(em).typedQuery(em).getResultList().stream()
+                .map(Person::getId).collect(Collectors.toSet()));
+        assertEquals(ids, new HashSet<>(unflattened.sql(em, h2).list(em)));
+        assertEquals(1, DSL.prepare(Person.class, "orders{ items{ name:$name } }").flatten(false)
+                .bind("name", "Hedwig").list(em).size());
+    }
+
+    @Test
+    public void uncorrelatedCollectors() {
+        String jpql = DSL.jpql(em, Order.class, "amount::collect{ count()::gt:1 }").getQuery();
+        assertTrue(jpql.contains(".amount in (select") && !jpql.contains("exists"), jpql);
+        jpql = DSL.jpql(em, Order.class, "amount::collect{ count()::gt:1 and id::gt:^id }").getQuery();
+        assertTrue(jpql.contains("exists"), jpql);
+        Dialect h2 = new H2Dialect();
+        String sql = DSL.sql(em, h2, Order.class, "amount,shipping::collect{ count()::gt:1 }").getQuery();
+        assertTrue(sql.contains("(e0.amount, e0.shipping) in (select"), sql);
+
+        for (String q : Arrays.asList("amount::collect{ count()::gt:1 }"
+                , "amount::collect{ count()::gt:1 and shipping::gt:0 }"
+                , "amount,shipping::collect{ count()::gt:1 }"
+                , "amount::collect{ count()::gt:1 and id::gt:^id }"
+                , "person.address.line::collect{ count()::gt:1 }")) {
+            Set<Long> ids = em.createQuery(DSL.criteriaQuery(em, Order.class, q)).getResultList().stream()
+                    .map(Order::getId).collect(Collectors.toSet());
+            assertEquals(ids, DSL.jpql(em, Order.class, q).typedQuery(em).getResultList().stream()
+                    .map(Order::getId).collect(Collectors.toSet()), q);
+            assertEquals(ids, new HashSet<>(DSL.sql(em, h2, Order.class, q).list(em)), q);
+        }
+        assertEquals(1, orderRepo.queryAll("amount::collect{ count()::gt:0 and id::gt:^id }").size());
+    }
+
+    @Test
+    public void aggregateSubQueries() {
+        String q = "count(orders)::gt:1";
+        Set<Person> people = new HashSet<>(personRepo.queryAll(q));
+        assertEquals(people.size(), personRepo.query(q, PageRequest.of(0, 1)).getTotalElements());
+        assertEquals(people, new HashSet<>(personRepo.queryAll(q, "orders")));
+
+        // the content query of a page filters in a sub query like its count query
+        Set<Person> paged = new HashSet<>();
+        for (int i = 0; i < people.size(); i++) {
+            Page<Person> page = personRepo.findAll((root, query, criteriaBuilder) ->
+                    DSL.predicate(root, query, criteriaBuilder, Grouping.SUB_QUERY, q)
+                    , PageRequest.of(i, 1, Sort.by("name")));
+            assertEquals(people.size(), page.getTotalElements());
+            assertEquals(1, page.getContent().size());
+            paged.addAll(page.getContent());
+        }
+        assertEquals(people, paged);
+
+        CompiledQuery<Person> compiled = DSL.compile(Person.class, q);
+        assertTrue(compiled.jpql(em).getQuery().contains("group by"));
+        assertTrue(compiled.jpql(em, "orders").getQuery().contains("where e0 in (select e1 from Person e1"));
+        String jpql = compiled.grouping(Grouping.SUB_QUERY).jpql(em).getQuery();
+        assertTrue(jpql.startsWith("select e0 from Person e0 where e0 in (select e1 from Person e1"), jpql);
+
+        Dialect h2 = new H2Dialect();
+        for (String s : Arrays.asList(q
+                , "address{ line::icontains:hogwarts } and count(orders)::gt:1"
+                , "count_distinct(orders.items.name)::gte:4 and nickNames::icontains:o"
+                , "name::istartswith:r or nickNames::icontains:o")) {
+            CompiledQuery<Person> query = DSL.compile(Person.class, s).grouping(Grouping.SUB_QUERY);
+            Set<Long> ids = em.createQuery(query.criteriaQuery(em)).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet());
+            assertEquals(em.createQuery(DSL.criteriaQuery(em, Person.class, s)).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()), ids, s);
+            assertEquals(ids, query.jpql(em).typedQuery(em).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()), s);
+            assertEquals(ids, new HashSet<>(query.sql(em, h2).list(em)), s);
+            assertEquals(ids, query.typedQuery(em).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()), s);
+        }
+        assertEquals(Collections.singletonList("Goodyear")
+                , DSL.compile(Vehicle.class, "count(tire.id.size)::gt:0 and model:Outlander")
+                        .grouping(Grouping.SUB_QUERY).sql(em, h2, "tire.id.make").list(em));
+    }
+
+    @Test
+    public void orExpansion() {
+        for (String q : Arrays.asList("address{ line::icontains:hogwarts } or orders{ count(items)::lt:2 }"
+                , "name:Bilbo or orders{ items{ name:Hedwig } } or nickNames::icontains:o"
+                , "count(orders)::gt:1 or name::istartswith:b")) {
+            CompiledQuery<Person> query = DSL.compile(Person.class, q).expand(3);
+            List<Person> people = query.list(em);
+            Set<Person> expected = new HashSet<>();
+            for (String branch : q.split(" or "))
+                expected.addAll(personRepo.queryAll(branch));
+            assertEquals(expected, new HashSet<>(people), q);
+            assertEquals(people.size(), new HashSet<>(people).size(), q);
+            assertEquals(new HashSet<>(people), new HashSet<>(query.list(em, "orders")), q);
+        }
+        assertEquals(1, DSL.compile(Person.class, "name:Nobody or name:Bilbo").expand(1).list(em).size());
+        assertEquals(0, DSL.compile(Person.class, "name:Nobody or address{ line:Nowhere }").expand(2).list(em).size());
+        assertEquals(new HashSet<>(personRepo.queryAll("name:Bilbo or orders{ items{ name:Hedwig } }"))
+                , new HashSet<>(DSL.prepare(Person.class, "name:$a or orders{ items{ name:$b } }")
+                        .bind("a", "Bilbo").bind("b", "Hedwig").expand(2).list(em)));
+    }
+
+    @Test
+    public void inLists() {
+        List<Person> all = personRepo.findAll();
+        List<Long> ids = new ArrayList<>();
+        for (Person person : all)
+            ids.add(person.getId());
+        String literal = ids.toString().replace(" ", "");
+        assertEquals(all.size(), personRepo.queryAll("id::in:" + literal).size());
+        List<Integer> integers = new ArrayList<>();
+        for (Long id : ids)
+            integers.add(id.intValue());
+        assertEquals(all.size(), DSL.prepare(Person.class, "id::in:$ids").bind("ids", integers).list(em).size());
+
+        // lists of 5 and 7 values are both padded to 8 so the statements are the same
+        Dialect h2 = new H2Dialect();
+        SqlQuery<Person> five = DSL.sql(em, h2, Person.class, "id::in:" + ids.subList(0, 5).toString().replace(" ", ""));
+        SqlQuery<Person> seven = DSL.sql(em, h2, Person.class, "id::in:" + ids.subList(0, 7).toString().replace(" ", ""));
+        assertEquals(five.getQuery(), seven.getQuery());
+        assertEquals(5, five.list(em).size());
+        assertEquals(7, seven.list(em).size());
+
+        // more values than one in list may have are split into in lists joined by or, on every backend
+        List<Long> many = new ArrayList<>(ids);
+        for (long id = 1; many.size() < 5000; id++)
+            many.add(-id);
+        Collections.reverse(many);
+        String oversized = "id::in:" + many.toString().replace(" ", "");
+        assertEquals(all.size(), personRepo.findAll((root, query, cb) -> DSL.predicate(root, query, cb, oversized)).size());
+        CriteriaBuilder cb = em.getCriteriaBuilder();
+        CriteriaQuery<Person> criteria = cb.createQuery(Person.class);
+        Root<Person> root = criteria.from(Person.class);
+        criteria.where(DSL.predicate(root, criteria, cb, oversized));
+        assertEquals(all.size(), em.createQuery(criteria).getResultList().size());
+        assertEquals(all.size(), DSL.typedQuery(em, Person.class, oversized).getResultList().size());
+        assertEquals(all.size(), DSL.compile(Person.class, oversized).list(em).size());
+        JpqlQuery<Person> split = DSL.jpql(em, Person.class, oversized);
+        assertEquals(5, split.getQuery().split(" in ").length - 1, split.getQuery());
+        assertEquals(all.size(), split.typedQuery(em).getResultList().size());
+        assertEquals(all.size(), DSL.compile(Person.class, "name:Nobody or " + oversized).list(em).size());
+        assertEquals(0, DSL.compile(Person.class, "id::not_in:" + many.toString().replace(" ", "")).list(em).size());
+        assertEquals(personRepo.queryAll("name::icontains:o").size()
+                , DSL.prepare(Person.class, "id::in:$ids and name::icontains:o").bind("ids", many).list(em).size());
+        List<Long> orders = orderRepo.findAll().stream().map(Order::getId).collect(Collectors.toList());
+        List<Long> manyOrders = new ArrayList<>(orders);
+        for (long id = 1; manyOrders.size() < 5000; id++)
+            manyOrders.add(-id);
+        assertEquals(personRepo.queryAll("orders{ id::in:" + orders.toString().replace(" ", "") + " }").size()
+                , DSL.prepare(Person.class, "name:Nobody or orders{ id::in:$ids }").bind("ids", manyOrders).list(em).size());
+        // the limit is the one of the dialect
+        Dialect small = new H2Dialect() {
+            @Override
+            public int inLimit() {
+                return 100;
+            }
+        };
+        SqlQuery<Person> sql = DSL.sql(em, small, Person.class, oversized);
+        assertEquals(50, sql.getQuery().split(" in ").length - 1);
+        assertEquals(all.size(), sql.list(em).size());
+
+        // unquoted items are converted once to the type of the attribute, as they are written
+        long big = Integer.MAX_VALUE + 1L;
+        assertEquals(1, personRepo.queryAll(String.format("id::in:[%d,%d]", big, ids.get(0))).size());
+        assertEquals(Arrays.asList(big, ids.get(0)), DSL.jpql(em, Person.class
+                , String.format("id::in:[%d,%d]", big, ids.get(0))).getParameters().get("p1"));
+        assertEquals(Arrays.asList("007", "1.50")
+                , DSL.jpql(em, Person.class, "name::in:[007, 1.50]").getParameters().get("p1"));
+    }
+
+    @Test
+    public void caseInsensitivity() {
+        assertEquals("select e0 from Person e0 where upper(e0.name) like :p1"
+                , DSL.jpql(em, Person.class, "name::istartswith:ro").getQuery());
+        Dialect plain = new H2Dialect() {
+            @Override
+            public CaseInsensitivity caseInsensitivity() {
+                return CaseInsensitivity.PLAIN;
+            }
+        };
+        String sql = DSL.sql(em, plain, Person.class, "name::istartswith:ro").getQuery();
+        assertTrue(!sql.contains("upper("), sql);
+
+        CaseInsensitivity.register(Vehicle.class, "model", CaseInsensitivity.PLAIN);
+        CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.shadow("model"));
+        try {
+            assertEquals("select e0 from Vehicle e0 where e0.model like :p1"
+                    , DSL.jpql(em, Vehicle.class, "model::istartswith:mi").getQuery());
+            // the value is upper cased and compared with the column as it is
+            assertEquals(1, vehicleRepo.queryAll("model::istartswith:m").size());
+            assertEquals(0, vehicleRepo.queryAll("model::istartswith:mi").size());
+            assertEquals(1, DSL.sql(em, new H2Dialect(), Vehicle.class, "model::istartswith:m").list(em).size());
+            // the shadow attribute is compared instead of the attribute
+            assertEquals(1, vehicleRepo.queryAll("make::istartswith:o").size());
+            assertEquals(0, vehicleRepo.queryAll("make::istartswith:mit").size());
+            assertEquals(1, DSL.sql(em, new H2Dialect(), Vehicle.class, "make::istartswith:o").list(em).size());
+            assertEquals("select e0 from Vehicle e0 where e0.model like :p1"
+                    , DSL.jpql(em, Vehicle.class, "make::iendswith:r").getQuery());
+
+            // a registration applies to the shapes compiled before it
+            CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.UPPER);
+            assertEquals(0, vehicleRepo.queryAll("make::istartswith:o").size());
+            assertEquals(0, DSL.sql(em, new H2Dialect(), Vehicle.class, "make::istartswith:o").list(em).size());
+            assertEquals("select e0 from Vehicle e0 where upper(e0.make) like :p1"
+                    , DSL.jpql(em, Vehicle.class, "make::iendswith:r").getQuery());
+            CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.shadow("model"));
+
+            // each field of a comparison of two fields is compared with its own strategy
+            assertEquals("select e0 from Vehicle e0 where e0.model like concat('%', e0.model, '%')"
+                    , DSL.jpql(em, Vehicle.class, "model::icontains:@make").getQuery());
+            assertEquals(2, vehicleRepo.queryAll("model::icontains:@make").size());
+            CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.PLAIN);
+            assertEquals("select e0 from Vehicle e0 where e0.make like concat('%', e0.model)"
+                    , DSL.jpql(em, Vehicle.class, "make::iendswith:@model").getQuery());
+            assertEquals(0, vehicleRepo.queryAll("make::iendswith:@model").size());
+            CaseInsensitivity.register(Vehicle.class, "model", CaseInsensitivity.UPPER);
+            assertEquals("select e0 from Vehicle e0 where e0.make like concat(upper(e0.model), '%')"
+                    , DSL.jpql(em, Vehicle.class, "make::istartswith:@model").getQuery());
+            CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.UPPER);
+            assertEquals("select e0 from Vehicle e0 where upper(e0.model) like concat('%', upper(e0.make))"
+                    , DSL.jpql(em, Vehicle.class, "model::iendswith:@make").getQuery());
+            assertEquals(2, vehicleRepo.queryAll("make::istartswith:@make").size());
+            assertEquals(2, DSL.sql(em, new H2Dialect(), Vehicle.class, "make::istartswith:@make").list(em).size());
+        } finally {
+            CaseInsensitivity.register(Vehicle.class, "model", CaseInsensitivity.UPPER);
+            CaseInsensitivity.register(Vehicle.class, "make", CaseInsensitivity.UPPER);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void registeredOperators() {
+        Expression.Operator.register("matches", new OperatorTranslator() {
+            @Override
+            public Predicate toPredicate(CriteriaBuilder cb
+                    , javax.persistence.criteria.Expression<?> left
+                    , javax.persistence.criteria.Expression<?> right
+                    , boolean field) {
+                return cb.isTrue(cb.function("regexp_like", Boolean.class, left, right));
+            }
+
+            @Override
+            public String toJpql(String left, String right, boolean field) {
+                return "function('regexp_like', " + left + ", " + right + ") = true";
+            }
+
+            @Override
+            public String toSql(String left, String right, boolean field) {
+                return "regexp_like(" + left + ", " + right + ')';
+            }
+        });
+        Expression.Function.register("length", false, new FunctionTranslator() {
+            @Override
+            public javax.persistence.criteria.Expression<?> toExpression(CriteriaBuilder cb
+                    , javax.persistence.criteria.Expression<?> argument) {
+                return cb.length((javax.persistence.criteria.Expression<String>) argument);
+            }
+
+            @Override
+            public String toJpql(String argument) {
+                return "length(" + argument + ')';
+            }
+
+            @Override
+            public Class<?> resultType(Class<?> type) {
+                return Integer.class;
+            }
+        });
+
+        assertEquals(new HashSet<>(personRepo.queryAll("name:Ross or name:Bilbo"))
+                , new HashSet<>(personRepo.queryAll("name::matches:'^(Ross|Bilbo)$'")));
+        assertEquals(personRepo.queryAll("name::not_matches:'^(Ross|Bilbo)$'").size()
+                , personRepo.findAll().size() - 2);
+        assertEquals(2, DSL.sql(em, new H2Dialect(), Person.class, "name::matches:'^(Ross|Bilbo)$'").list(em).size());
+
+        long longNames = personRepo.findAll().stream().filter(person -> person.getName().length() > 5).count();
+        assertEquals(longNames, personRepo.queryAll("length(name)::gt:5").size());
+        assertEquals(longNames, DSL.sql(em, new H2Dialect(), Person.class, "length(name)::gt:5").list(em).size());
+        assertEquals(longNames, DSL.prepare(Person.class, "length(name)::gt:$n").bind("n", 5).list(em).size());
+
+        assertTrue(Expression.Operator.isValid("matches") && Expression.Function.isValid("length"));
+        assertEquals(Expression.Operator.eq, Expression.Operator.valueOf("eq"));
+        assertTrue(Arrays.stream(Expression.Operator.values()).noneMatch(operator -> operator.name().equals("matches")));
+        assertThrows(IllegalArgumentException.class, () -> Expression.Operator.register("eq", null));
+        assertThrows(IllegalArgumentException.class, () -> Expression.Operator.register("not_eq", null));
+    }
+
+    @Test
+    public void ranges() {
+        assertEquals("select e0 from Person e0 where e0.id between :p1 and :p2"
+                , DSL.jpql(em, Person.class, "id::range:[2,4]").getQuery());
+        assertEquals("select e0 from Person e0 where (e0.id >= :p1 and e0.id < :p2)"
+                , DSL.jpql(em, Person.class, "id::range:[2, 4)").getQuery());
+        assertEquals("select e0 from Person e0 where e0.id > :p1"
+                , DSL.jpql(em, Person.class, "id::range:(2,)").getQuery());
+
+        List<Long> ids = new ArrayList<>();
+        for (Person person : personRepo.findAll())
+            ids.add(person.getId());
+        Collections.sort(ids);
+        Long low = ids.get(1), high = ids.get(3);
+        assertEquals(3, personRepo.queryAll(String.format("id::range:[%d,%d]", low, high)).size());
+        assertEquals(1, personRepo.queryAll(String.format("id::range:(%d,%d)", low, ids.get(2) + 1)).size());
+        assertEquals(new HashSet<>(personRepo.queryAll(String.format("id::lt:%d or id::gte:%d", low, high)))
+                , new HashSet<>(personRepo.queryAll(String.format("id::not_range:[%d,%d)", low, high))));
+        assertEquals(3, DSL.sql(em, new H2Dialect(), Person.class, String.format("id::range:[%d,%d]", low, high))
+                .list(em).size());
+
+        LocalDate today = LocalDate.now();
+        int orders = orderRepo.findAll().size();
+        assertEquals(orders, orderRepo.queryAll(String.format("purchasedOn::range:[%s,%s)"
+                , today, today.plusDays(1))).size());
+        assertEquals(0, orderRepo.queryAll(String.format("purchasedOn::range:[%s,)", today.plusDays(1))).size());
+        assertEquals(orders, DSL.prepare(Order.class, "purchasedOn::range:[$from,$to)")
+                .bind("from", today.atStartOfDay())
+                .bind("to", today.plusDays(1).atStartOfDay())
+                .list(em).size());
+
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "id::range:[,]"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "id::range:[2,4"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "id::range:2"));
+    }
+
+    @Test
+    public void relativeTime() {
+        int orders = orderRepo.findAll().size();
+        assertEquals(orders, orderRepo.queryAll("purchasedOn::gt:now-1d").size());
+        assertEquals(orders, orderRepo.queryAll("purchasedOn::range:[startOfDay,startOfDay+1d)").size());
+        assertEquals(orders, orderRepo.queryAll("purchasedOn::gte:startOfMonth").size());
+        assertEquals(0, personRepo.queryAll("name:now").size());
+
+        // the same query resolves the literal against the clock each time it runs
+        CompiledQuery<Order> query = DSL.compile(Order.class, "purchasedOn::gt:now-1h");
+        try {
+            Converters.setClock(Clock.offset(Clock.systemDefaultZone(), Duration.ofDays(-10)));
+            assertEquals(orders, query.list(em).size());
+            assertEquals(orders, DSL.sql(em, new H2Dialect(), Order.class, "purchasedOn::gt:now-1h").list(em).size());
+            Converters.setClock(Clock.offset(Clock.systemDefaultZone(), Duration.ofDays(10)));
+            assertEquals(0, query.list(em).size());
+            assertEquals(0, DSL.sql(em, new H2Dialect(), Order.class, "purchasedOn::gt:now-1h").list(em).size());
+            assertEquals(0, orderRepo.queryAll("purchasedOn::gt:now-1h").size());
+            assertEquals(orders, orderRepo.queryAll("purchasedOn::gt:now-1w-4d").size());
+        } finally {
+            Converters.setClock(Clock.systemDefaultZone());
+        }
+        assertThrows(BadQueryException.class, () -> orderRepo.queryAll("purchasedOn::gt:now-1x"));
+    }
+
+    @Test
+    public void latestChild() {
+        Dialect h2 = new H2Dialect();
+        Map<String, Set<Long>> expected = new LinkedHashMap<>();
+        expected.put("orders::last(id){ amount::gt:100 }", new HashSet<>());
+        expected.put("orders::first(id){ amount::lte:100 }", new HashSet<>());
+        expected.put("orders::last(id,2){ amount::lt:50 }", new HashSet<>());
+        for (Person person : personRepo.findAll()) {
+            List<Order> orders = person.getOrders().stream()
+                    .sorted(Comparator.comparing(Order::getId)).collect(Collectors.toList());
+            if (orders.isEmpty())
+                continue;
+            if (orders.get(orders.size() - 1).getAmount() > 100)
+                expected.get("orders::last(id){ amount::gt:100 }").add(person.getId());
+            if (orders.get(0).getAmount() <= 100)
+                expected.get("orders::first(id){ amount::lte:100 }").add(person.getId());
+            if (orders.subList(Math.max(0, orders.size() - 2), orders.size()).stream().anyMatch(o -> o.getAmount() < 50))
+                expected.get("orders::last(id,2){ amount::lt:50 }").add(person.getId());
+        }
+        for (Map.Entry<String, Set<Long>> entry : expected.entrySet()) {
+            String q = entry.getKey();
+            assertEquals(entry.getValue(), personRepo.queryAll(q).stream().map(Person::getId).collect(Collectors.toSet()), q);
+            assertEquals(entry.getValue(), DSL.jpql(em, Person.class, q).typedQuery(em).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()), q);
+            assertEquals(entry.getValue(), new HashSet<>(DSL.sql(em, h2, Person.class, q).list(em)), q);
+        }
+        assertTrue(DSL.jpql(em, Person.class, "orders::last(purchasedOn){ amount::gt:100 }").getQuery()
+                .contains(" = (select max("));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "orders::last(id,0){}"));
+        assertThrows(BadQueryException.class, () -> DSL.compile(Person.class, "orders::not_last(id){}"));
+    }
+
+    @Test
+    public void fullTextSearch() throws SQLException {
+        new H2FullText(dataSource, entityManagerFactory.getMetamodel()).index(Item.class, "name");
+        try {
+            Dialect h2 = new H2Dialect();
+            assertEquals(new HashSet<>(Arrays.asList("Water", "Salt Water"))
+                    , itemRepo.queryAll("name::search:water").stream().map(Item::getName).collect(Collectors.toSet()));
+            assertEquals("The Ring", itemRepo.queryOne("name::search:ring and name::startswith:The")
+                    .map(Item::getName).orElse(null));
+            assertEquals(itemRepo.count() - 2, itemRepo.queryAll("name::not_search:water").size());
+            assertEquals(2, DSL.prepare(Item.class, "name::search:$text").bind("text", "WATER").list(em).size());
+
+            String q = "orders{ items{ name::search:water } }";
+            Set<Long> ids = personRepo.queryAll("orders{ items{ name::icontains:water } }").stream()
+                    .map(Person::getId).collect(Collectors.toSet());
+            assertTrue(ids.size() > 0);
+            assertEquals(ids, personRepo.queryAll(q).stream().map(Person::getId).collect(Collectors.toSet()));
+            assertEquals(ids, DSL.jpql(em, Person.class, q).typedQuery(em).getResultList().stream()
+                    .map(Person::getId).collect(Collectors.toSet()));
+            assertEquals(ids, new HashSet<>(DSL.sql(em, h2, Person.class, q).list(em)));
+            assertThrows(BadQueryException.class, () -> personRepo.queryAll("name::search:ross"));
+
+            new H2FullText(dataSource, entityManagerFactory.getMetamodel()).index(Item.class, "name", "id");
+            Long id = itemRepo.queryOne("name:Hedwig").map(Item::getId).orElse(null);
+            assertTrue(assertThrows(BadQueryException.class, () -> itemRepo.queryAll("name::search:water"))
+                    .getMessage().endsWith("covers NAME,ID"));
+            assertTrue(assertThrows(BadQueryException.class, () -> DSL.prepare(Item.class, "id::search:$text")
+                    .bind("text", String.valueOf(id)).list(em)).getMessage().endsWith("covers NAME,ID"));
+            new H2FullText(dataSource, entityManagerFactory.getMetamodel()).index(Item.class, "id");
+            assertTrue(assertThrows(BadQueryException.class, () -> itemRepo.queryAll("name::search:water"))
+                    .getMessage().endsWith("is not indexed"));
+        } finally {
+            try (Connection connection = dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.execute("call FT_DROP_INDEX('PUBLIC', 'ITEM')");
+                if (!connection.getAutoCommit())
+                    connection.commit();
+            }
+        }
+    }
+
+    @Test
+    public void queryRunner() {
+        em.clear();
+        Session session = em.unwrap(Session.class);
+        String q = "orders{ amount::gt:100 }";
+        List<Person> people = DSL.query(em, Person.class, q)
+                .readOnly()
+                .fetchSize(100)
+                .timeout(Duration.ofSeconds(5))
+                .list();
+        assertEquals(personRepo.queryAll(q).size(), people.size());
+        assertTrue(people.size() > 0 && people.stream().allMatch(session::isReadOnly));
+
+        TypedQuery<Person> typedQuery = DSL.query(em, Person.class, q)
+                .readOnly()
+                .timeout(Duration.ofSeconds(5))
+                .typedQuery();
+        assertEquals(FlushModeType.COMMIT, typedQuery.getFlushMode());
+        assertTrue(typedQuery.getHints().containsKey("javax.persistence.query.timeout"));
+
+        em.clear();
+        people = DSL.prepare(Person.class, "name::istartswith:$prefix or orders{ amount::gt:1000 }")
+                .expand(4)
+                .runner(em)
+                .bind("prefix", "ro")
+                .readOnly()
+                .list();
+        assertTrue(people.size() > 0 && people.stream().allMatch(session::isReadOnly));
+
+        QueryRunner.defaults(Person.class, runner -> runner.readOnly());
+        try {
+            assertEquals(FlushModeType.COMMIT, DSL.query(em, Person.class, q).getFlushMode());
+            assertEquals(null, DSL.query(em, Order.class, "amount::gt:100").getFlushMode());
+        } finally {
+            QueryRunner.defaults(Person.class, null);
+        }
+        assertEquals(null, DSL.query(em, Person.class, q).getFlushMode());
+    }
+
+    @Test
+    public void semiJoins() {
+        String jpql = DSL.jpql(em, Person.class, "nickNames::icontains:o").getQuery();
+        assertTrue(jpql.startsWith("select e0 from Person e0 where e0 in (select e1 from Person e1 join"), jpql);
+        assertEquals("select e0 from Person e0 where e0.name = :p1", DSL.jpql(em, Person.class, "name:Ross").getQuery());
+
+        Dialect h2 = new H2Dialect();
+        for (String q : Arrays.asList("nickNames::icontains:o"
+                , "nickNames::icontains:o or name:Bilbo"
+                , "orders.items.name::icontains:e")) {
+            List<Person> people = personRepo.queryAll(q);
+            assertEquals(new HashSet<>(people).size(), people.size(), q);
+            assertTrue(people.size() > 0, q);
+            assertEquals(personRepo.query(q, PageRequest.of(0, 1)).getTotalElements(), people.size(), q);
+            List<Object> ids = DSL.sql(em, h2, Person.class, q).list(em);
+            assertEquals(new HashSet<>(ids).size(), ids.size(), q);
+        }
+        List<Order> orders = orderRepo.queryAll("person{ nickNames::icontains:o }");
+        assertEquals(new HashSet<>(orders).size(), orders.size());
+        assertTrue(orders.size() > 0);
+    }
 }
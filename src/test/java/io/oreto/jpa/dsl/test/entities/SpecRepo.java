@@ -1,6 +1,8 @@
 package io.oreto.jpa.dsl.test.entities;
 
 import io.oreto.jpa.dsl.DSL;
+import io.oreto.jpa.dsl.Grouping;
+import org.springframework.dao.IncorrectResultSizeDataAccessException;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.support.JpaEntityInformation;
@@ -11,6 +13,9 @@ import java.util.List;
 import java.util.Optional;
 
 public class SpecRepo<T, ID> extends SimpleJpaRepository<T, ID> implements JpaSpecRepository<T, ID> {
+    // run queries as JPQL statements instead of criteria queries when the scout.backend property is jpql
+    private static final boolean JPQL = "jpql".equals(System.getProperty("scout.backend"));
+
     private final EntityManager entityManager;
 
     public SpecRepo(JpaEntityInformation<T, ?> entityInformation, EntityManager entityManager) {
@@ -24,16 +29,25 @@ public class SpecRepo<T, ID> extends SimpleJpaRepository<T, ID> implements JpaSp
 
     @Override
     public Page<T> query(String q, Pageable page, String... fetch) {
-        return findAll((root, query, criteriaBuilder) -> DSL.predicate(root, query, criteriaBuilder, q, fetch), page);
+        return findAll((root, query, criteriaBuilder) ->
+                DSL.predicate(root, query, criteriaBuilder, Grouping.SUB_QUERY, q, fetch), page);
     }
 
     @Override
     public Optional<T> queryOne(String q, String... fetch) {
+        if (JPQL) {
+            List<T> results = queryAll(q, fetch);
+            if (results.size() > 1)
+                throw new IncorrectResultSizeDataAccessException(1, results.size());
+            return results.stream().findFirst();
+        }
         return findOne((root, query, criteriaBuilder) -> DSL.predicate(root, query, criteriaBuilder, q, fetch));
     }
 
     @Override
     public List<T> queryAll(String q, String... fetch) {
+        if (JPQL)
+            return DSL.jpql(entityManager, getDomainClass(), q, fetch).typedQuery(entityManager).getResultList();
         return findAll((root, query, criteriaBuilder) -> DSL.predicate(root, query, criteriaBuilder, q, fetch));
     }
 }